@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.http.HttpHeaders;
+
+/**
+ * Determines whether an unsuccessful part of a batch response should be retried with back-off.
+ *
+ * <p>Used together with {@link BatchRequest#setBackOff}.
+ *
+ * @since 1.33
+ */
+public interface BatchBackOffRequired {
+
+  /**
+   * Invoked for each unsuccessful part of a batch response.
+   *
+   * @param statusCode status code of the part
+   * @param responseHeaders headers of the part
+   * @return whether the part should be retried with back-off
+   */
+  boolean isRequired(int statusCode, HttpHeaders responseHeaders);
+
+  /**
+   * Back-off required implementation which returns {@code true} for a server error (5xx) or a rate
+   * limit error (429).
+   */
+  BatchBackOffRequired ON_SERVER_ERROR_OR_RATE_LIMIT =
+      new BatchBackOffRequired() {
+        public boolean isRequired(int statusCode, HttpHeaders responseHeaders) {
+          return statusCode / 100 == 5 || statusCode == 429;
+        }
+      };
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Multipart/mixed content of a batch HTTP request, which serializes the parts in the same way as
+ * {@link com.google.api.client.http.MultipartContent}.
+ *
+ * <p>The length is computed from the serialized part headers and the lengths of the parts instead
+ * of by writing the whole content, so that the batch HTTP request is sent with a Content-Length
+ * without serializing the parts twice. Both are reused until {@link #invalidate()} is called.
+ */
+final class BatchContent extends AbstractHttpContent {
+
+  private static final String TWO_DASHES = "--";
+
+  /** Parts in the order of their Content-ID, starting with 1. */
+  private final List<HttpRequestContent> parts;
+
+  /** Serialized boundary line and headers of each part or {@code null} if not serialized yet. */
+  private byte[][] partHeads;
+
+  /** Length of each part or {@code -1} if unknown, computed along with {@link #partHeads}. */
+  private long[] partLengths;
+
+  /** Length of the content, or {@code -1} if unknown or not computed yet. */
+  private long length = -1;
+
+  /** Serialized close delimiter. */
+  private final byte[] closeDelimiter;
+
+  /** @param parts parts in the order of their Content-ID, starting with 1 */
+  BatchContent(List<HttpRequestContent> parts) {
+    super(
+        new HttpMediaType("multipart/mixed")
+            .setParameter("boundary", "__END_OF_PART__" + UUID.randomUUID() + "__"));
+    this.parts = parts;
+    closeDelimiter =
+        (TWO_DASHES + getBoundary() + TWO_DASHES + HttpRequestContent.NEWLINE)
+            .getBytes(getCharset());
+  }
+
+  /** Returns the boundary string. */
+  String getBoundary() {
+    return getMediaType().getParameter("boundary");
+  }
+
+  /**
+   * Discards the serialized part headers and the computed length, so that they are computed again
+   * from the parts, for example after a part was {@link HttpRequestContent#invalidate()
+   * invalidated}.
+   */
+  void invalidate() {
+    partHeads = null;
+    partLengths = null;
+    length = -1;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Unlike {@link AbstractHttpContent#getLength()}, the length is computed again after {@link
+   * #invalidate()}.
+   */
+  @Override
+  public long getLength() throws IOException {
+    if (length == -1) {
+      length = computeLength();
+    }
+    return length;
+  }
+
+  @Override
+  protected long computeLength() throws IOException {
+    byte[][] heads = getPartHeads();
+    long length = closeDelimiter.length;
+    for (int i = 0; i < heads.length; i++) {
+      if (partLengths[i] == -1) {
+        return -1;
+      }
+      length += heads[i].length + partLengths[i] + HttpRequestContent.NEWLINE.length();
+    }
+    return length;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    byte[][] heads = getPartHeads();
+    byte[] newline = HttpRequestContent.NEWLINE.getBytes(getCharset());
+    for (int i = 0; i < heads.length; i++) {
+      out.write(heads[i]);
+      parts.get(i).writeTo(out);
+      out.write(newline);
+    }
+    out.write(closeDelimiter);
+  }
+
+  @Override
+  public boolean retrySupported() {
+    for (HttpRequestContent part : parts) {
+      if (!part.retrySupported()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the serialized boundary line and headers of each part, serializing them if needed. */
+  private byte[][] getPartHeads() throws IOException {
+    if (partHeads == null) {
+      byte[][] heads = new byte[parts.size()][];
+      partLengths = new long[heads.length];
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Writer writer = new OutputStreamWriter(out, getCharset());
+      for (int i = 0; i < heads.length; i++) {
+        HttpRequestContent part = parts.get(i);
+        HttpHeaders headers =
+            new HttpHeaders()
+                .setAcceptEncoding(null)
+                .setContentType(part.getType())
+                .set("Content-ID", i + 1)
+                .set("Content-Transfer-Encoding", "binary");
+        partLengths[i] = part.getLength();
+        if (partLengths[i] != -1) {
+          headers.setContentLength(partLengths[i]);
+        }
+        writer.write(TWO_DASHES);
+        writer.write(getBoundary());
+        writer.write(HttpRequestContent.NEWLINE);
+        HttpHeaders.serializeHeadersForMultipartRequests(headers, null, null, writer);
+        writer.write(HttpRequestContent.NEWLINE);
+        writer.flush();
+        heads[i] = out.toByteArray();
+        out.reset();
+      }
+      partHeads = heads;
+    }
+    return partHeads;
+  }
+}
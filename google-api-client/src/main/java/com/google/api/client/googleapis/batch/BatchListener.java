@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.util.Beta;
+
+/**
+ * {@link Beta} <br>
+ * Listener for metrics about the execution of a {@link BatchRequest}.
+ *
+ * <p>Used together with {@link BatchRequest#setListener}. Methods may be invoked concurrently from
+ * the threads that execute batch HTTP requests and from the callback executor, so implementations
+ * must be thread-safe. They are invoked inline and should return quickly.
+ *
+ * @since 1.33
+ */
+@Beta
+public interface BatchListener {
+
+  /**
+   * Invoked after the response of a batch HTTP request has been read completely.
+   *
+   * @param partCount number of parts in the batch HTTP request
+   * @param requestBytes size in bytes of the serialized batch HTTP request body before any GZip
+   *     compression or {@code -1} if unknown
+   * @param responseBytes number of bytes read from the batch HTTP response body
+   * @param latencyNanos time in nanoseconds from sending the batch HTTP request until its response
+   *     has been read completely
+   */
+  void onBatchCompleted(int partCount, long requestBytes, long responseBytes, long latencyNanos);
+
+  /**
+   * Invoked for each part of a batch response, including parts that are retried afterwards.
+   *
+   * @param statusCode status code of the part
+   * @param round number of batch HTTP requests the part has been sent in so far, starting at
+   *     {@code 1}
+   */
+  void onPartReceived(int statusCode, int round);
+
+  /**
+   * Invoked after the body of a part has been parsed into the data or error class, which does not
+   * happen for parts without a callback or with a {@link BatchUnparsedCallback}.
+   *
+   * @param statusCode status code of the part
+   * @param parseNanos time in nanoseconds it took to parse the body of the part
+   */
+  void onPartParsed(int statusCode, long parseNanos);
+
+  /**
+   * Invoked before sleeping ahead of a back-off round.
+   *
+   * @param partCount number of parts that are retried in the back-off round
+   * @param delayMillis delay in milliseconds before the back-off round
+   */
+  void onBackOffRound(int partCount, long delayMillis);
+
+  /** Listener implementation which ignores all metrics. */
+  BatchListener NOOP =
+      new BatchListener() {
+        public void onBatchCompleted(
+            int partCount, long requestBytes, long responseBytes, long latencyNanos) {}
+
+        public void onPartReceived(int statusCode, int round) {}
+
+        public void onPartParsed(int statusCode, long parseNanos) {}
+
+        public void onBackOffRound(int partCount, long delayMillis) {}
+      };
+}
@@ -14,8 +14,10 @@
 
 package com.google.api.client.googleapis.batch;
 
+import com.google.api.client.http.GZipEncoding;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpExecuteInterceptor;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
@@ -24,14 +26,25 @@ import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.http.MultipartContent;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.NanoClock;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
-import java.io.BufferedInputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,12 +88,18 @@ import java.util.logging.Logger;
  *
  * <p>Redirects are currently not followed in {@link BatchRequest}.
  *
+ * <p>Large numbers of queued requests are split into several batch HTTP requests of at most {@link
+ * #getMaxPartsPerBatch()} requests each. {@link #executeAsync(Executor)} executes these batch HTTP
+ * requests concurrently. With {@link #setAutoFlush auto-flush}, queued requests are executed as
+ * soon as a batch HTTP request is full, so that they do not accumulate in memory.
+ *
  * <p>Implementation is not thread-safe.
  *
  * <p>Note: When setting an {@link HttpUnsuccessfulResponseHandler} by calling to {@link
  * HttpRequest#setUnsuccessfulResponseHandler}, the handler is called for each unsuccessful part. As
  * a result it's not recommended to use {@link HttpBackOffUnsuccessfulResponseHandler} on a batch
- * request, since the back-off policy is invoked for each unsuccessful part.
+ * request, since the back-off policy is invoked for each unsuccessful part. Use {@link
+ * #setBackOff(BackOff)} instead, which backs off once per round of retried parts.
  *
  * @since 1.9
  * @author rmistry@google.com (Ravi Mistry)
@@ -101,6 +120,30 @@ public final class BatchRequest {
 
   private static final Logger LOGGER = Logger.getLogger(BatchRequest.class.getName());
 
+  /**
+   * Default maximum number of requests sent in a single batch HTTP request (set to 1000, the
+   * maximum number of calls allowed in a single batch request by Google APIs).
+   *
+   * @since 1.33
+   */
+  public static final int DEFAULT_MAX_PARTS_PER_BATCH = 1000;
+
+  /**
+   * Default maximum number of batch HTTP requests in flight at the same time during {@link
+   * #executeAsync(Executor)} (set to 4).
+   *
+   * @since 1.33
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 4;
+
+  /**
+   * Default maximum number of callbacks pending on the {@link #setCallbackExecutor callback
+   * executor} (set to 100).
+   *
+   * @since 1.33
+   */
+  public static final int DEFAULT_MAX_PENDING_CALLBACKS = 100;
+
   /** The URL where batch requests are sent. */
   private GenericUrl batchUrl = new GenericUrl(GLOBAL_BATCH_ENDPOINT);
 
@@ -113,22 +156,104 @@ public final class BatchRequest {
   /** Sleeper. */
   private Sleeper sleeper = Sleeper.DEFAULT;
 
+  /** Maximum number of requests sent in a single batch HTTP request. */
+  private int maxPartsPerBatch = DEFAULT_MAX_PARTS_PER_BATCH;
+
+  /** Maximum number of batch HTTP requests in flight at the same time. */
+  private int maxConcurrentBatches = DEFAULT_MAX_CONCURRENT_BATCHES;
+
+  /** Back-off policy for unsuccessful parts or {@code null} to not retry them with back-off. */
+  private BackOff backOff;
+
+  /**
+   * Last asynchronous execution that uses {@link #backOff} itself rather than a copy, or {@code
+   * null} for none.
+   */
+  private AsyncExecution sharedBackOffExecution;
+
+  /** Determines which unsuccessful parts are retried with back-off. */
+  private BatchBackOffRequired backOffRequired =
+      BatchBackOffRequired.ON_SERVER_ERROR_OR_RATE_LIMIT;
+
+  /** Statistics about the number of rounds the parts took. */
+  private final BatchRetryStats retryStats = new BatchRetryStats();
+
+  /** Listener for metrics about the execution. */
+  private BatchListener listener = BatchListener.NOOP;
+
+  /** Executor that invokes callbacks or {@code null} to invoke them on the reading thread. */
+  private Executor callbackExecutor;
+
+  /** Whether callbacks are invoked one at a time in the order of the responses. */
+  private boolean orderedCallbacks = true;
+
+  /** Maximum number of callbacks pending on {@link #callbackExecutor}. */
+  private int maxPendingCallbacks = DEFAULT_MAX_PENDING_CALLBACKS;
+
+  /** Whether the body of batch HTTP requests is compressed with GZip. */
+  private boolean enableGZipContent;
+
+  /** Whether queued requests are executed automatically once a threshold is crossed. */
+  private boolean autoFlush;
+
+  /** Maximum size in bytes of a single batch HTTP request or {@code -1} for no limit. */
+  private long maxBytesPerBatch = -1;
+
+  /** Maximum time in milliseconds a request stays queued with auto-flush or {@code -1}. */
+  private long maxLingerMillis = -1;
+
+  /**
+   * Size in bytes of the queued requests if {@link #maxBytesPerBatch} is set, or {@code -1} if it
+   * needs to be recomputed.
+   */
+  private long queuedBytes;
+
+  /** Value of {@link #nanoClock} when the first of the queued requests was queued. */
+  private long firstQueuedNanos;
+
+  /** Nano clock used to determine how long requests are queued. */
+  NanoClock nanoClock = NanoClock.SYSTEM;
+
   /** A container class used to hold callbacks and data classes. */
   static class RequestInfo<T, E> {
     final BatchCallback<T, E> callback;
+    final BatchUnparsedCallback unparsedCallback;
     final Class<T> dataClass;
     final Class<E> errorClass;
     final HttpRequest request;
 
+    /** Part of the request in a batch HTTP request, reused across rounds. */
+    final HttpRequestContent content;
+
+    /** Number of batch HTTP requests the request has been sent in. */
+    int rounds;
+
+    /** Delay requested by the Retry-After header of the last unsuccessful response. */
+    long retryAfterMillis;
+
+    /** Size in bytes of the part in a batch HTTP request or {@code -1} if not computed yet. */
+    long length = -1;
+
     RequestInfo(
         BatchCallback<T, E> callback,
         Class<T> dataClass,
         Class<E> errorClass,
         HttpRequest request) {
+      this(callback, null, dataClass, errorClass, request);
+    }
+
+    RequestInfo(
+        BatchCallback<T, E> callback,
+        BatchUnparsedCallback unparsedCallback,
+        Class<T> dataClass,
+        Class<E> errorClass,
+        HttpRequest request) {
       this.callback = callback;
+      this.unparsedCallback = unparsedCallback;
       this.dataClass = dataClass;
       this.errorClass = errorClass;
       this.request = request;
+      this.content = new HttpRequestContent(request);
     }
   }
 
@@ -182,9 +307,327 @@ public final class BatchRequest {
     return this;
   }
 
+  /**
+   * Returns the maximum number of requests sent in a single batch HTTP request.
+   *
+   * @since 1.33
+   */
+  public int getMaxPartsPerBatch() {
+    return maxPartsPerBatch;
+  }
+
+  /**
+   * Sets the maximum number of requests sent in a single batch HTTP request. The default value is
+   * {@link #DEFAULT_MAX_PARTS_PER_BATCH}.
+   *
+   * <p>If more requests are queued, {@link #execute()} and {@link #executeAsync(Executor)} split
+   * them into several batch HTTP requests of at most this many requests each.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setMaxPartsPerBatch(int maxPartsPerBatch) {
+    Preconditions.checkArgument(maxPartsPerBatch > 0);
+    this.maxPartsPerBatch = maxPartsPerBatch;
+    return this;
+  }
+
+  /**
+   * Returns the maximum number of batch HTTP requests in flight at the same time during {@link
+   * #executeAsync(Executor)}.
+   *
+   * @since 1.33
+   */
+  public int getMaxConcurrentBatches() {
+    return maxConcurrentBatches;
+  }
+
+  /**
+   * Sets the maximum number of batch HTTP requests in flight at the same time during {@link
+   * #executeAsync(Executor)}. The default value is {@link #DEFAULT_MAX_CONCURRENT_BATCHES}.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setMaxConcurrentBatches(int maxConcurrentBatches) {
+    Preconditions.checkArgument(maxConcurrentBatches > 0);
+    this.maxConcurrentBatches = maxConcurrentBatches;
+    return this;
+  }
+
+  /**
+   * Returns the back-off policy for unsuccessful parts or {@code null} if they are not retried with
+   * back-off.
+   *
+   * @since 1.33
+   */
+  public BackOff getBackOff() {
+    return backOff;
+  }
+
+  /**
+   * Sets the back-off policy for unsuccessful parts or {@code null} to not retry them with
+   * back-off. The default value is {@code null}.
+   *
+   * <p>Unsuccessful parts for which {@link #getBackOffRequired()} returns {@code true} are not
+   * retried right away. Instead they are collected across all batch HTTP requests of the current
+   * round and resubmitted together in a new round once the back-off delay, or the longest delay
+   * requested by the Retry-After header of one of these parts if that is longer, has elapsed. Parts
+   * are retried until the back-off policy returns {@link BackOff#STOP}, after which their callback
+   * is invoked with the last unsuccessful response. The back-off policy is reset at the start of
+   * each execution.
+   *
+   * <p>An {@link ExponentialBackOff} is copied at the start of each execution, so that concurrent
+   * executions by {@link #executeAsync(Executor)} each back off on their own. Other policies cannot
+   * be copied, so an execution using them cannot start while an asynchronous execution using them
+   * is still running.
+   *
+   * <p>Parts whose content does not support retries are never retried.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setBackOff(BackOff backOff) {
+    this.backOff = backOff;
+    return this;
+  }
+
+  /**
+   * Returns the {@link BatchBackOffRequired} instance which determines which unsuccessful parts are
+   * retried with back-off.
+   *
+   * @since 1.33
+   */
+  public BatchBackOffRequired getBackOffRequired() {
+    return backOffRequired;
+  }
+
+  /**
+   * Sets the {@link BatchBackOffRequired} instance which determines which unsuccessful parts are
+   * retried with back-off. The default value is {@link
+   * BatchBackOffRequired#ON_SERVER_ERROR_OR_RATE_LIMIT}.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setBackOffRequired(BatchBackOffRequired backOffRequired) {
+    this.backOffRequired = Preconditions.checkNotNull(backOffRequired);
+    return this;
+  }
+
+  /**
+   * Returns the statistics about the number of rounds the parts executed by this batch request
+   * took.
+   *
+   * @since 1.33
+   */
+  public BatchRetryStats getRetryStats() {
+    return retryStats;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the listener for metrics about the execution.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public BatchListener getListener() {
+    return listener;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the listener for metrics about the execution. The default value is {@link
+   * BatchListener#NOOP}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public BatchRequest setListener(BatchListener listener) {
+    this.listener = Preconditions.checkNotNull(listener);
+    return this;
+  }
+
+  /**
+   * Returns the executor that invokes callbacks or {@code null} if they are invoked on the thread
+   * that reads the batch response.
+   *
+   * @since 1.33
+   */
+  public Executor getCallbackExecutor() {
+    return callbackExecutor;
+  }
+
+  /**
+   * Sets the executor that invokes callbacks or {@code null} to invoke them on the thread that
+   * reads the batch response. The default value is {@code null}.
+   *
+   * <p>With a callback executor, the content of each part is copied and the part is parsed and its
+   * callback invoked on the executor, while the batch response is read further. At most {@link
+   * #getMaxPendingCallbacks()} callbacks are pending, after which reading blocks, except during
+   * {@link #executeAsync(Executor)} where further callbacks are invoked on the reading thread, so
+   * that the executor may be the same as the one executing the batch HTTP requests. If the executor
+   * rejects a callback, it is invoked on the reading thread. {@link #execute()} and the future
+   * returned by {@link #executeAsync(Executor)} complete once all callbacks are done, and fail with
+   * the first exception thrown by a callback, after which no further callbacks are invoked.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setCallbackExecutor(Executor callbackExecutor) {
+    this.callbackExecutor = callbackExecutor;
+    return this;
+  }
+
+  /**
+   * Returns whether callbacks invoked on the {@link #setCallbackExecutor callback executor} are
+   * invoked one at a time in the order of the responses.
+   *
+   * @since 1.33
+   */
+  public boolean getOrderedCallbacks() {
+    return orderedCallbacks;
+  }
+
+  /**
+   * Sets whether callbacks invoked on the {@link #setCallbackExecutor callback executor} are
+   * invoked one at a time in the order of the responses, that is by Content-ID within a batch HTTP
+   * request. Otherwise they may be invoked concurrently and in any order, so they must be
+   * thread-safe. The default value is {@code true}.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setOrderedCallbacks(boolean orderedCallbacks) {
+    this.orderedCallbacks = orderedCallbacks;
+    return this;
+  }
+
+  /**
+   * Returns the maximum number of callbacks pending on the {@link #setCallbackExecutor callback
+   * executor}.
+   *
+   * @since 1.33
+   */
+  public int getMaxPendingCallbacks() {
+    return maxPendingCallbacks;
+  }
+
+  /**
+   * Sets the maximum number of callbacks pending on the {@link #setCallbackExecutor callback
+   * executor}, after which reading the batch response blocks, or during {@link
+   * #executeAsync(Executor)} the reading thread invokes further callbacks itself. The default value
+   * is {@link #DEFAULT_MAX_PENDING_CALLBACKS}.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setMaxPendingCallbacks(int maxPendingCallbacks) {
+    Preconditions.checkArgument(maxPendingCallbacks > 0);
+    this.maxPendingCallbacks = maxPendingCallbacks;
+    return this;
+  }
+
+  /**
+   * Returns whether the body of batch HTTP requests is compressed with GZip.
+   *
+   * @since 1.33
+   */
+  public boolean getEnableGZipContent() {
+    return enableGZipContent;
+  }
+
+  /**
+   * Sets whether the body of batch HTTP requests is compressed with GZip. The default value is
+   * {@code false}.
+   *
+   * <p>The multipart body is compressed while it is written, so the batch HTTP request is sent
+   * without a Content-Length. This significantly reduces the request size of batches with large
+   * text content, like JSON inserts, but should only be enabled if the batch endpoint accepts a
+   * {@code Content-Encoding: gzip} request.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setEnableGZipContent(boolean enableGZipContent) {
+    this.enableGZipContent = enableGZipContent;
+    return this;
+  }
+
+  /**
+   * Returns whether queued requests are executed automatically once a threshold is crossed.
+   *
+   * @since 1.33
+   */
+  public boolean getAutoFlush() {
+    return autoFlush;
+  }
+
+  /**
+   * Sets whether queued requests are executed automatically once a threshold is crossed. The
+   * default value is {@code false}.
+   *
+   * <p>With auto-flush, {@link #queue} calls {@link #execute()} as soon as {@link
+   * #getMaxPartsPerBatch()} requests are queued, before the size of the queued requests would
+   * exceed {@link #getMaxBytesPerBatch()}, or once the oldest queued request has been queued for
+   * longer than {@link #getMaxLingerMillis()}. Executed requests are released right away, so that
+   * an unbounded number of requests can be streamed through this batch request with bounded
+   * memory. Call {@link #execute()} after queuing the last request to execute the remaining ones.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setAutoFlush(boolean autoFlush) {
+    this.autoFlush = autoFlush;
+    return this;
+  }
+
+  /**
+   * Returns the maximum size in bytes of a single batch HTTP request or {@code -1} for no limit.
+   *
+   * @since 1.33
+   */
+  public long getMaxBytesPerBatch() {
+    return maxBytesPerBatch;
+  }
+
+  /**
+   * Sets the maximum size in bytes of a single batch HTTP request or {@code -1} for no limit. The
+   * default value is {@code -1}.
+   *
+   * <p>Queued requests are split into several batch HTTP requests so that the parts of each of them
+   * do not exceed this size, except for a single part larger than this size, which is sent in a
+   * batch HTTP request of its own. The content of parts with an unknown length is not counted.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setMaxBytesPerBatch(long maxBytesPerBatch) {
+    Preconditions.checkArgument(maxBytesPerBatch > 0 || maxBytesPerBatch == -1);
+    this.maxBytesPerBatch = maxBytesPerBatch;
+    queuedBytes = -1;
+    return this;
+  }
+
+  /**
+   * Returns the maximum time in milliseconds a request stays queued with {@link #setAutoFlush
+   * auto-flush} or {@code -1} for no limit.
+   *
+   * @since 1.33
+   */
+  public long getMaxLingerMillis() {
+    return maxLingerMillis;
+  }
+
+  /**
+   * Sets the maximum time in milliseconds a request stays queued with {@link #setAutoFlush
+   * auto-flush} or {@code -1} for no limit. The default value is {@code -1}.
+   *
+   * <p>This limit is only checked when a request is queued, there is no background thread that
+   * executes lingering requests.
+   *
+   * @since 1.33
+   */
+  public BatchRequest setMaxLingerMillis(long maxLingerMillis) {
+    Preconditions.checkArgument(maxLingerMillis >= 0 || maxLingerMillis == -1);
+    this.maxLingerMillis = maxLingerMillis;
+    return this;
+  }
+
   /**
    * Queues the specified {@link HttpRequest} for batched execution. Batched requests are executed
-   * when {@link #execute()} is called.
+   * when {@link #execute()} is called, or earlier if {@link #setAutoFlush auto-flush} is enabled.
    *
    * @param <T> destination class type
    * @param <E> error class type
@@ -195,7 +638,8 @@ public final class BatchRequest {
    *     Void.class} to ignore the content
    * @param callback Batch Callback
    * @return this Batch request
-   * @throws IOException If building the HTTP Request fails
+   * @throws IOException If building the HTTP Request fails or executing queued requests with
+   *     auto-flush fails
    */
   public <T, E> BatchRequest queue(
       HttpRequest httpRequest,
@@ -204,12 +648,70 @@ public final class BatchRequest {
       BatchCallback<T, E> callback)
       throws IOException {
     Preconditions.checkNotNull(httpRequest);
-    // TODO(rmistry): Add BatchUnparsedCallback with onResponse(InputStream content, HttpHeaders).
     Preconditions.checkNotNull(callback);
     Preconditions.checkNotNull(dataClass);
     Preconditions.checkNotNull(errorClass);
 
-    requestInfos.add(new RequestInfo<T, E>(callback, dataClass, errorClass, httpRequest));
+    return queue(new RequestInfo<T, E>(callback, dataClass, errorClass, httpRequest));
+  }
+
+  /**
+   * Queues the specified {@link HttpRequest} for batched execution, with a callback that receives
+   * the raw response content instead of a parsed data model instance. Batched requests are executed
+   * when {@link #execute()} is called, or earlier if {@link #setAutoFlush auto-flush} is enabled.
+   *
+   * <p>The response content is not parsed at all, which avoids the cost of binding it to a data
+   * class if it is only forwarded. Unsuccessful responses are retried in the same way as for
+   * {@link #queue(HttpRequest, Class, Class, BatchCallback)}.
+   *
+   * @param httpRequest HTTP Request
+   * @param callback Batch unparsed callback
+   * @return this Batch request
+   * @throws IOException If building the HTTP Request fails or executing queued requests with
+   *     auto-flush fails
+   * @since 1.33
+   */
+  public BatchRequest queue(HttpRequest httpRequest, BatchUnparsedCallback callback)
+      throws IOException {
+    Preconditions.checkNotNull(httpRequest);
+    Preconditions.checkNotNull(callback);
+
+    return queue(
+        new RequestInfo<Void, Void>(null, callback, Void.class, Void.class, httpRequest));
+  }
+
+  /** Queues the given request info, executing the queued requests first if needed. */
+  private BatchRequest queue(RequestInfo<?, ?> requestInfo) throws IOException {
+    long length = 0;
+    if (maxBytesPerBatch != -1) {
+      length = getPartLength(requestInfo);
+      if (queuedBytes == -1) {
+        queuedBytes = 0;
+        for (RequestInfo<?, ?> queuedRequestInfo : requestInfos) {
+          queuedBytes += getPartLength(queuedRequestInfo);
+        }
+      }
+    }
+    if (autoFlush
+        && maxBytesPerBatch != -1
+        && !requestInfos.isEmpty()
+        && queuedBytes + length > maxBytesPerBatch) {
+      // flush first so that the batch HTTP request does not exceed the maximum size
+      execute();
+    }
+    if (requestInfos.isEmpty()) {
+      firstQueuedNanos = nanoClock.nanoTime();
+    }
+    requestInfos.add(requestInfo);
+    queuedBytes += length;
+    if (autoFlush
+        && (requestInfos.size() >= maxPartsPerBatch
+            || maxBytesPerBatch != -1 && queuedBytes >= maxBytesPerBatch
+            || maxLingerMillis != -1
+                && nanoClock.nanoTime() - firstQueuedNanos
+                    >= TimeUnit.MILLISECONDS.toNanos(maxLingerMillis))) {
+      execute();
+    }
     return this;
   }
 
@@ -221,48 +723,267 @@ public final class BatchRequest {
   /**
    * Executes all queued HTTP requests in a single call, parses the responses and invokes callbacks.
    *
+   * <p>If more than {@link #getMaxPartsPerBatch()} requests are queued, they are split into several
+   * batch HTTP requests which are executed one after the other.
+   *
+   * <p>If a {@link #setBackOff back-off policy} is set, parts that require back-off are retried in
+   * further rounds after sleeping with the {@link #getSleeper() sleeper}.
+   *
    * <p>Calling {@link #execute()} executes and clears the queued requests. This means that the
    * {@link BatchRequest} object can be reused to {@link #queue} and {@link #execute()} requests
    * again.
    */
   public void execute() throws IOException {
-    boolean retryAllowed;
     Preconditions.checkState(!requestInfos.isEmpty());
+    warnIfGlobalBatchEndpoint();
 
-    // Log a warning if the user is using the global batch endpoint. In the future, we can turn this
-    // into a preconditions check.
+    BackOff executionBackOff = newExecutionBackOff();
+    resetBackOff(executionBackOff);
+    CallbackDispatcher callbackDispatcher = newCallbackDispatcher(false);
+    List<RequestInfo<?, ?>> pendingRequestInfos = requestInfos;
+    while (true) {
+      long backOffMillis = nextBackOffMillis(executionBackOff);
+      List<RequestInfo<?, ?>> backOffRequestInfos = new ArrayList<RequestInfo<?, ?>>();
+      for (List<RequestInfo<?, ?>> partition : partition(pendingRequestInfos)) {
+        backOffRequestInfos.addAll(
+            executeBatch(partition, backOffMillis != BackOff.STOP, callbackDispatcher));
+      }
+      if (backOffRequestInfos.isEmpty()) {
+        break;
+      }
+      sleepBeforeRetry(backOffMillis, backOffRequestInfos);
+      pendingRequestInfos = backOffRequestInfos;
+    }
+    if (callbackDispatcher != null) {
+      callbackDispatcher.awaitCompletion();
+    }
+    requestInfos.clear();
+    queuedBytes = 0;
+  }
+
+  /**
+   * Executes all queued HTTP requests asynchronously on the given executor, parses the responses
+   * and invokes callbacks.
+   *
+   * <p>The queued requests are split into batch HTTP requests of at most {@link
+   * #getMaxPartsPerBatch()} requests each, and at most {@link #getMaxConcurrentBatches()} of them
+   * are in flight at the same time. Callbacks of requests in different batch HTTP requests may be
+   * invoked concurrently from different threads of the executor, so they must be thread-safe.
+   *
+   * <p>The queued requests are cleared when this method returns, so the {@link BatchRequest}
+   * object can be reused to {@link #queue} new requests right away. The returned future completes
+   * when all batch HTTP requests are done, or fails with the first exception thrown while
+   * executing one of them, in which case no further batch HTTP requests are started. Cancelling the
+   * returned future also prevents further batch HTTP requests from being started.
+   *
+   * <p>If a {@link #setBackOff back-off policy} is set, parts that require back-off are retried in
+   * further rounds once all batch HTTP requests of the current round are done. The back-off delay
+   * is slept on a thread of the executor.
+   *
+   * <p>Several asynchronous executions may run at the same time. They share the {@link
+   * #getRetryStats() retry statistics} and the {@link #getListener() listener}, but each one backs
+   * off on its own, as described in {@link #setBackOff(BackOff)}.
+   *
+   * @param executor executor that executes the batch HTTP requests
+   * @return future that completes when all queued requests have been executed
+   * @since 1.33
+   */
+  public ListenableFuture<Void> executeAsync(Executor executor) {
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkState(!requestInfos.isEmpty());
+    warnIfGlobalBatchEndpoint();
+
+    BackOff executionBackOff = newExecutionBackOff();
+    AsyncExecution execution = new AsyncExecution(executor, executionBackOff);
+    if (executionBackOff != null && executionBackOff == backOff) {
+      sharedBackOffExecution = execution;
+    }
+    List<RequestInfo<?, ?>> queuedRequestInfos = requestInfos;
+    requestInfos = new ArrayList<RequestInfo<?, ?>>();
+    queuedBytes = 0;
+    execution.start(queuedRequestInfos);
+    return execution.result;
+  }
+
+  // Log a warning if the user is using the global batch endpoint. In the future, we can turn this
+  // into a preconditions check.
+  private void warnIfGlobalBatchEndpoint() {
     if (GLOBAL_BATCH_ENDPOINT.equals(this.batchUrl.toString())) {
       LOGGER.log(Level.WARNING, GLOBAL_BATCH_ENDPOINT_WARNING);
     }
+  }
+
+  /**
+   * Splits the given request infos into lists of at most {@link #maxPartsPerBatch} elements and,
+   * if set, at most {@link #maxBytesPerBatch} bytes.
+   */
+  private List<List<RequestInfo<?, ?>>> partition(List<RequestInfo<?, ?>> requestInfos)
+      throws IOException {
+    List<List<RequestInfo<?, ?>>> partitions = new ArrayList<List<RequestInfo<?, ?>>>();
+    List<RequestInfo<?, ?>> partition = new ArrayList<RequestInfo<?, ?>>();
+    long partitionBytes = 0;
+    for (RequestInfo<?, ?> requestInfo : requestInfos) {
+      long length = maxBytesPerBatch == -1 ? 0 : getPartLength(requestInfo);
+      if (!partition.isEmpty()
+          && (partition.size() == maxPartsPerBatch
+              || maxBytesPerBatch != -1 && partitionBytes + length > maxBytesPerBatch)) {
+        partitions.add(partition);
+        partition = new ArrayList<RequestInfo<?, ?>>();
+        partitionBytes = 0;
+      }
+      partition.add(requestInfo);
+      partitionBytes += length;
+    }
+    if (!partition.isEmpty()) {
+      partitions.add(partition);
+    }
+    return partitions;
+  }
+
+  /**
+   * Returns the size in bytes of the part of the given request info in a batch HTTP request, not
+   * counting content of unknown length.
+   */
+  private static long getPartLength(RequestInfo<?, ?> requestInfo) throws IOException {
+    if (requestInfo.length == -1) {
+      requestInfo.length = Math.max(0, requestInfo.content.getLength());
+    }
+    return requestInfo.length;
+  }
+
+  /**
+   * Returns a new callback dispatcher or {@code null} if there is no callback executor.
+   *
+   * @param callerRuns whether the thread reading the batch response invokes callbacks itself
+   *     instead of blocking while the maximum number of callbacks are pending
+   */
+  private CallbackDispatcher newCallbackDispatcher(boolean callerRuns) {
+    return callbackExecutor == null
+        ? null
+        : new CallbackDispatcher(
+            callbackExecutor, orderedCallbacks, maxPendingCallbacks, callerRuns);
+  }
+
+  /**
+   * Returns the back-off policy for a new execution or {@code null} if unsuccessful parts are not
+   * retried with back-off.
+   *
+   * <p>An {@link ExponentialBackOff} is copied, so that the policy of one execution is not reset or
+   * advanced by another one. Other policies cannot be copied and are returned as is, provided that
+   * no asynchronous execution is still using them.
+   */
+  private BackOff newExecutionBackOff() {
+    if (backOff instanceof ExponentialBackOff) {
+      ExponentialBackOff exponentialBackOff = (ExponentialBackOff) backOff;
+      return new ExponentialBackOff.Builder()
+          .setInitialIntervalMillis(exponentialBackOff.getInitialIntervalMillis())
+          .setRandomizationFactor(exponentialBackOff.getRandomizationFactor())
+          .setMultiplier(exponentialBackOff.getMultiplier())
+          .setMaxIntervalMillis(exponentialBackOff.getMaxIntervalMillis())
+          .setMaxElapsedTimeMillis(exponentialBackOff.getMaxElapsedTimeMillis())
+          .build();
+    }
+    Preconditions.checkState(
+        backOff == null
+            || sharedBackOffExecution == null
+            || sharedBackOffExecution.result.isDone(),
+        "the back-off policy is still used by a previous asynchronous execution");
+    return backOff;
+  }
+
+  private static void resetBackOff(BackOff backOff) throws IOException {
+    if (backOff != null) {
+      backOff.reset();
+    }
+  }
+
+  /**
+   * Returns the back-off delay before the round after the next one or {@link BackOff#STOP} if there
+   * must not be such a round.
+   */
+  private static long nextBackOffMillis(BackOff backOff) throws IOException {
+    return backOff == null ? BackOff.STOP : backOff.nextBackOffMillis();
+  }
+
+  /**
+   * Sleeps for the given back-off delay or the longest delay requested by the Retry-After header of
+   * one of the given request infos, whichever is longer.
+   */
+  private void sleepBeforeRetry(long backOffMillis, List<RequestInfo<?, ?>> requestInfos)
+      throws IOException {
+    long delayMillis = backOffMillis;
+    for (RequestInfo<?, ?> requestInfo : requestInfos) {
+      delayMillis = Math.max(delayMillis, requestInfo.retryAfterMillis);
+    }
+    listener.onBackOffRound(requestInfos.size(), delayMillis);
+    try {
+      sleeper.sleep(delayMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while backing off before retrying batch parts", e);
+    }
+  }
 
+  /**
+   * Executes the given HTTP requests in a single batch HTTP request, retrying the unsuccessful
+   * ones, parses the responses and invokes callbacks.
+   *
+   * @param requestInfos request infos to execute
+   * @param backOffAllowed whether unsuccessful HTTP requests may be retried in a back-off round
+   * @param callbackDispatcher dispatcher of callbacks or {@code null} to invoke them right away
+   * @return request infos of the unsuccessful HTTP requests to retry in a back-off round
+   */
+  private List<RequestInfo<?, ?>> executeBatch(
+      List<RequestInfo<?, ?>> requestInfos,
+      boolean backOffAllowed,
+      CallbackDispatcher callbackDispatcher)
+      throws IOException {
+    List<RequestInfo<?, ?>> backOffRequestInfos = new ArrayList<RequestInfo<?, ?>>();
+    boolean retryAllowed;
     HttpRequest batchRequest = requestFactory.buildPostRequest(this.batchUrl, null);
-    // NOTE: batch does not support gzip encoding
+    if (enableGZipContent) {
+      // the body is compressed while it is streamed; individual parts are never compressed
+      batchRequest.setEncoding(new GZipEncoding());
+    }
     HttpExecuteInterceptor originalInterceptor = batchRequest.getInterceptor();
-    batchRequest.setInterceptor(new BatchInterceptor(originalInterceptor));
+    BatchInterceptor batchInterceptor = new BatchInterceptor(originalInterceptor);
+    batchRequest.setInterceptor(batchInterceptor);
     int retriesRemaining = batchRequest.getNumberOfRetries();
 
     do {
       retryAllowed = retriesRemaining > 0;
-      MultipartContent batchContent = new MultipartContent();
-      batchContent.getMediaType().setSubType("mixed");
-      int contentId = 1;
+      batchInterceptor.requestInfos = requestInfos;
+      List<HttpRequestContent> parts = new ArrayList<HttpRequestContent>(requestInfos.size());
       for (RequestInfo<?, ?> requestInfo : requestInfos) {
-        batchContent.addPart(
-            new MultipartContent.Part(
-                new HttpHeaders().setAcceptEncoding(null).set("Content-ID", contentId++),
-                new HttpRequestContent(requestInfo.request)));
+        if (requestInfo.rounds++ == 0) {
+          // the request may have been modified since it was queued
+          requestInfo.content.invalidate();
+        }
+        parts.add(requestInfo.content);
       }
+      BatchContent batchContent = new BatchContent(parts);
       batchRequest.setContent(batchContent);
+      long startNanos = nanoClock.nanoTime();
       HttpResponse response = batchRequest.execute();
       BatchUnparsedResponse batchResponse;
+      CountingInputStream contentStream;
       try {
         // Find the boundary from the Content-Type header.
         String boundary = "--" + response.getMediaType().getParameter("boundary");
 
-        // Parse the content stream.
-        InputStream contentStream = new BufferedInputStream(response.getContent());
+        // Parse the content stream. BatchUnparsedResponse does its own buffering.
+        contentStream = new CountingInputStream(response.getContent());
         batchResponse =
-            new BatchUnparsedResponse(contentStream, boundary, requestInfos, retryAllowed);
+            new BatchUnparsedResponse(
+                contentStream,
+                boundary,
+                requestInfos,
+                retryAllowed,
+                backOffAllowed ? backOffRequired : null,
+                retryStats,
+                callbackDispatcher,
+                listener,
+                nanoClock);
 
         while (batchResponse.hasNext) {
           batchResponse.parseNextResponse();
@@ -270,26 +991,168 @@ public final class BatchRequest {
       } finally {
         response.disconnect();
       }
+      listener.onBatchCompleted(
+          parts.size(),
+          batchContent.getLength(),
+          contentStream.count,
+          nanoClock.nanoTime() - startNanos);
 
+      backOffRequestInfos.addAll(batchResponse.backOffRequestInfos);
       List<RequestInfo<?, ?>> unsuccessfulRequestInfos = batchResponse.unsuccessfulRequestInfos;
       if (!unsuccessfulRequestInfos.isEmpty()) {
+        // the unsuccessful response handler or a redirect may have modified the requests
+        for (RequestInfo<?, ?> requestInfo : unsuccessfulRequestInfos) {
+          requestInfo.content.invalidate();
+        }
         requestInfos = unsuccessfulRequestInfos;
       } else {
         break;
       }
       retriesRemaining--;
     } while (retryAllowed);
-    requestInfos.clear();
+    return backOffRequestInfos;
+  }
+
+  /**
+   * Asynchronous execution of partitioned request infos, which keeps at most {@link
+   * #maxConcurrentBatches} batch HTTP requests in flight and starts a back-off round once all batch
+   * HTTP requests of the current round are done.
+   */
+  private final class AsyncExecution {
+
+    /** Executor that executes the batch HTTP requests. */
+    private final Executor executor;
+
+    /** Partitions of request infos of the current round that have not been started yet. */
+    private final Queue<List<RequestInfo<?, ?>>> pendingPartitions =
+        new ConcurrentLinkedQueue<List<RequestInfo<?, ?>>>();
+
+    /** Number of partitions of the current round that have not completed yet. */
+    private final AtomicInteger remainingPartitions = new AtomicInteger();
+
+    /** Request infos collected in the current round to retry in a back-off round. */
+    private final Queue<RequestInfo<?, ?>> backOffRequestInfos =
+        new ConcurrentLinkedQueue<RequestInfo<?, ?>>();
+
+    /** Back-off policy of this execution or {@code null} to not retry parts with back-off. */
+    private final BackOff backOff;
+
+    /** Back-off delay before the next round or {@link BackOff#STOP} for no further round. */
+    private volatile long backOffMillis;
+
+    /**
+     * Dispatcher of callbacks or {@code null} to invoke them right away. The batch response is read
+     * on a thread of {@link #executor}, which may also be the callback executor, so that thread
+     * invokes callbacks itself instead of blocking.
+     */
+    private final CallbackDispatcher callbackDispatcher = newCallbackDispatcher(true);
+
+    /** Future completed when all partitions have been executed. */
+    final SettableFuture<Void> result = SettableFuture.create();
+
+    AsyncExecution(Executor executor, BackOff backOff) {
+      this.executor = executor;
+      this.backOff = backOff;
+    }
+
+    void start(List<RequestInfo<?, ?>> requestInfos) {
+      try {
+        resetBackOff(backOff);
+        startRound(requestInfos);
+      } catch (IOException e) {
+        result.setException(e);
+      }
+    }
+
+    private void startRound(List<RequestInfo<?, ?>> requestInfos) throws IOException {
+      backOffMillis = nextBackOffMillis(backOff);
+      List<List<RequestInfo<?, ?>>> partitions = partition(requestInfos);
+      pendingPartitions.addAll(partitions);
+      remainingPartitions.set(partitions.size());
+      int concurrency = Math.min(maxConcurrentBatches, partitions.size());
+      for (int i = 0; i < concurrency; i++) {
+        executeNext();
+      }
+    }
+
+    /** Starts the next pending partition, unless the execution has failed or was cancelled. */
+    private void executeNext() {
+      if (result.isDone()) {
+        return;
+      }
+      final List<RequestInfo<?, ?>> partition = pendingPartitions.poll();
+      if (partition == null) {
+        return;
+      }
+      try {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  backOffRequestInfos.addAll(
+                      executeBatch(
+                          partition, backOffMillis != BackOff.STOP, callbackDispatcher));
+                } catch (Throwable t) {
+                  result.setException(t);
+                  return;
+                }
+                if (remainingPartitions.decrementAndGet() == 0) {
+                  completeRound();
+                } else {
+                  executeNext();
+                }
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        result.setException(e);
+      }
+    }
+
+    /** Completes the execution or starts a back-off round after all partitions are done. */
+    private void completeRound() {
+      if (backOffRequestInfos.isEmpty()) {
+        if (callbackDispatcher != null) {
+          // the callbacks may be pending on this very executor, so don't block waiting for them
+          result.setFuture(callbackDispatcher.close());
+        } else {
+          result.set(null);
+        }
+        return;
+      }
+      final List<RequestInfo<?, ?>> retryRequestInfos =
+          new ArrayList<RequestInfo<?, ?>>(backOffRequestInfos);
+      backOffRequestInfos.clear();
+      try {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  sleepBeforeRetry(backOffMillis, retryRequestInfos);
+                  startRound(retryRequestInfos);
+                } catch (Throwable t) {
+                  result.setException(t);
+                }
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        result.setException(e);
+      }
+    }
   }
 
   /**
    * Batch HTTP request execute interceptor that loops through all individual HTTP requests and runs
    * their interceptors.
    */
-  class BatchInterceptor implements HttpExecuteInterceptor {
+  static class BatchInterceptor implements HttpExecuteInterceptor {
 
     private HttpExecuteInterceptor originalInterceptor;
 
+    /** Request infos of the current batch HTTP request. */
+    List<RequestInfo<?, ?>> requestInfos;
+
     BatchInterceptor(HttpExecuteInterceptor originalInterceptor) {
       this.originalInterceptor = originalInterceptor;
     }
@@ -298,12 +1161,63 @@ public final class BatchRequest {
       if (originalInterceptor != null) {
         originalInterceptor.intercept(batchRequest);
       }
+      boolean invalidated = false;
       for (RequestInfo<?, ?> requestInfo : requestInfos) {
         HttpExecuteInterceptor interceptor = requestInfo.request.getInterceptor();
         if (interceptor != null) {
           interceptor.intercept(requestInfo.request);
+          // serialize the part again in case the interceptor modified the request
+          requestInfo.content.invalidate();
+          invalidated = true;
         }
       }
+      // the batch HTTP request may be retried with the same content, whose part headers and length
+      // depend on the parts
+      HttpContent content = batchRequest.getContent();
+      if (invalidated && content instanceof BatchContent) {
+        ((BatchContent) content).invalidate();
+      }
+    }
+  }
+
+  /** Input stream that counts the bytes read from the underlying stream. */
+  private static final class CountingInputStream extends FilterInputStream {
+
+    /** Number of bytes read. */
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
     }
   }
 }
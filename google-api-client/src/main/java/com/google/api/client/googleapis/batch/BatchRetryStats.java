@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Statistics about the number of rounds the parts of a {@link BatchRequest} took.
+ *
+ * <p>A round is one batch HTTP request a part was sent in, so a part that succeeded or failed
+ * without being retried took one round. Parts are recorded once their callback has been invoked or
+ * they were no longer retried.
+ *
+ * <p>Implementation is thread-safe.
+ *
+ * @since 1.33
+ */
+public final class BatchRetryStats {
+
+  /** Number of parts by number of rounds. */
+  private final SortedMap<Integer, Integer> roundsHistogram = new TreeMap<Integer, Integer>();
+
+  /** Total number of recorded parts. */
+  private int partCount;
+
+  /** Records a part that took the given number of rounds. */
+  synchronized void record(int rounds) {
+    Integer count = roundsHistogram.get(rounds);
+    roundsHistogram.put(rounds, count == null ? 1 : count + 1);
+    partCount++;
+  }
+
+  /** Returns the total number of recorded parts. */
+  public synchronized int getPartCount() {
+    return partCount;
+  }
+
+  /** Returns the number of recorded parts that took more than one round. */
+  public synchronized int getRetriedPartCount() {
+    Integer once = roundsHistogram.get(1);
+    return partCount - (once == null ? 0 : once);
+  }
+
+  /** Returns the largest number of rounds a recorded part took or {@code 0} for none. */
+  public synchronized int getMaxRounds() {
+    return roundsHistogram.isEmpty() ? 0 : roundsHistogram.lastKey();
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the number of recorded parts keyed by the number of rounds
+   * they took.
+   */
+  public synchronized SortedMap<Integer, Integer> getRoundsHistogram() {
+    return Collections.unmodifiableSortedMap(new TreeMap<Integer, Integer>(roundsHistogram));
+  }
+}
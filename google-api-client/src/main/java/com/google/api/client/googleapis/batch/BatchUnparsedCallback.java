@@ -0,0 +1,56 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.http.HttpHeaders;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Callback for an individual batch response that receives the raw response content instead of a
+ * parsed data model instance.
+ *
+ * <p>Sample use:
+ *
+ * <pre>
+ * batch.queue(volumesList.buildHttpRequest(), new BatchUnparsedCallback() {
+ *
+ * public void onResponse(int statusCode, HttpHeaders responseHeaders, InputStream content)
+ * throws IOException {
+ * forward(statusCode, ByteStreams.toByteArray(content));
+ * }
+ * });
+ * </pre>
+ *
+ * @since 1.33
+ */
+public interface BatchUnparsedCallback {
+
+  /**
+   * Called for the individual batch response, whether successful or not.
+   *
+   * <p>The content stream is a view of the batch response stream that ends with the individual
+   * response. It is only valid until this method returns and need not be closed or read to the
+   * end. Like {@link com.google.api.client.http.HttpResponse#getContent()}, it is decoded if the
+   * individual response has a GZip Content-Encoding, unless the request asks for the raw input
+   * stream.
+   *
+   * @param statusCode status code of the individual response
+   * @param responseHeaders headers of the individual response
+   * @param content content of the individual response
+   */
+  void onResponse(int statusCode, HttpHeaders responseHeaders, InputStream content)
+      throws IOException;
+}
@@ -18,6 +18,7 @@ import com.google.api.client.googleapis.batch.BatchRequest.RequestInfo;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMediaType;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
@@ -25,14 +26,22 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
 import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.http.LowLevelHttpResponse;
-import com.google.api.client.util.ByteStreams;
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.NanoClock;
+import com.google.common.io.ByteStreams;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The unparsed batch response.
@@ -47,8 +56,8 @@ final class BatchUnparsedResponse {
   /** List of request infos. */
   private final List<RequestInfo<?, ?>> requestInfos;
 
-  /** Input stream that contains the batch response. */
-  private final InputStream inputStream;
+  /** Reader of the multipart stream that contains the batch response. */
+  private final MultipartReader reader;
 
   /** Determines whether there are any responses to be parsed. */
   boolean hasNext = true;
@@ -59,9 +68,30 @@ final class BatchUnparsedResponse {
   /** The content Id the response is currently at. */
   private int contentId = 0;
 
+  /** List of unsuccessful HTTP requests that should be retried with back-off. */
+  List<RequestInfo<?, ?>> backOffRequestInfos = new ArrayList<RequestInfo<?, ?>>();
+
   /** Whether unsuccessful HTTP requests can be retried. */
   private final boolean retryAllowed;
 
+  /**
+   * Determines which unsuccessful HTTP requests are retried with back-off or {@code null} if no
+   * further back-off round is allowed.
+   */
+  private final BatchBackOffRequired backOffRequired;
+
+  /** Statistics to record completed HTTP requests in. */
+  private final BatchRetryStats retryStats;
+
+  /** Dispatcher of callbacks or {@code null} to invoke them on the reading thread. */
+  private final CallbackDispatcher callbackDispatcher;
+
+  /** Listener for metrics about the parts. */
+  private final BatchListener listener;
+
+  /** Nano clock used to measure the parse time of the parts. */
+  private final NanoClock nanoClock;
+
   /**
    * Construct the {@link BatchUnparsedResponse}.
    *
@@ -69,17 +99,34 @@ final class BatchUnparsedResponse {
    * @param boundary The boundary of the batch response
    * @param requestInfos List of request infos
    * @param retryAllowed Whether unsuccessful HTTP requests can be retried
+   * @param backOffRequired Determines which unsuccessful HTTP requests are retried with back-off or
+   *     {@code null} if no further back-off round is allowed
+   * @param retryStats Statistics to record completed HTTP requests in
+   * @param callbackDispatcher Dispatcher of callbacks or {@code null} to invoke them on the reading
+   *     thread
+   * @param listener Listener for metrics about the parts
+   * @param nanoClock Nano clock used to measure the parse time of the parts
    */
   BatchUnparsedResponse(
       InputStream inputStream,
       String boundary,
       List<RequestInfo<?, ?>> requestInfos,
-      boolean retryAllowed)
+      boolean retryAllowed,
+      BatchBackOffRequired backOffRequired,
+      BatchRetryStats retryStats,
+      CallbackDispatcher callbackDispatcher,
+      BatchListener listener,
+      NanoClock nanoClock)
       throws IOException {
     this.boundary = boundary;
     this.requestInfos = requestInfos;
     this.retryAllowed = retryAllowed;
-    this.inputStream = inputStream;
+    this.backOffRequired = backOffRequired;
+    this.retryStats = retryStats;
+    this.callbackDispatcher = callbackDispatcher;
+    this.listener = listener;
+    this.nanoClock = nanoClock;
+    this.reader = new MultipartReader(inputStream, boundary);
     // First line in the stream will be the boundary.
     checkForFinalBoundary(readLine());
   }
@@ -110,9 +157,9 @@ final class BatchUnparsedResponse {
     List<String> headerValues = new ArrayList<String>();
     long contentLength = -1L;
     while ((line = readLine()) != null && !line.equals("")) {
-      String[] headerParts = line.split(": ", 2);
-      String headerName = headerParts[0];
-      String headerValue = headerParts[1];
+      int separator = line.indexOf(": ");
+      String headerName = line.substring(0, separator);
+      String headerValue = line.substring(separator + 2);
       headerNames.add(headerName);
       headerValues.add(headerValue);
       if ("Content-Length".equalsIgnoreCase(headerName.trim())) {
@@ -120,42 +167,17 @@ final class BatchUnparsedResponse {
       }
     }
 
-    InputStream body;
-    if (contentLength == -1) {
-      // This isn't very efficient, but most respectable servers should set the Content-Length
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      while ((line = readRawLine()) != null && !line.startsWith(boundary)) {
-        // Convert characters back to bytes:
-        buffer.write(line.getBytes("ISO-8859-1"));
-      }
-
-      // Remove CRLF that separates body from boundary token
-      body = trimCrlf(buffer.toByteArray());
+    // The body is a bounded view of the response stream. If the Content-Length is unknown, the view
+    // ends before the next boundary line.
+    InputStream body = reader.openBody(contentLength);
 
-      // Remove CRLF from the boundary token (to match readLine)
-      line = trimCrlf(line);
-    } else {
-      body =
-          new FilterInputStream(ByteStreams.limit(inputStream, contentLength)) {
-            @Override
-            public void close() {
-              // Don't allow the parser to close the underlying stream
-            }
-          };
-    }
-
-    HttpResponse response = getFakeResponse(statusCode, body, headerNames, headerValues);
-
-    parseAndCallback(requestInfos.get(contentId - 1), statusCode, response);
+    parseAndCallback(
+        requestInfos.get(contentId - 1), statusCode, body, headerNames, headerValues);
 
     // Consume any bytes that were not consumed by the parser
-    while (body.skip(contentLength) > 0 || body.read() != -1) {}
+    while (body.skip(Long.MAX_VALUE) > 0 || body.read() != -1) {}
 
-    if (contentLength != -1) {
-      line = readLine();
-    } else {
-      // The line was already read
-    }
+    line = readLine();
     // Consume any blank lines that follow the response (not included in Content-Length)
     while ((line != null) && (line.length() == 0)) {
       line = readLine();
@@ -165,65 +187,215 @@ final class BatchUnparsedResponse {
   }
 
   /**
-   * Parse an object into a new instance of the data class using {@link
-   * HttpResponse#parseAs(java.lang.reflect.Type)}.
+   * Parses the part body into a new instance of the data or error class and invokes the callback,
+   * or hands the part body to the {@link BatchUnparsedCallback} as is.
+   *
+   * <p>The status code, headers and body of the part are handed directly to the request's {@link
+   * com.google.api.client.util.ObjectParser}. A full {@link HttpResponse} is only created if the
+   * part failed and the request has an {@link HttpUnsuccessfulResponseHandler}, since that
+   * interface requires one.
+   *
+   * <p>Unsuccessful HTTP requests that are not retried right away by the unsuccessful response
+   * handler or a redirect may be collected for a later back-off round instead.
    */
   private <T, E> void parseAndCallback(
-      RequestInfo<T, E> requestInfo, int statusCode, HttpResponse response) throws IOException {
-    BatchCallback<T, E> callback = requestInfo.callback;
-
-    HttpHeaders responseHeaders = response.getHeaders();
-    HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler =
-        requestInfo.request.getUnsuccessfulResponseHandler();
-
+      RequestInfo<T, E> requestInfo,
+      int statusCode,
+      InputStream body,
+      List<String> headerNames,
+      List<String> headerValues)
+      throws IOException {
+    listener.onPartReceived(statusCode, requestInfo.rounds);
     if (HttpStatusCodes.isSuccess(statusCode)) {
-      if (callback == null) {
+      retryStats.record(requestInfo.rounds);
+      if (requestInfo.callback == null && requestInfo.unparsedCallback == null) {
         // No point in parsing if there is no callback.
         return;
       }
-      T parsed = getParsedDataClass(requestInfo.dataClass, response, requestInfo);
-      callback.onSuccess(parsed, responseHeaders);
+      HttpHeaders responseHeaders = parseHeaders(headerNames, headerValues);
+      invokeCallback(requestInfo, statusCode, responseHeaders, body);
     } else {
+      HttpHeaders responseHeaders = parseHeaders(headerNames, headerValues);
+      HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler =
+          requestInfo.request.getUnsuccessfulResponseHandler();
       HttpContent content = requestInfo.request.getContent();
       boolean retrySupported = retryAllowed && (content == null || content.retrySupported());
       boolean errorHandled = false;
       boolean redirectRequest = false;
       if (unsuccessfulResponseHandler != null) {
+        HttpResponse response = getFakeResponse(statusCode, body, headerNames, headerValues);
         errorHandled =
             unsuccessfulResponseHandler.handleResponse(
                 requestInfo.request, response, retrySupported);
       }
       if (!errorHandled) {
-        if (requestInfo.request.handleRedirect(response.getStatusCode(), response.getHeaders())) {
+        if (requestInfo.request.handleRedirect(statusCode, responseHeaders)) {
           redirectRequest = true;
         }
       }
       if (retrySupported && (errorHandled || redirectRequest)) {
         unsuccessfulRequestInfos.add(requestInfo);
+      } else if (backOffRequired != null
+          && (content == null || content.retrySupported())
+          && backOffRequired.isRequired(statusCode, responseHeaders)) {
+        requestInfo.retryAfterMillis = getRetryAfterMillis(responseHeaders);
+        backOffRequestInfos.add(requestInfo);
       } else {
-        if (callback == null) {
-          // No point in parsing if there is no callback.
-          return;
-        }
-        E parsed = getParsedDataClass(requestInfo.errorClass, response, requestInfo);
-        callback.onFailure(parsed, responseHeaders);
+        retryStats.record(requestInfo.rounds);
+        invokeCallback(requestInfo, statusCode, responseHeaders, body);
       }
     }
   }
 
+  /**
+   * Invokes the callback of the given request info, either right away or, if there is a {@link
+   * CallbackDispatcher}, on its executor with a copy of the part body.
+   */
+  private <T, E> void invokeCallback(
+      final RequestInfo<T, E> requestInfo,
+      final int statusCode,
+      final HttpHeaders responseHeaders,
+      InputStream body)
+      throws IOException {
+    if (callbackDispatcher == null) {
+      deliver(requestInfo, statusCode, responseHeaders, body);
+      return;
+    }
+    // the part body must be read before the next part, so hand a copy to the executor
+    final byte[] content = ByteStreams.toByteArray(body);
+    callbackDispatcher.dispatch(
+        new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            deliver(requestInfo, statusCode, responseHeaders, new ByteArrayInputStream(content));
+            return null;
+          }
+        });
+  }
+
+  /** Parses the part body if needed and calls the callback of the given request info. */
+  private <T, E> void deliver(
+      RequestInfo<T, E> requestInfo, int statusCode, HttpHeaders responseHeaders, InputStream body)
+      throws IOException {
+    if (requestInfo.unparsedCallback != null) {
+      requestInfo.unparsedCallback.onResponse(
+          statusCode, responseHeaders, decodeContent(requestInfo.request, responseHeaders, body));
+      return;
+    }
+    BatchCallback<T, E> callback = requestInfo.callback;
+    if (callback == null) {
+      // No point in parsing if there is no callback.
+      return;
+    }
+    if (HttpStatusCodes.isSuccess(statusCode)) {
+      T parsed =
+          getParsedDataClass(
+              requestInfo.dataClass, statusCode, body, responseHeaders, requestInfo);
+      callback.onSuccess(parsed, responseHeaders);
+    } else {
+      E parsed =
+          getParsedDataClass(
+              requestInfo.errorClass, statusCode, body, responseHeaders, requestInfo);
+      callback.onFailure(parsed, responseHeaders);
+    }
+  }
+
   private <A, T, E> A getParsedDataClass(
-      Class<A> dataClass, HttpResponse response, RequestInfo<T, E> requestInfo) throws IOException {
-    // TODO(yanivi): Remove the HttpResponse reference and directly parse the InputStream
+      Class<A> dataClass,
+      int statusCode,
+      InputStream body,
+      HttpHeaders responseHeaders,
+      RequestInfo<T, E> requestInfo)
+      throws IOException {
     if (dataClass == Void.class) {
       return null;
     }
-    return requestInfo
-        .request
-        .getParser()
-        .parseAndClose(response.getContent(), response.getContentCharset(), dataClass);
+    long startNanos = nanoClock.nanoTime();
+    A parsed =
+        requestInfo
+            .request
+            .getParser()
+            .parseAndClose(
+                decodeContent(requestInfo.request, responseHeaders, body),
+                getContentCharset(responseHeaders.getContentType()),
+                dataClass);
+    listener.onPartParsed(statusCode, nanoClock.nanoTime() - startNanos);
+    return parsed;
   }
 
-  /** Create a fake HTTP response object populated with the partContent and the statusCode. */
+  /**
+   * Returns the part body decoded according to the Content-Encoding of the part, consistent with
+   * {@link HttpResponse#getContent()}, unless the request asks for the {@link
+   * HttpRequest#getResponseReturnRawInputStream() raw input stream}.
+   */
+  private static InputStream decodeContent(
+      HttpRequest request, HttpHeaders responseHeaders, InputStream body) throws IOException {
+    String contentEncoding = responseHeaders.getContentEncoding();
+    if (contentEncoding == null || request.getResponseReturnRawInputStream()) {
+      return body;
+    }
+    contentEncoding = contentEncoding.trim().toLowerCase(Locale.ENGLISH);
+    if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+      return new GZIPInputStream(body);
+    }
+    return body;
+  }
+
+  /** Parses the inner headers of a part in the same way as for a regular HTTP response. */
+  private static HttpHeaders parseHeaders(List<String> headerNames, List<String> headerValues)
+      throws IOException {
+    HttpHeaders headers = new HttpHeaders();
+    headers.fromHttpResponse(
+        new FakeLowLevelHttpResponse(null, 0, headerNames, headerValues), null);
+    return headers;
+  }
+
+  /**
+   * Returns the delay requested by the Retry-After header of a part, given either in seconds or as
+   * an HTTP date, or {@code 0} if there is none or it cannot be parsed.
+   */
+  static long getRetryAfterMillis(HttpHeaders responseHeaders) {
+    String retryAfter = responseHeaders.getFirstHeaderStringValue("Retry-After");
+    if (retryAfter == null) {
+      return 0;
+    }
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter)));
+    } catch (NumberFormatException e) {
+      // not delay-seconds, try an HTTP date
+    }
+    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0, dateFormat.parse(retryAfter).getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the charset of the part content, consistent with {@link
+   * HttpResponse#getContentCharset()}.
+   */
+  private static Charset getContentCharset(String contentType) {
+    if (contentType != null) {
+      HttpMediaType mediaType = new HttpMediaType(contentType);
+      if (mediaType.getCharsetParameter() != null) {
+        return mediaType.getCharsetParameter();
+      }
+      if ("application".equals(mediaType.getType()) && "json".equals(mediaType.getSubType())) {
+        // https://tools.ietf.org/html/rfc8259#section-8.1
+        return Charsets.UTF_8;
+      }
+    }
+    return Charsets.ISO_8859_1;
+  }
+
+  /**
+   * Create a fake HTTP response object populated with the partContent and the statusCode. Only
+   * used to invoke an {@link HttpUnsuccessfulResponseHandler}.
+   */
   private HttpResponse getFakeResponse(
       final int statusCode,
       final InputStream partContent,
@@ -239,27 +411,6 @@ final class BatchUnparsedResponse {
     return request.execute();
   }
 
-  /**
-   * Reads an HTTP response line (ISO-8859-1 encoding).
-   *
-   * @return The line that was read, including CRLF.
-   */
-  private String readRawLine() throws IOException {
-    int b = inputStream.read();
-    if (b == -1) {
-      return null;
-    } else {
-      StringBuilder buffer = new StringBuilder();
-      for (; b != -1; b = inputStream.read()) {
-        buffer.append((char) b);
-        if (b == '\n') {
-          break;
-        }
-      }
-      return buffer.toString();
-    }
-  }
-
   /**
    * Reads an HTTP response line (ISO-8859-1 encoding)
    *
@@ -269,28 +420,7 @@ final class BatchUnparsedResponse {
    * @return The line that was read, excluding CRLF.
    */
   private String readLine() throws IOException {
-    return trimCrlf(readRawLine());
-  }
-
-  private static String trimCrlf(String input) {
-    if (input.endsWith("\r\n")) {
-      return input.substring(0, input.length() - 2);
-    } else if (input.endsWith("\n")) {
-      return input.substring(0, input.length() - 1);
-    } else {
-      return input;
-    }
-  }
-
-  private static InputStream trimCrlf(byte[] bytes) {
-    int length = bytes.length;
-    if (length > 0 && bytes[length - 1] == '\n') {
-      length--;
-    }
-    if (length > 0 && bytes[length - 1] == '\r') {
-      length--;
-    }
-    return new ByteArrayInputStream(bytes, 0, length);
+    return reader.readLine();
   }
 
   /**
@@ -300,7 +430,7 @@ final class BatchUnparsedResponse {
   private void checkForFinalBoundary(String boundaryLine) throws IOException {
     if (boundaryLine.equals(boundary + "--")) {
       hasNext = false;
-      inputStream.close();
+      reader.close();
     }
   }
 
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.util.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dispatches the callbacks of batch parts to an executor, so that the batch response can be read
+ * while callbacks are running.
+ *
+ * <p>At most a fixed number of callbacks are pending at the same time, after which {@link
+ * #dispatch} either blocks or, if the dispatching thread may be a thread of the executor itself,
+ * runs callbacks on the dispatching thread instead. If the executor rejects a callback, it is run
+ * on the dispatching thread. Callbacks are either run in the order they were dispatched, one at a
+ * time, or concurrently in any order.
+ *
+ * <p>Implementation is thread-safe.
+ */
+final class CallbackDispatcher {
+
+  /** Executor that runs the callbacks. */
+  private final Executor executor;
+
+  /** Whether callbacks are run one at a time in the order they were dispatched. */
+  private final boolean ordered;
+
+  /**
+   * Whether {@link #dispatch} runs callbacks on the dispatching thread instead of blocking while
+   * the maximum number of callbacks are pending.
+   */
+  private final boolean callerRuns;
+
+  /** Permits for pending callbacks. */
+  private final Semaphore pendingPermits;
+
+  /** Callbacks not started yet, only used if {@link #ordered}. */
+  private final Queue<Callable<Void>> orderedCallbacks =
+      new ConcurrentLinkedQueue<Callable<Void>>();
+
+  /** Lock held while running {@link #orderedCallbacks}. */
+  private final Object drainLock = new Object();
+
+  /** Whether a task is draining {@link #orderedCallbacks}. */
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  /** First exception thrown by a callback or {@code null} for none. */
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+  /**
+   * Number of dispatched callbacks that are not done yet, plus one until {@link #close()} is
+   * called.
+   */
+  private final AtomicInteger unfinishedCallbacks = new AtomicInteger(1);
+
+  /** Whether {@link #close()} has been called. */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /** Future completed when the dispatcher is closed and all dispatched callbacks are done. */
+  private final SettableFuture<Void> completion = SettableFuture.create();
+
+  /**
+   * @param executor executor that runs the callbacks
+   * @param ordered whether callbacks are run one at a time in the order they were dispatched
+   * @param maxPendingCallbacks maximum number of pending callbacks
+   * @param callerRuns whether {@link #dispatch} runs callbacks on the dispatching thread instead of
+   *     blocking while the maximum number of callbacks are pending
+   */
+  CallbackDispatcher(
+      Executor executor, boolean ordered, int maxPendingCallbacks, boolean callerRuns) {
+    Preconditions.checkArgument(maxPendingCallbacks > 0);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.ordered = ordered;
+    this.callerRuns = callerRuns;
+    this.pendingPermits = new Semaphore(maxPendingCallbacks);
+  }
+
+  /**
+   * Dispatches the given callback. While the maximum number of callbacks are pending, it either
+   * blocks or runs the callback and, if ordered, the callbacks dispatched before it on the current
+   * thread.
+   *
+   * @throws IOException if a previously dispatched callback failed with an {@link IOException}
+   */
+  void dispatch(Callable<Void> callback) throws IOException {
+    checkFailure();
+    if (!callerRuns) {
+      try {
+        pendingPermits.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting to dispatch a batch callback", e);
+      }
+    }
+    unfinishedCallbacks.incrementAndGet();
+    if (callerRuns && !pendingPermits.tryAcquire()) {
+      if (ordered) {
+        synchronized (drainLock) {
+          // no other thread runs ordered callbacks while the lock is held
+          runOrderedCallbacks();
+          invoke(callback);
+        }
+      } else {
+        invoke(callback);
+      }
+      checkFailure();
+      return;
+    }
+    if (ordered) {
+      orderedCallbacks.add(callback);
+      if (draining.compareAndSet(false, true)) {
+        execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                drain();
+              }
+            });
+      }
+    } else {
+      final Callable<Void> task = callback;
+      execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              call(task);
+            }
+          });
+    }
+  }
+
+  /**
+   * Signals that no further callbacks are dispatched and returns a future that completes once all
+   * dispatched callbacks are done, or fails with the first exception thrown by a callback.
+   *
+   * <p>Unlike {@link #awaitCompletion()}, it never blocks, so it may be called on a thread of the
+   * executor.
+   */
+  ListenableFuture<Void> close() {
+    if (closed.compareAndSet(false, true)) {
+      callbackDone();
+    }
+    return completion;
+  }
+
+  /**
+   * Waits until all dispatched callbacks are done.
+   *
+   * @throws IOException if a callback failed with an {@link IOException}
+   */
+  void awaitCompletion() throws IOException {
+    try {
+      close().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for batch callbacks", e);
+    } catch (ExecutionException e) {
+      // rethrown below
+    }
+    checkFailure();
+  }
+
+  /** Rethrows the first exception thrown by a callback, if any. */
+  private void checkFailure() throws IOException {
+    Throwable t = failure.get();
+    if (t == null) {
+      return;
+    }
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IOException(t);
+  }
+
+  /** Runs the given task on the executor, or on the current thread if the executor rejects it. */
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run();
+    }
+  }
+
+  /** Runs ordered callbacks until there are none left. */
+  private void drain() {
+    while (true) {
+      synchronized (drainLock) {
+        runOrderedCallbacks();
+      }
+      draining.set(false);
+      // a callback may have been added after the queue was found empty
+      if (orderedCallbacks.isEmpty() || !draining.compareAndSet(false, true)) {
+        return;
+      }
+    }
+  }
+
+  /** Runs the queued ordered callbacks, which requires holding {@link #drainLock}. */
+  private void runOrderedCallbacks() {
+    Callable<Void> callback;
+    while ((callback = orderedCallbacks.poll()) != null) {
+      call(callback);
+    }
+  }
+
+  /** Runs the given callback, unless a previous callback failed, and releases its permit. */
+  private void call(Callable<Void> callback) {
+    try {
+      invoke(callback);
+    } finally {
+      pendingPermits.release();
+    }
+  }
+
+  /** Runs the given callback without a permit, unless a previous callback failed. */
+  private void invoke(Callable<Void> callback) {
+    try {
+      if (failure.get() == null) {
+        callback.call();
+      }
+    } catch (Throwable t) {
+      failure.compareAndSet(null, t);
+    } finally {
+      callbackDone();
+    }
+  }
+
+  /** Completes {@link #completion} once the last unfinished callback is done. */
+  private void callbackDone() {
+    if (unfinishedCallbacks.decrementAndGet() == 0) {
+      Throwable t = failure.get();
+      if (t == null) {
+        completion.set(null);
+      } else {
+        completion.setException(t);
+      }
+    }
+  }
+}
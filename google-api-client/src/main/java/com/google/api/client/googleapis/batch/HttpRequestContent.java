@@ -18,6 +18,7 @@ import com.google.api.client.http.AbstractHttpContent;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -26,6 +27,9 @@ import java.io.Writer;
 /**
  * HTTP request wrapped as a content part of a multipart/mixed request.
  *
+ * <p>The request line and headers are serialized once and reused, for example across retry rounds
+ * of a batch request, until {@link #invalidate()} is called.
+ *
  * @author Yaniv Inbar
  */
 class HttpRequestContent extends AbstractHttpContent {
@@ -35,6 +39,9 @@ class HttpRequestContent extends AbstractHttpContent {
   /** HTTP request. */
   private final HttpRequest request;
 
+  /** Serialized request line and headers or {@code null} if not serialized yet. */
+  private byte[] head;
+
   private static final String HTTP_VERSION = "HTTP/1.1";
 
   HttpRequestContent(HttpRequest request) {
@@ -42,43 +49,85 @@ class HttpRequestContent extends AbstractHttpContent {
     this.request = request;
   }
 
-  @Override
-  public void writeTo(OutputStream out) throws IOException {
-    Writer writer = new OutputStreamWriter(out, getCharset());
-    // write method and URL
-    writer.write(request.getRequestMethod());
-    writer.write(" ");
-    writer.write(request.getUrl().build());
-    writer.write(" ");
-    writer.write(HTTP_VERSION);
-    writer.write(NEWLINE);
+  /**
+   * Discards the serialized request line and headers, so that they are serialized again from the
+   * HTTP request, for example after it was modified by an interceptor.
+   */
+  void invalidate() {
+    head = null;
+  }
 
-    // write headers
-    HttpHeaders headers = new HttpHeaders();
-    headers.fromHttpHeaders(request.getHeaders());
-    headers
-        .setAcceptEncoding(null)
-        .setUserAgent(null)
-        .setContentEncoding(null)
-        .setContentType(null)
-        .setContentLength(null);
-    // analyze the content
+  /**
+   * Returns the precise length of the part, computed from the serialized request line and headers
+   * and the length of the request content.
+   *
+   * <p>If the length of the request content is unknown, the part is written to count its length if
+   * the request content supports retries, otherwise {@code -1} is returned.
+   */
+  @Override
+  public long getLength() throws IOException {
     HttpContent content = request.getContent();
-    if (content != null) {
-      headers.setContentType(content.getType());
-      // NOTE: batch does not support gzip encoding
-      long contentLength = content.getLength();
-      if (contentLength != -1) {
-        headers.setContentLength(contentLength);
-      }
+    long contentLength = content == null ? 0 : content.getLength();
+    if (contentLength == -1) {
+      return computeLength(this);
     }
-    HttpHeaders.serializeHeadersForMultipartRequests(headers, null, null, writer);
-    // HTTP headers are always terminated with an empty line; RFC 7230 §3
-    writer.write(NEWLINE);
-    writer.flush();
+    return getHead().length + contentLength;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    HttpContent content = request.getContent();
+    return content == null || content.retrySupported();
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(getHead());
     // write content
+    HttpContent content = request.getContent();
     if (content != null) {
       content.writeTo(out);
     }
   }
+
+  /** Returns the serialized request line and headers, serializing them if needed. */
+  private byte[] getHead() throws IOException {
+    if (head == null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Writer writer = new OutputStreamWriter(out, getCharset());
+      // write method and URL
+      writer.write(request.getRequestMethod());
+      writer.write(" ");
+      writer.write(request.getUrl().build());
+      writer.write(" ");
+      writer.write(HTTP_VERSION);
+      writer.write(NEWLINE);
+
+      // write headers
+      HttpHeaders headers = new HttpHeaders();
+      headers.fromHttpHeaders(request.getHeaders());
+      headers
+          .setAcceptEncoding(null)
+          .setUserAgent(null)
+          .setContentEncoding(null)
+          .setContentType(null)
+          .setContentLength(null);
+      // analyze the content
+      HttpContent content = request.getContent();
+      if (content != null) {
+        headers.setContentType(content.getType());
+        // NOTE: batch does not support gzip encoding
+        long contentLength = content.getLength();
+        if (contentLength != -1) {
+          headers.setContentLength(contentLength);
+        }
+      }
+      HttpHeaders.serializeHeadersForMultipartRequests(headers, null, null, writer);
+      // HTTP headers are always terminated with an empty line; RFC 7230 §3
+      writer.write(NEWLINE);
+      writer.flush();
+      head = out.toByteArray();
+    }
+    return head;
+  }
 }
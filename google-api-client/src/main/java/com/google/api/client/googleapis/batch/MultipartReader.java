@@ -0,0 +1,407 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered, byte-oriented reader of a multipart/mixed stream.
+ *
+ * <p>All reads go through a single reusable buffer. Lines are decoded directly from the buffer and
+ * part bodies are exposed as bounded views of the underlying stream, so the content of a part is
+ * never copied into an intermediate buffer. Bodies without a known length are delimited by
+ * searching the buffer for the boundary using the Boyer-Moore-Horspool algorithm.
+ *
+ * <p>Implementation is not thread-safe.
+ */
+final class MultipartReader {
+
+  /** Default size of the read buffer. */
+  static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  /** Underlying input stream. */
+  private final InputStream inputStream;
+
+  /** Boundary line prefix (including the leading {@code "--"}). */
+  private final byte[] boundary;
+
+  /** Delimiter that ends a body of unknown length: a newline followed by the boundary. */
+  private final byte[] delimiter;
+
+  /** Boyer-Moore-Horspool bad character shift table for {@link #delimiter}. */
+  private final int[] shiftTable = new int[256];
+
+  /** Read buffer. */
+  private byte[] buffer;
+
+  /** Position of the next unread byte in {@link #buffer}. */
+  private int position;
+
+  /** Position after the last valid byte in {@link #buffer}. */
+  private int limit;
+
+  /** Whether the underlying stream reached its end. */
+  private boolean endOfStream;
+
+  /**
+   * @param inputStream input stream of the multipart content
+   * @param boundary boundary line prefix, including the leading {@code "--"}
+   */
+  MultipartReader(InputStream inputStream, String boundary) {
+    this(inputStream, boundary, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param inputStream input stream of the multipart content
+   * @param boundary boundary line prefix, including the leading {@code "--"}
+   * @param bufferSize initial size of the read buffer
+   */
+  MultipartReader(InputStream inputStream, String boundary, int bufferSize) {
+    this.inputStream = Preconditions.checkNotNull(inputStream);
+    this.boundary = boundary.getBytes(Charsets.ISO_8859_1);
+    delimiter = new byte[this.boundary.length + 1];
+    delimiter[0] = '\n';
+    System.arraycopy(this.boundary, 0, delimiter, 1, this.boundary.length);
+    // the buffer must be able to hold a complete delimiter plus a preceding carriage return
+    buffer = new byte[Math.max(bufferSize, 2 * delimiter.length + 2)];
+    int patternLength = delimiter.length;
+    for (int i = 0; i < shiftTable.length; i++) {
+      shiftTable[i] = patternLength;
+    }
+    for (int i = 0; i < patternLength - 1; i++) {
+      shiftTable[delimiter[i] & 0xff] = patternLength - 1 - i;
+    }
+  }
+
+  /**
+   * Reads a line (ISO-8859-1 encoding).
+   *
+   * <p>This method is similar to {@link java.io.BufferedReader#readLine()}, but handles newlines in
+   * a way that is consistent with the HTTP RFC 2616.
+   *
+   * @return the line that was read, excluding CRLF, or {@code null} at the end of the stream
+   */
+  String readLine() throws IOException {
+    int scanFrom = position;
+    while (true) {
+      for (int i = scanFrom; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          int start = position;
+          position = i + 1;
+          int end = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+          return new String(buffer, start, end - start, Charsets.ISO_8859_1);
+        }
+      }
+      if (endOfStream) {
+        if (position == limit) {
+          return null;
+        }
+        String line = new String(buffer, position, limit - position, Charsets.ISO_8859_1);
+        position = limit;
+        return line;
+      }
+      int scanned = limit - position;
+      ensureSpace(scanned + 1);
+      fill();
+      scanFrom = position + scanned;
+    }
+  }
+
+  /**
+   * Returns a view of the next part body.
+   *
+   * <p>Closing the returned stream does not close the underlying stream. The caller is expected to
+   * consume the body completely before reading further from this reader.
+   *
+   * @param contentLength length of the body or {@code -1} if unknown, in which case the body ends
+   *     before the next line starting with the boundary and the line break preceding that line is
+   *     not part of the body
+   */
+  InputStream openBody(long contentLength) {
+    if (contentLength == -1) {
+      return new DelimitedBody();
+    }
+    Preconditions.checkArgument(contentLength >= 0);
+    return new LengthBody(contentLength);
+  }
+
+  /** Closes the underlying stream. */
+  void close() throws IOException {
+    inputStream.close();
+  }
+
+  /** Number of buffered bytes that have not been read yet. */
+  private int buffered() {
+    return limit - position;
+  }
+
+  /**
+   * Makes sure the buffer has room for at least {@code length} bytes counted from the current
+   * position, compacting or growing the buffer if needed.
+   */
+  private void ensureSpace(int length) {
+    if (buffer.length - position >= length && limit < buffer.length) {
+      return;
+    }
+    int remaining = buffered();
+    if (buffer.length < length) {
+      byte[] newBuffer = new byte[Math.max(length, 2 * buffer.length)];
+      System.arraycopy(buffer, position, newBuffer, 0, remaining);
+      buffer = newBuffer;
+    } else if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, remaining);
+    }
+    position = 0;
+    limit = remaining;
+  }
+
+  /**
+   * Reads more bytes from the underlying stream into the free space at the end of the buffer.
+   *
+   * @return number of bytes read or {@code -1} at the end of the stream
+   */
+  private int fill() throws IOException {
+    int read = inputStream.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      endOfStream = true;
+    } else {
+      limit += read;
+    }
+    return read;
+  }
+
+  /**
+   * Tries to buffer at least {@code length} unread bytes.
+   *
+   * @return whether {@code length} bytes are buffered, which can only be {@code false} at the end
+   *     of the stream
+   */
+  private boolean request(int length) throws IOException {
+    while (buffered() < length) {
+      if (endOfStream) {
+        return false;
+      }
+      ensureSpace(length);
+      fill();
+    }
+    return true;
+  }
+
+  /**
+   * Searches the buffered bytes between {@code from} and {@link #limit} for the delimiter using the
+   * Boyer-Moore-Horspool algorithm.
+   *
+   * @return index of the first match or {@code -1} for none
+   */
+  private int indexOfDelimiter(int from) {
+    int last = delimiter.length - 1;
+    int i = from;
+    while (i + last < limit) {
+      int j = last;
+      while (buffer[i + j] == delimiter[j]) {
+        if (j == 0) {
+          return i;
+        }
+        j--;
+      }
+      i += shiftTable[buffer[i + last] & 0xff];
+    }
+    return -1;
+  }
+
+  /** Body view with a known length. */
+  private final class LengthBody extends InputStream {
+
+    /** Number of bytes of the body left to read. */
+    private long remaining;
+
+    LengthBody(long contentLength) {
+      remaining = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0 || !request(1)) {
+        return -1;
+      }
+      remaining--;
+      return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (remaining == 0) {
+        return -1;
+      }
+      int max = (int) Math.min(len, remaining);
+      int read;
+      if (buffered() > 0) {
+        read = Math.min(max, buffered());
+        System.arraycopy(buffer, position, b, off, read);
+        position += read;
+      } else if (max >= buffer.length) {
+        // large reads bypass the buffer
+        read = inputStream.read(b, off, max);
+        if (read == -1) {
+          endOfStream = true;
+          return -1;
+        }
+      } else {
+        if (!request(1)) {
+          return -1;
+        }
+        read = Math.min(max, buffered());
+        System.arraycopy(buffer, position, b, off, read);
+        position += read;
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n && remaining > 0 && request(1)) {
+        int count = (int) Math.min(Math.min(n - skipped, remaining), buffered());
+        position += count;
+        remaining -= count;
+        skipped += count;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(remaining, buffered());
+    }
+
+    @Override
+    public void close() {
+      // Don't allow the parser to close the underlying stream
+    }
+  }
+
+  /** Body view of unknown length that ends before the next boundary line. */
+  private final class DelimitedBody extends InputStream {
+
+    /** Whether the end of the body has been reached. */
+    private boolean done;
+
+    /** Whether no byte of the body has been examined yet. */
+    private boolean atStart = true;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int count = Math.min(len, nextChunk());
+      if (count <= 0) {
+        return -1;
+      }
+      System.arraycopy(buffer, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n) {
+        int count = (int) Math.min(n - skipped, nextChunk());
+        if (count <= 0) {
+          break;
+        }
+        position += count;
+        skipped += count;
+      }
+      return skipped;
+    }
+
+    @Override
+    public void close() {
+      // Don't allow the parser to close the underlying stream
+    }
+
+    /**
+     * Returns the number of buffered bytes starting at the current position that are known to be
+     * part of the body, or {@code -1} at the end of the body.
+     */
+    private int nextChunk() throws IOException {
+      if (done) {
+        return -1;
+      }
+      if (atStart) {
+        atStart = false;
+        // the boundary line may immediately follow the part headers
+        if (startsWithBoundary()) {
+          done = true;
+          return -1;
+        }
+      }
+      while (true) {
+        int index = indexOfDelimiter(position);
+        if (index != -1) {
+          int end = index > position && buffer[index - 1] == '\r' ? index - 1 : index;
+          if (end > position) {
+            return end - position;
+          }
+          // skip the line break so that the boundary line is read next
+          position = index + 1;
+          done = true;
+          return -1;
+        }
+        if (endOfStream) {
+          if (buffered() > 0) {
+            return buffered();
+          }
+          done = true;
+          return -1;
+        }
+        // hold back enough bytes for a partial match of the delimiter and a carriage return
+        int safe = buffered() - delimiter.length;
+        if (safe > 0) {
+          return safe;
+        }
+        ensureSpace(buffered() + 1);
+        fill();
+      }
+    }
+
+    private boolean startsWithBoundary() throws IOException {
+      if (!request(boundary.length)) {
+        return false;
+      }
+      for (int i = 0; i < boundary.length; i++) {
+        if (buffer[position + i] != boundary[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
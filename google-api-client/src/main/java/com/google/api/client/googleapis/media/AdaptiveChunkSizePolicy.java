@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Beta} <br>
+ * Chunk size policy that adapts the chunk size to the measured throughput, so that a chunk takes
+ * about the target duration to upload.
+ *
+ * <p>After each chunk, the next chunk size is the number of bytes that can be uploaded in the
+ * target duration at the throughput of the chunk, but at most twice and at least half the size of
+ * the chunk. If errors were recovered from while uploading the chunk, the chunk size is halved
+ * instead, which makes retries cheaper on unreliable links. The chunk size is always a multiple of
+ * {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE} between the minimum and maximum chunk size.
+ *
+ * <p>Implementation is immutable and thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class AdaptiveChunkSizePolicy implements ChunkSizePolicy {
+
+  /** Default maximum chunk size (set to 64 MB). */
+  public static final int DEFAULT_MAXIMUM_CHUNK_SIZE = 64 * MediaHttpUploader.MB;
+
+  /** Default target duration of uploading a chunk in milliseconds (set to 2 seconds). */
+  public static final long DEFAULT_TARGET_CHUNK_MILLIS = 2000;
+
+  /** Minimum chunk size. */
+  private final int minChunkSize;
+
+  /** Maximum chunk size. */
+  private final int maxChunkSize;
+
+  /** Target duration of uploading a chunk in nanoseconds. */
+  private final long targetChunkNanos;
+
+  /**
+   * Constructs a policy with a minimum chunk size of {@link MediaHttpUploader#MINIMUM_CHUNK_SIZE},
+   * a maximum chunk size of {@link #DEFAULT_MAXIMUM_CHUNK_SIZE} and a target duration of {@link
+   * #DEFAULT_TARGET_CHUNK_MILLIS}.
+   */
+  public AdaptiveChunkSizePolicy() {
+    this(
+        MediaHttpUploader.MINIMUM_CHUNK_SIZE,
+        DEFAULT_MAXIMUM_CHUNK_SIZE,
+        DEFAULT_TARGET_CHUNK_MILLIS);
+  }
+
+  /**
+   * @param minChunkSize minimum chunk size, a positive multiple of {@link
+   *     MediaHttpUploader#MINIMUM_CHUNK_SIZE}
+   * @param maxChunkSize maximum chunk size, a multiple of {@link
+   *     MediaHttpUploader#MINIMUM_CHUNK_SIZE} not smaller than the minimum chunk size
+   * @param targetChunkMillis target duration of uploading a chunk in milliseconds
+   */
+  public AdaptiveChunkSizePolicy(int minChunkSize, int maxChunkSize, long targetChunkMillis) {
+    Preconditions.checkArgument(
+        minChunkSize > 0 && minChunkSize % MediaHttpUploader.MINIMUM_CHUNK_SIZE == 0,
+        "minChunkSize must be a positive multiple of " + MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    Preconditions.checkArgument(
+        maxChunkSize >= minChunkSize && maxChunkSize % MediaHttpUploader.MINIMUM_CHUNK_SIZE == 0,
+        "maxChunkSize must be a multiple of "
+            + MediaHttpUploader.MINIMUM_CHUNK_SIZE
+            + " not smaller than minChunkSize");
+    Preconditions.checkArgument(targetChunkMillis > 0);
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    this.targetChunkNanos = TimeUnit.MILLISECONDS.toNanos(targetChunkMillis);
+  }
+
+  /** Returns the minimum chunk size. */
+  public int getMinChunkSize() {
+    return minChunkSize;
+  }
+
+  /** Returns the maximum chunk size. */
+  public int getMaxChunkSize() {
+    return maxChunkSize;
+  }
+
+  /** Returns the target duration of uploading a chunk in milliseconds. */
+  public long getTargetChunkMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(targetChunkNanos);
+  }
+
+  public int nextChunkSize(int chunkSize, long bytesUploaded, long elapsedNanos, int errorCount) {
+    long nextChunkSize;
+    if (errorCount > 0) {
+      nextChunkSize = chunkSize / 2;
+    } else {
+      // bytes that can be uploaded in the target duration at the measured throughput
+      double bytesPerNano = (double) bytesUploaded / Math.max(1, elapsedNanos);
+      nextChunkSize = (long) Math.min(Long.MAX_VALUE, bytesPerNano * targetChunkNanos);
+      nextChunkSize = Math.max(chunkSize / 2, Math.min(2L * chunkSize, nextChunkSize));
+    }
+    nextChunkSize =
+        nextChunkSize / MediaHttpUploader.MINIMUM_CHUNK_SIZE * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    return (int) Math.max(minChunkSize, Math.min(maxChunkSize, nextChunkSize));
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * {@link Beta} <br>
+ * Bounded pool of chunk buffers that can be shared by many {@link MediaHttpUploader} instances.
+ *
+ * <p>Uploads of media content of unknown length keep the current chunk in memory. Without a pool,
+ * each chunk buffer is allocated anew, which for many concurrent uploads with large chunks causes
+ * frequent allocations of large arrays. The pool keeps returned buffers for reuse and limits the
+ * number of buffers in use at the same time. If all buffers are in use, {@link #borrow} either
+ * blocks until a buffer is returned or fails right away, see {@link #setBlockWhenExhausted}.
+ *
+ * <p>Buffers are reused for any request of at most their length. If no idle buffer is large
+ * enough, an idle buffer is dropped and a new one is allocated.
+ *
+ * <p>Implementation is thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class ChunkBufferPool {
+
+  /** Maximum number of buffers, borrowed or idle. */
+  private final int maxBuffers;
+
+  /** Idle buffers, most recently returned first. */
+  private final Deque<byte[]> idleBuffers = new ArrayDeque<byte[]>();
+
+  /** Whether {@link #borrow} blocks if all buffers are borrowed. */
+  private boolean blockWhenExhausted = true;
+
+  /** Number of borrowed buffers. */
+  private int borrowedCount;
+
+  /** Total size in bytes of the borrowed buffers. */
+  private long borrowedBytes;
+
+  /** Number of times {@link #borrow} found all buffers borrowed. */
+  private long exhaustedCount;
+
+  /** @param maxBuffers maximum number of buffers borrowed at the same time */
+  public ChunkBufferPool(int maxBuffers) {
+    Preconditions.checkArgument(maxBuffers > 0);
+    this.maxBuffers = maxBuffers;
+  }
+
+  /** Returns the maximum number of buffers borrowed at the same time. */
+  public int getMaxBuffers() {
+    return maxBuffers;
+  }
+
+  /** Returns whether {@link #borrow} blocks if all buffers are borrowed. */
+  public synchronized boolean getBlockWhenExhausted() {
+    return blockWhenExhausted;
+  }
+
+  /**
+   * Sets whether {@link #borrow} blocks until a buffer is returned if all buffers are borrowed, or
+   * throws an {@link IOException} right away. The default value is {@code true}.
+   */
+  public synchronized ChunkBufferPool setBlockWhenExhausted(boolean blockWhenExhausted) {
+    this.blockWhenExhausted = blockWhenExhausted;
+    return this;
+  }
+
+  /**
+   * Borrows a buffer of at least the given length, which must be returned with {@link #release}.
+   *
+   * @param length minimum length of the buffer
+   * @return buffer, whose content is undefined
+   * @throws IOException if all buffers are borrowed and the pool does not block, or if the thread
+   *     was interrupted while waiting for a buffer
+   */
+  public byte[] borrow(int length) throws IOException {
+    Preconditions.checkArgument(length >= 0);
+    byte[] buffer = null;
+    synchronized (this) {
+      if (borrowedCount == maxBuffers) {
+        exhaustedCount++;
+        if (!blockWhenExhausted) {
+          throw new IOException("All " + maxBuffers + " chunk buffers are in use");
+        }
+        try {
+          while (borrowedCount == maxBuffers) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a chunk buffer");
+        }
+      }
+      for (Iterator<byte[]> it = idleBuffers.iterator(); it.hasNext(); ) {
+        byte[] idle = it.next();
+        if (idle.length >= length) {
+          it.remove();
+          buffer = idle;
+          break;
+        }
+      }
+      if (buffer == null && borrowedCount + idleBuffers.size() == maxBuffers) {
+        // no idle buffer is large enough, so drop one to stay within the bound
+        idleBuffers.removeLast();
+      }
+      borrowedCount++;
+      borrowedBytes += buffer == null ? length : buffer.length;
+    }
+    // allocate outside of the lock
+    return buffer == null ? new byte[length] : buffer;
+  }
+
+  /**
+   * Returns a buffer that was borrowed from this pool.
+   *
+   * @param buffer borrowed buffer
+   */
+  public synchronized void release(byte[] buffer) {
+    Preconditions.checkNotNull(buffer);
+    Preconditions.checkState(borrowedCount > 0, "no buffer is borrowed");
+    borrowedCount--;
+    borrowedBytes -= buffer.length;
+    idleBuffers.addFirst(buffer);
+    notify();
+  }
+
+  /** Returns the number of borrowed buffers. */
+  public synchronized int getBorrowedCount() {
+    return borrowedCount;
+  }
+
+  /** Returns the number of idle buffers kept for reuse. */
+  public synchronized int getIdleCount() {
+    return idleBuffers.size();
+  }
+
+  /** Returns the total size in bytes of the borrowed and idle buffers. */
+  public synchronized long getRetainedBytes() {
+    long retainedBytes = borrowedBytes;
+    for (byte[] idle : idleBuffers) {
+      retainedBytes += idle.length;
+    }
+    return retainedBytes;
+  }
+
+  /** Returns the number of times a buffer was requested while all buffers were borrowed. */
+  public synchronized long getExhaustedCount() {
+    return exhaustedCount;
+  }
+}
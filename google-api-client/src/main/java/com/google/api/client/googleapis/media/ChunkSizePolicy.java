@@ -0,0 +1,46 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+
+/**
+ * {@link Beta} <br>
+ * Determines the size of the next chunk of a resumable upload from the outcome of the previous
+ * chunk.
+ *
+ * <p>Used together with {@link MediaHttpUploader#setChunkSizePolicy}. Implementations that are
+ * shared by uploaders running concurrently must be thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public interface ChunkSizePolicy {
+
+  /**
+   * Invoked after the server acknowledged a chunk of an upload that is not complete yet.
+   *
+   * @param chunkSize size of the chunk
+   * @param bytesUploaded number of bytes of the chunk the server received, which may be fewer than
+   *     the chunk size, for example after an error
+   * @param elapsedNanos time in nanoseconds from sending the chunk until the server acknowledged
+   *     it, including any retries
+   * @param errorCount number of server errors and I/O exceptions that were recovered from while
+   *     uploading the chunk
+   * @return size of the next chunk, which must be a positive multiple of {@link
+   *     MediaHttpUploader#MINIMUM_CHUNK_SIZE}
+   */
+  int nextChunkSize(int chunkSize, long bytesUploaded, long elapsedNanos, int errorCount);
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum, as used for the {@code crc32c} hash of Google Cloud Storage
+ * objects.
+ *
+ * <p>Uses the slicing-by-8 algorithm, which processes 8 bytes per step with 8 lookup tables.
+ *
+ * <p>Implementation is not thread-safe.
+ */
+final class Crc32c implements Checksum {
+
+  /** Reversed Castagnoli polynomial. */
+  private static final int POLYNOMIAL = 0x82F63B78;
+
+  /** Lookup tables, where {@code TABLES[k][b]} is the CRC of byte {@code b} followed by k zeros. */
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      int crc = b;
+      for (int i = 0; i < 8; i++) {
+        crc = (crc >>> 1) ^ (-(crc & 1) & POLYNOMIAL);
+      }
+      TABLES[0][b] = crc;
+    }
+    for (int b = 0; b < 256; b++) {
+      for (int k = 1; k < 8; k++) {
+        int previous = TABLES[k - 1][b];
+        TABLES[k][b] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+      }
+    }
+  }
+
+  /** Current checksum. */
+  private int crc;
+
+  Crc32c() {}
+
+  /** @param crc initial checksum, for example of a previous instance */
+  Crc32c(int crc) {
+    this.crc = crc;
+  }
+
+  public void update(int b) {
+    int value = ~crc;
+    value = (value >>> 8) ^ TABLES[0][(value ^ b) & 0xff];
+    crc = ~value;
+  }
+
+  public void update(byte[] b, int off, int len) {
+    int[] t0 = TABLES[0];
+    int[] t1 = TABLES[1];
+    int[] t2 = TABLES[2];
+    int[] t3 = TABLES[3];
+    int[] t4 = TABLES[4];
+    int[] t5 = TABLES[5];
+    int[] t6 = TABLES[6];
+    int[] t7 = TABLES[7];
+    int value = ~crc;
+    while (len >= 8) {
+      int low =
+          value
+              ^ ((b[off] & 0xff)
+                  | (b[off + 1] & 0xff) << 8
+                  | (b[off + 2] & 0xff) << 16
+                  | (b[off + 3] & 0xff) << 24);
+      int high =
+          (b[off + 4] & 0xff)
+              | (b[off + 5] & 0xff) << 8
+              | (b[off + 6] & 0xff) << 16
+              | (b[off + 7] & 0xff) << 24;
+      value =
+          t7[low & 0xff]
+              ^ t6[(low >>> 8) & 0xff]
+              ^ t5[(low >>> 16) & 0xff]
+              ^ t4[low >>> 24]
+              ^ t3[high & 0xff]
+              ^ t2[(high >>> 8) & 0xff]
+              ^ t1[(high >>> 16) & 0xff]
+              ^ t0[high >>> 24];
+      off += 8;
+      len -= 8;
+    }
+    while (len-- > 0) {
+      value = (value >>> 8) ^ t0[(value ^ b[off++]) & 0xff];
+    }
+    crc = ~value;
+  }
+
+  public long getValue() {
+    return crc & 0xffffffffL;
+  }
+
+  public void reset() {
+    crc = 0;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.util.Preconditions;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Content of a region of a file channel.
+ *
+ * <p>The region is read with positional reads and {@link FileChannel#transferTo}, which neither
+ * change the position of the channel nor buffer the region in memory, so the content can be
+ * written any number of times and several regions of the same channel can be written at the same
+ * time. The channel is not closed.
+ *
+ * <p>Implementation is not thread-safe.
+ */
+final class FileRegionContent extends AbstractInputStreamContent {
+
+  /** File channel. */
+  private final FileChannel channel;
+
+  /** Position of the first byte of the region in the file. */
+  private final long position;
+
+  /** Length of the region. */
+  private final long length;
+
+  /**
+   * @param type Content type or {@code null} for none
+   * @param channel file channel
+   * @param position position of the first byte of the region in the file
+   * @param length length of the region
+   */
+  FileRegionContent(String type, FileChannel channel, long position, long length) {
+    super(type);
+    Preconditions.checkArgument(position >= 0 && length >= 0);
+    this.channel = Preconditions.checkNotNull(channel);
+    this.position = position;
+    this.length = length;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public boolean retrySupported() {
+    return true;
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long written = 0;
+    while (written < length) {
+      long count = channel.transferTo(position + written, length - written, target);
+      if (count <= 0) {
+        if (position + written >= channel.size()) {
+          throw new EOFException("file ended before the end of the region");
+        }
+        // transferTo may transfer nothing without having reached the end of the file
+        continue;
+      }
+      written += count;
+    }
+    out.flush();
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new RegionInputStream();
+  }
+
+  /** Input stream of the region that reads the channel with positional reads. */
+  private final class RegionInputStream extends InputStream {
+
+    /** Number of bytes of the region read so far. */
+    private long read;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (read == length) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, length - read));
+      int count = channel.read(buffer, position + read);
+      if (count == -1) {
+        throw new EOFException("file ended before the end of the region");
+      }
+      read += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length - read));
+      read += skipped;
+      return skipped;
+    }
+  }
+}
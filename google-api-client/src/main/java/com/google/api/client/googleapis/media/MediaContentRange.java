@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.util.ByteStreams;
+import com.google.api.client.util.Preconditions;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of a byte range of media content that can provide its input stream more than once, such
+ * as a file.
+ *
+ * <p>Each call to {@link #getInputStream()} opens a new input stream of the media content and skips
+ * to the start of the range.
+ *
+ * <p>Implementation is not thread-safe.
+ */
+final class MediaContentRange extends AbstractInputStreamContent {
+
+  /** Media content. */
+  private final AbstractInputStreamContent mediaContent;
+
+  /** Index of the first byte of the range. */
+  private final long offset;
+
+  /** Length of the range. */
+  private final long length;
+
+  /**
+   * @param mediaContent media content whose {@link AbstractInputStreamContent#retrySupported()} is
+   *     {@code true}
+   * @param offset index of the first byte of the range
+   * @param length length of the range
+   */
+  MediaContentRange(AbstractInputStreamContent mediaContent, long offset, long length) {
+    super(mediaContent.getType());
+    Preconditions.checkArgument(mediaContent.retrySupported());
+    Preconditions.checkArgument(offset >= 0 && length >= 0);
+    this.mediaContent = mediaContent;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /** Returns the media content. */
+  AbstractInputStreamContent getMediaContent() {
+    return mediaContent;
+  }
+
+  /** Returns the index of the first byte of the range. */
+  long getOffset() {
+    return offset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public boolean retrySupported() {
+    return true;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    InputStream in = mediaContent.getInputStream();
+    boolean skipped = false;
+    try {
+      skipFully(in, offset);
+      skipped = true;
+    } finally {
+      if (!skipped) {
+        in.close();
+      }
+    }
+    return ByteStreams.limit(in, length);
+  }
+
+  /**
+   * Skips exactly the given number of bytes of the input stream.
+   *
+   * @throws EOFException if the input stream ends before the bytes are skipped
+   */
+  static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped == 0) {
+        // skip may return 0 before the end of the stream, so check with a read
+        if (in.read() == -1) {
+          throw new EOFException("media content ended before the offset");
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.Beta;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link Beta} <br>
+ * CRC32C and MD5 digest of media content, computed incrementally as the content is transferred.
+ *
+ * <p>The digest can be compared with the hashes that Google Cloud Storage reports for objects, for
+ * example in the {@link #HASH_HEADER} header, whose value is {@link #getHashHeaderValue()}.
+ *
+ * <p>Implementation is not thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class MediaDigest {
+
+  /** Name of the header with the hashes of an object (set to {@code X-Goog-Hash}). */
+  public static final String HASH_HEADER = "X-Goog-Hash";
+
+  /** CRC32C checksum. */
+  private final Crc32c crc32c;
+
+  /** MD5 message digest. */
+  private final MessageDigest md5;
+
+  /** Number of bytes digested. */
+  private long length;
+
+  /** Constructs a digest of no bytes. */
+  public MediaDigest() {
+    this(new Crc32c(), newMd5(), 0);
+  }
+
+  private MediaDigest(Crc32c crc32c, MessageDigest md5, long length) {
+    this.crc32c = crc32c;
+    this.md5 = md5;
+    this.length = length;
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports MD5
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Adds the given bytes to the digest.
+   *
+   * @param b bytes
+   * @param off offset of the first byte to add
+   * @param len number of bytes to add
+   */
+  public MediaDigest update(byte[] b, int off, int len) {
+    crc32c.update(b, off, len);
+    md5.update(b, off, len);
+    length += len;
+    return this;
+  }
+
+  /** Returns the number of bytes digested. */
+  public long getLength() {
+    return length;
+  }
+
+  /** Returns the CRC32C checksum of the bytes digested. */
+  public int getCrc32c() {
+    return (int) crc32c.getValue();
+  }
+
+  /** Returns the MD5 digest of the bytes digested, without changing this digest. */
+  public byte[] getMd5() {
+    return cloneMd5().digest();
+  }
+
+  /** Returns the Base64 encoding of the CRC32C checksum in big-endian byte order. */
+  public String getCrc32cBase64() {
+    int crc = getCrc32c();
+    return Base64.encodeBase64String(
+        new byte[] {(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc});
+  }
+
+  /** Returns the Base64 encoding of the MD5 digest. */
+  public String getMd5Base64() {
+    return Base64.encodeBase64String(getMd5());
+  }
+
+  /**
+   * Returns the value of the {@link #HASH_HEADER} header for the bytes digested, for example
+   * {@code "crc32c=n03x6A==,md5=Ojk9c3dhfxgoKVVHYwFbHQ=="}.
+   */
+  public String getHashHeaderValue() {
+    return "crc32c=" + getCrc32cBase64() + ",md5=" + getMd5Base64();
+  }
+
+  /** Returns a copy of this digest, which can be updated independently. */
+  public MediaDigest copy() {
+    return new MediaDigest(new Crc32c(getCrc32c()), cloneMd5(), length);
+  }
+
+  private MessageDigest cloneMd5() {
+    try {
+      return (MessageDigest) md5.clone();
+    } catch (CloneNotSupportedException e) {
+      // the MD5 message digests of the Java platforms support cloning
+      throw new IllegalStateException(e);
+    }
+  }
+}
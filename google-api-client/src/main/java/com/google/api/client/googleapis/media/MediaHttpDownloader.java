@@ -24,11 +24,32 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.Preconditions;
-import com.google.common.io.ByteStreams;
+import com.google.api.client.util.Sleeper;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Media HTTP Downloader, with support for both direct and resumable media downloads. Documentation
@@ -69,6 +90,15 @@ public final class MediaHttpDownloader {
    */
   public static final int MAXIMUM_CHUNK_SIZE = 32 * MediaHttpUploader.MB;
 
+  /** Size of the buffers through which media content is copied to channels. */
+  private static final int CHANNEL_BUFFER_SIZE = 256 * 1024;
+
+  /** Size of the buffer through which media content is copied to output streams. */
+  private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+  /** Name of the header with the encoding in which Google Cloud Storage stores an object. */
+  private static final String STORED_CONTENT_ENCODING_HEADER = "X-Goog-Stored-Content-Encoding";
+
   /** The request factory for connections to the server. */
   private final HttpRequestFactory requestFactory;
 
@@ -111,6 +141,54 @@ public final class MediaHttpDownloader {
    */
   private long lastBytePos = -1;
 
+  /** Executor that downloads the ranges of a parallel download or {@code null} for none. */
+  private Executor parallelDownloadExecutor;
+
+  /** Maximum number of ranges of a parallel download that are downloaded concurrently. */
+  private int parallelDownloadConnectionCount;
+
+  /** Start of the next range of a parallel download that is not being downloaded yet. */
+  private long nextRangeStart;
+
+  /** Whether the download of a range of a parallel download failed. */
+  private boolean parallelDownloadFailed;
+
+  /**
+   * Executor that fetches the next chunk of a {@link #openStream streamed download} in the
+   * background or {@code null} for none.
+   */
+  private Executor chunkPrefetchExecutor;
+
+  /** Back-off policy for retrying a request of a download that failed or {@code null} for none. */
+  private BackOff backOff;
+
+  /**
+   * ETag of the media content, which is validated with an If-Match header on each request, or
+   * {@code null} before it is known.
+   */
+  private String eTag;
+
+  /**
+   * Whether the {@link #eTag} is validated, which is decided when the download starts because a
+   * retried or resumed download must not combine bytes of different media content.
+   */
+  private boolean validateETag;
+
+  /** Whether to compute the {@link #mediaDigest} and verify it against the hashes of the server. */
+  private boolean mediaDigestEnabled;
+
+  /** Digest of the bytes downloaded so far or {@code null} if it is not computed. */
+  private MediaDigest mediaDigest;
+
+  /**
+   * Values of the {@link MediaDigest#HASH_HEADER} header of the first response that has it or
+   * {@code null} before it is known.
+   */
+  private List<String> hashHeaderValues;
+
+  /** Sleeper used to wait before retrying a request of a download. */
+  Sleeper sleeper = Sleeper.DEFAULT;
+
   /**
    * Construct the {@link MediaHttpDownloader}.
    *
@@ -157,17 +235,98 @@ public final class MediaHttpDownloader {
    */
   public void download(GenericUrl requestUrl, HttpHeaders requestHeaders, OutputStream outputStream)
       throws IOException {
+    download(requestUrl, requestHeaders, new OutputStreamDestination(outputStream));
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Executes a direct media download or a resumable media download into the given channel.
+   *
+   * <p>The content of each response is copied to the channel through a large direct buffer, which
+   * is allocated once per download, instead of through an output stream.
+   *
+   * <p>This method does not close the given channel.
+   *
+   * <p>This method is not reentrant. A new instance of {@link MediaHttpDownloader} must be
+   * instantiated before download called be called again.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param channel destination channel
+   * @since 1.33
+   */
+  @Beta
+  public void download(
+      GenericUrl requestUrl, HttpHeaders requestHeaders, WritableByteChannel channel)
+      throws IOException {
+    download(
+        requestUrl,
+        requestHeaders,
+        new ChannelDestination(channel, ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE), -1));
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Executes a direct media download, a resumable media download or a parallel media download into
+   * the file at the given path, which is created if it does not exist.
+   *
+   * <p>The bytes of the media content are written to the file at their own position, so that the
+   * download of a file can be resumed with {@link #setBytesDownloaded}. Once the download is
+   * complete, the file is truncated after the downloaded bytes. See {@link #download(GenericUrl,
+   * HttpHeaders, SeekableByteChannel)}.
+   *
+   * <p>This method is not reentrant. A new instance of {@link MediaHttpDownloader} must be
+   * instantiated before download called be called again.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param path destination file
+   * @since 1.33
+   */
+  @Beta
+  public void download(GenericUrl requestUrl, HttpHeaders requestHeaders, Path path)
+      throws IOException {
+    FileChannel channel =
+        FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      channel.position(bytesDownloaded);
+      download(requestUrl, requestHeaders, channel);
+      channel.truncate(channel.position());
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Executes a direct media download or a resumable media download into the given destination.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param destination destination of the media content
+   */
+  private void download(
+      GenericUrl requestUrl, HttpHeaders requestHeaders, MediaDestination destination)
+      throws IOException {
     Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED);
     requestUrl.put("alt", "media");
+    startETagValidation();
+    startMediaDigest();
 
     if (directDownloadEnabled) {
       updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
       HttpResponse response =
-          executeCurrentRequest(lastBytePos, requestUrl, requestHeaders, outputStream);
+          executeCurrentRequest(lastBytePos, requestUrl, requestHeaders, destination);
       // All required bytes have been downloaded from the server.
-      mediaContentLength =
-          firstNonNull(response.getHeaders().getContentLength(), mediaContentLength);
+      String contentRange = response.getHeaders().getContentRange();
+      if (contentRange != null) {
+        // the request was retried for the bytes after those copied before it failed
+        setMediaContentLength(contentRange);
+      } else {
+        mediaContentLength =
+            firstNonNull(response.getHeaders().getContentLength(), mediaContentLength);
+      }
       bytesDownloaded = mediaContentLength;
+      verifyMediaDigest();
       updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
       return;
     }
@@ -181,70 +340,883 @@ public final class MediaHttpDownloader {
       }
       HttpResponse response =
           executeCurrentRequest(
-              currentRequestLastBytePos, requestUrl, requestHeaders, outputStream);
+              currentRequestLastBytePos, requestUrl, requestHeaders, destination);
 
       String contentRange = response.getHeaders().getContentRange();
       long nextByteIndex = getNextByteIndex(contentRange);
       setMediaContentLength(contentRange);
-      // If the last byte position is specified, complete the download when it is less than
-      // nextByteIndex.
-      if (lastBytePos != -1 && lastBytePos <= nextByteIndex) {
-        // All required bytes from the range have been downloaded from the server.
-        bytesDownloaded = lastBytePos;
-        updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
+      if (completeIfDone(nextByteIndex)) {
         return;
       }
 
-      if (mediaContentLength <= nextByteIndex) {
-        // All required bytes have been downloaded from the server.
-        bytesDownloaded = mediaContentLength;
-        updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
-        return;
-      }
+      bytesDownloaded = nextByteIndex;
+      updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
+    }
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Executes a direct media download, a resumable media download or a parallel media download into
+   * the given channel, starting at its current position.
+   *
+   * <p>Without {@link #setParallelDownload parallel download}, this is the same as {@link
+   * #download(GenericUrl, HttpHeaders, WritableByteChannel)}. In a parallel download, the first
+   * chunk is downloaded alone to learn the length of the media content from its Content-Range
+   * header. The remaining bytes are then split into ranges of at most the chunk size, which are
+   * downloaded concurrently on the executor and written to their offsets in the channel. The
+   * download of a range that fails with an I/O exception or a server error is retried with the
+   * {@link #setBackOff back-off policy}, starting at the first byte that was not written yet. The
+   * progress
+   * listener is notified from the threads of the executor, one at a time, whenever a range was
+   * downloaded. If the download of a range fails, {@link #getNumBytesDownloaded} only counts the
+   * bytes before the first byte that is missing, so that the download can be resumed with {@link
+   * #setBytesDownloaded} without leaving a gap.
+   *
+   * <p>This method does not close the given channel. On return, the channel is positioned after the
+   * downloaded bytes.
+   *
+   * <p>This method is not reentrant. A new instance of {@link MediaHttpDownloader} must be
+   * instantiated before download called be called again.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param channel destination channel
+   * @since 1.33
+   */
+  @Beta
+  public void download(
+      GenericUrl requestUrl, HttpHeaders requestHeaders, SeekableByteChannel channel)
+      throws IOException {
+    if (directDownloadEnabled || parallelDownloadExecutor == null) {
+      download(requestUrl, requestHeaders, (WritableByteChannel) channel);
+      return;
+    }
+    Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED);
+    requestUrl.put("alt", "media");
+    startETagValidation();
 
+    // Download the first chunk to learn the length of the media content.
+    long firstBytePos = bytesDownloaded;
+    long channelOffset = channel.position() - firstBytePos;
+    long currentRequestLastBytePos = firstBytePos + chunkSize - 1;
+    if (lastBytePos != -1) {
+      currentRequestLastBytePos = Math.min(lastBytePos, currentRequestLastBytePos);
+    }
+    ChannelDestination destination =
+        new ChannelDestination(
+            channel, ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE), channelOffset + firstBytePos);
+    HttpResponse response =
+        executeCurrentRequest(currentRequestLastBytePos, requestUrl, requestHeaders, destination);
+    String contentRange = response.getHeaders().getContentRange();
+    long nextByteIndex = getNextByteIndex(contentRange);
+    setMediaContentLength(contentRange);
+    long endByteIndex =
+        lastBytePos == -1 ? mediaContentLength : Math.min(lastBytePos + 1, mediaContentLength);
+    long channelPosition = destination.position;
+    if (nextByteIndex < endByteIndex) {
       bytesDownloaded = nextByteIndex;
       updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
+      downloadRanges(requestUrl, requestHeaders, channel, channelOffset, endByteIndex);
+      nextByteIndex = endByteIndex;
+      channelPosition = channelOffset + endByteIndex;
     }
+    channel.position(channelPosition);
+    completeIfDone(nextByteIndex);
   }
 
   /**
-   * Executes the current request.
+   * {@link Beta} <br>
+   * Opens an input stream of the media content that is downloaded in chunks as it is read.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @return input stream of the media content
+   * @see #openStream(GenericUrl, HttpHeaders)
+   * @since 1.33
+   */
+  @Beta
+  public InputStream openStream(GenericUrl requestUrl) throws IOException {
+    return openStream(requestUrl, null);
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Opens an input stream of the media content that is downloaded in chunks as it is read.
+   *
+   * <p>No request is sent before the stream is first read. Each chunk is then requested as a range
+   * of the chunk size once the previous chunk is consumed. If a {@link #setChunkPrefetchExecutor
+   * prefetch executor} is set, the next chunk is downloaded in the background while the current one
+   * is consumed, so the stream keeps two chunks in memory. Otherwise, each chunk is downloaded on
+   * the reading thread and the stream keeps one chunk in memory. The progress listener is notified
+   * whenever a chunk was downloaded, from the thread that downloaded it.
+   *
+   * <p>Direct download is not supported and parallel download does not apply. The stream should be
+   * closed once it is no longer needed, which waits for any chunk being downloaded in the
+   * background.
+   *
+   * <p>This method is not reentrant. A new instance of {@link MediaHttpDownloader} must be
+   * instantiated before download called be called again.
    *
-   * @param currentRequestLastBytePos last byte position for current request
    * @param requestUrl request URL where the download requests will be sent
    * @param requestHeaders request headers or {@code null} to ignore
-   * @param outputStream destination output stream
-   * @return HTTP response
+   * @return input stream of the media content
+   * @since 1.33
    */
-  private HttpResponse executeCurrentRequest(
-      long currentRequestLastBytePos,
+  @Beta
+  public InputStream openStream(GenericUrl requestUrl, HttpHeaders requestHeaders)
+      throws IOException {
+    Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED);
+    Preconditions.checkState(!directDownloadEnabled, "direct download cannot be streamed");
+    requestUrl.put("alt", "media");
+    startETagValidation();
+    startMediaDigest();
+    InputStream in = new ChunkInputStream(requestUrl, requestHeaders);
+    if (chunkPrefetchExecutor != null) {
+      return new ReadAheadInputStream(in, chunkSize, chunkPrefetchExecutor);
+    }
+    return new BufferedInputStream(in, chunkSize);
+  }
+
+  /**
+   * Downloads the bytes from {@link #bytesDownloaded} to the given end in concurrent ranges.
+   *
+   * <p>If the download of a range fails, {@link #bytesDownloaded} is set to the number of bytes
+   * downloaded before the first byte that is missing, so that the download can be resumed from
+   * there even though later ranges may have been downloaded.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param channel destination channel
+   * @param channelOffset position in the channel of the first byte of the media content
+   * @param endByteIndex index of the byte after the last byte to download
+   */
+  private void downloadRanges(
+      final GenericUrl requestUrl,
+      final HttpHeaders requestHeaders,
+      final SeekableByteChannel channel,
+      final long channelOffset,
+      final long endByteIndex)
+      throws IOException {
+    nextRangeStart = bytesDownloaded;
+    long rangeCount = (endByteIndex - nextRangeStart + chunkSize - 1) / chunkSize;
+    int connectionCount = (int) Math.min(parallelDownloadConnectionCount, rangeCount);
+    final Exception[] failures = new Exception[connectionCount];
+    final CountDownLatch done = new CountDownLatch(connectionCount);
+    // destinations of the ranges that are being downloaded or failed, by the start of the range
+    final TreeMap<Long, ChannelDestination> unfinishedRanges =
+        new TreeMap<Long, ChannelDestination>();
+    for (int i = 0; i < connectionCount; i++) {
+      final int index = i;
+      Runnable task =
+          new Runnable() {
+            public void run() {
+              try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+                long rangeStart;
+                while ((rangeStart = takeRange(endByteIndex)) != -1) {
+                  long rangeEnd = Math.min(rangeStart + chunkSize, endByteIndex) - 1;
+                  ChannelDestination destination =
+                      new ChannelDestination(channel, buffer, channelOffset + rangeStart);
+                  destination.countBytes = true;
+                  synchronized (unfinishedRanges) {
+                    unfinishedRanges.put(rangeStart, destination);
+                  }
+                  downloadRange(requestUrl, requestHeaders, destination, channelOffset, rangeEnd);
+                  synchronized (unfinishedRanges) {
+                    unfinishedRanges.remove(rangeStart);
+                  }
+                  synchronized (MediaHttpDownloader.this) {
+                    updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
+                  }
+                }
+              } catch (IOException e) {
+                failures[index] = e;
+              } catch (RuntimeException e) {
+                failures[index] = e;
+              } finally {
+                if (failures[index] != null) {
+                  synchronized (MediaHttpDownloader.this) {
+                    parallelDownloadFailed = true;
+                  }
+                }
+                done.countDown();
+              }
+            }
+          };
+      try {
+        parallelDownloadExecutor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the ranges to be downloaded");
+    }
+    synchronized (this) {
+      if (parallelDownloadFailed) {
+        // the bytes after the first missing byte are not counted, even if they were downloaded
+        long contiguousEnd = Math.min(nextRangeStart, endByteIndex);
+        synchronized (unfinishedRanges) {
+          if (!unfinishedRanges.isEmpty()) {
+            ChannelDestination firstUnfinished = unfinishedRanges.firstEntry().getValue();
+            contiguousEnd = Math.min(contiguousEnd, firstUnfinished.position - channelOffset);
+          }
+        }
+        bytesDownloaded = contiguousEnd;
+      }
+    }
+    for (Exception failure : failures) {
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure != null) {
+        throw (RuntimeException) failure;
+      }
+    }
+  }
+
+  /**
+   * Returns the start of the next range of a parallel download to download or {@code -1} if all
+   * ranges are being downloaded or the download of a range failed.
+   */
+  private synchronized long takeRange(long endByteIndex) {
+    if (parallelDownloadFailed || nextRangeStart >= endByteIndex) {
+      return -1;
+    }
+    long rangeStart = nextRangeStart;
+    nextRangeStart += chunkSize;
+    return rangeStart;
+  }
+
+  /**
+   * Downloads a range of a parallel download, retrying with the {@link #backOff} policy on an I/O
+   * exception or a server error.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param destination destination positioned at the first byte of the range
+   * @param channelOffset position in the channel of the first byte of the media content
+   * @param rangeEnd index of the last byte of the range
+   */
+  private void downloadRange(
       GenericUrl requestUrl,
       HttpHeaders requestHeaders,
-      OutputStream outputStream)
+      ChannelDestination destination,
+      long channelOffset,
+      long rangeEnd)
+      throws IOException {
+    BackOff rangeBackOff = newRangeBackOff();
+    while (true) {
+      long nextByteIndex = destination.position - channelOffset;
+      try {
+        HttpRequest request = buildRequest(requestUrl, requestHeaders);
+        request.getHeaders().setRange("bytes=" + nextByteIndex + "-" + rangeEnd);
+        HttpResponse response = request.execute();
+        try {
+          checkContentRange(response, nextByteIndex);
+          checkETag(response);
+          destination.copy(response.getContent());
+        } finally {
+          response.disconnect();
+        }
+        return;
+      } catch (IOException e) {
+        backOffOrThrow(e, rangeBackOff);
+      }
+    }
+  }
+
+  /**
+   * Returns the back-off policy for retrying the requests of a range of a parallel download or
+   * {@code null} to not retry them.
+   *
+   * <p>An {@link ExponentialBackOff} is copied, so that each range starts with a fresh policy of
+   * the same settings. Other policies cannot be copied and are shared by all ranges.
+   */
+  private BackOff newRangeBackOff() {
+    if (!(backOff instanceof ExponentialBackOff)) {
+      return backOff;
+    }
+    ExponentialBackOff exponentialBackOff = (ExponentialBackOff) backOff;
+    return new ExponentialBackOff.Builder()
+        .setInitialIntervalMillis(exponentialBackOff.getInitialIntervalMillis())
+        .setRandomizationFactor(exponentialBackOff.getRandomizationFactor())
+        .setMultiplier(exponentialBackOff.getMultiplier())
+        .setMaxIntervalMillis(exponentialBackOff.getMaxIntervalMillis())
+        .setMaxElapsedTimeMillis(exponentialBackOff.getMaxElapsedTimeMillis())
+        .build();
+  }
+
+  /**
+   * Waits before retrying a request that failed with the given exception, or rethrows it if it is
+   * not to be retried.
+   *
+   * <p>Requests are retried after an I/O exception or a server error, until the back-off policy
+   * stops. Client errors, such as 412 Precondition Failed, and changes of the media content are not
+   * retried.
+   *
+   * @param e exception of the failed request
+   * @param backOff back-off policy or {@code null} to not retry
+   */
+  private void backOffOrThrow(IOException e, BackOff backOff) throws IOException {
+    if (backOff == null
+        || e instanceof MediaChangedException
+        || e instanceof HttpResponseException
+            && ((HttpResponseException) e).getStatusCode() < 500) {
+      throw e;
+    }
+    long backOffMillis;
+    synchronized (backOff) {
+      // a policy that cannot be copied is shared by the ranges of a parallel download
+      backOffMillis = backOff.nextBackOffMillis();
+    }
+    if (backOffMillis == BackOff.STOP) {
+      throw e;
+    }
+    try {
+      sleeper.sleep(backOffMillis);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a download request");
+    }
+  }
+
+  /**
+   * Decides whether to validate the {@link #eTag}, which is when requests are retried with a
+   * back-off policy, when the ETag was set or when a download is resumed.
+   */
+  private void startETagValidation() {
+    validateETag = backOff != null || eTag != null || bytesDownloaded > 0;
+  }
+
+  /**
+   * Returns whether the given ETag is a weak ETag, which never matches an If-Match header because
+   * it is compared with the strong comparison.
+   */
+  private static boolean isWeakETag(String eTag) {
+    return eTag.startsWith("W/");
+  }
+
+  /**
+   * Builds a GET request with the given headers, which validates the {@link #eTag} if it is known
+   * and validated.
+   *
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   */
+  private HttpRequest buildRequest(GenericUrl requestUrl, HttpHeaders requestHeaders)
       throws IOException {
-    // prepare the GET request
     HttpRequest request = requestFactory.buildGetRequest(requestUrl);
-    // add request headers
     if (requestHeaders != null) {
       request.getHeaders().putAll(requestHeaders);
     }
-    // set Range header (if necessary)
-    if (bytesDownloaded != 0 || currentRequestLastBytePos != -1) {
-      StringBuilder rangeHeader = new StringBuilder();
-      rangeHeader.append("bytes=").append(bytesDownloaded).append("-");
-      if (currentRequestLastBytePos != -1) {
-        rangeHeader.append(currentRequestLastBytePos);
+    if (validateETag
+        && eTag != null
+        && !isWeakETag(eTag)
+        && request.getHeaders().getIfMatch() == null) {
+      // the server fails the request with 412 Precondition Failed if the media content changed
+      request.getHeaders().setIfMatch(eTag);
+    }
+    return request;
+  }
+
+  /**
+   * Checks that the given response is a partial response that starts at the given byte, because a
+   * server that ignores the Range header responds with the media content from its first byte.
+   *
+   * @param response response to a request with a Range header
+   * @param firstBytePos index of the first byte of the requested range
+   * @throws IOException if the response does not start at the given byte
+   */
+  private static void checkContentRange(HttpResponse response, long firstBytePos)
+      throws IOException {
+    String contentRange = response.getHeaders().getContentRange();
+    if (response.getStatusCode() != 206
+        || contentRange == null
+        || !contentRange.startsWith("bytes " + firstBytePos + "-")) {
+      throw new IOException(
+          String.format(
+              "unexpected response %s with Content-Range %s for a range starting at %s",
+              response.getStatusCode(), contentRange, firstBytePos));
+    }
+  }
+
+  /**
+   * Sets the {@link #eTag} from the first response with a strong ETag, or checks that the ETag of
+   * the given response did not change if it is validated, in case the server ignored the If-Match
+   * header. Weak ETags are ignored.
+   *
+   * @throws IOException if the media content changed
+   */
+  private void checkETag(HttpResponse response) throws IOException {
+    String responseETag = response.getHeaders().getETag();
+    if (responseETag == null || isWeakETag(responseETag)) {
+      return;
+    }
+    if (eTag == null) {
+      eTag = responseETag;
+    } else if (validateETag && !isWeakETag(eTag) && !eTag.equals(responseETag)) {
+      throw new MediaChangedException(
+          String.format(
+              "media content changed during the download, ETag %s is not %s",
+              responseETag, eTag));
+    }
+  }
+
+  /** Exception thrown if the media content changed during a download, which is not retried. */
+  private static final class MediaChangedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    MediaChangedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Starts the {@link #mediaDigest} if it is enabled and the download starts at the first byte of
+   * the media content, because the hashes of the server are those of the whole media content.
+   */
+  private void startMediaDigest() {
+    mediaDigest = mediaDigestEnabled && bytesDownloaded == 0 ? new MediaDigest() : null;
+  }
+
+  /**
+   * Sets the {@link #hashHeaderValues} from the first response that has them, or stops the {@link
+   * #mediaDigest} if the server hashes bytes other than those of the response content.
+   */
+  private void checkHashHeader(HttpResponse response) {
+    if (mediaDigest == null) {
+      return;
+    }
+    HttpHeaders headers = response.getHeaders();
+    if (!isIdentityEncoding(headers.getContentEncoding())
+        || !isIdentityEncoding(headers.getFirstHeaderStringValue(STORED_CONTENT_ENCODING_HEADER))) {
+      // the hashes are those of the stored bytes, not of the decoded media content
+      mediaDigest = null;
+      return;
+    }
+    if (hashHeaderValues == null) {
+      List<String> values = headers.getHeaderStringValues(MediaDigest.HASH_HEADER);
+      if (!values.isEmpty()) {
+        hashHeaderValues = values;
       }
-      request.getHeaders().setRange(rangeHeader.toString());
     }
-    // execute the request and copy into the output stream
-    HttpResponse response = request.execute();
-    try {
-      ByteStreams.copy(response.getContent(), outputStream);
-    } finally {
-      response.disconnect();
+  }
+
+  private static boolean isIdentityEncoding(String contentEncoding) {
+    return contentEncoding == null || contentEncoding.equalsIgnoreCase("identity");
+  }
+
+  /**
+   * Commits the given pending digest of the bytes read from a response into the {@link
+   * #mediaDigest} if they are exactly the given number of bytes copied to the destination.
+   * Otherwise, bytes were read that were not copied, which cannot be read again, so the digest is
+   * stopped.
+   */
+  private void updateMediaDigest(MediaDigest pendingMediaDigest, long bytesCopied) {
+    if (mediaDigest != null) {
+      mediaDigest =
+          pendingMediaDigest.getLength() == mediaDigest.getLength() + bytesCopied
+              ? pendingMediaDigest
+              : null;
+    }
+  }
+
+  /**
+   * Verifies the {@link #mediaDigest} of the whole media content against the hashes in the {@link
+   * #hashHeaderValues}, if both are known.
+   *
+   * @throws IOException if a hash does not match
+   */
+  private void verifyMediaDigest() throws IOException {
+    if (mediaDigest == null
+        || hashHeaderValues == null
+        || mediaDigest.getLength() != mediaContentLength) {
+      return;
+    }
+    for (String hashHeaderValue : hashHeaderValues) {
+      for (String hash : hashHeaderValue.split(",")) {
+        hash = hash.trim();
+        String actual;
+        if (hash.startsWith("crc32c=")) {
+          actual = "crc32c=" + mediaDigest.getCrc32cBase64();
+        } else if (hash.startsWith("md5=")) {
+          actual = "md5=" + mediaDigest.getMd5Base64();
+        } else {
+          continue;
+        }
+        if (!hash.equals(actual)) {
+          throw new IOException(
+              String.format(
+                  "media content is corrupted, %s is %s but the downloaded bytes have %s",
+                  MediaDigest.HASH_HEADER, hash, actual));
+        }
+      }
+    }
+  }
+
+  /** Input stream that adds the bytes read to a media digest. */
+  private static final class DigestingInputStream extends FilterInputStream {
+
+    /** Media digest. */
+    private final MediaDigest digest;
+
+    DigestingInputStream(InputStream in, MediaDigest digest) {
+      super(in);
+      this.digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        digest.update(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int bytesRead = in.read(b, off, len);
+      if (bytesRead > 0) {
+        digest.update(b, off, bytesRead);
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped bytes would be missing from the digest
+      return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /** Destination of the downloaded media content. */
+  private abstract static class MediaDestination {
+
+    /** Number of bytes copied to the destination so far. */
+    long bytesCopied;
+
+    /**
+     * Copies the given content of a response to the destination, adding the bytes to {@link
+     * #bytesCopied} as they are copied, so that it is exact even if the copy fails.
+     */
+    abstract void copy(InputStream content) throws IOException;
+
+    /**
+     * Returns whether every response must be a partial response of the requested range, even the
+     * first one, because the destination only holds the requested range.
+     */
+    boolean requiresPartialContent() {
+      return false;
+    }
+  }
+
+  /** Destination that is an output stream. */
+  private static final class OutputStreamDestination extends MediaDestination {
+
+    /** Destination output stream. */
+    private final OutputStream outputStream;
+
+    OutputStreamDestination(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    void copy(InputStream content) throws IOException {
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = content.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, bytesRead);
+        bytesCopied += bytesRead;
+      }
+    }
+  }
+
+  /**
+   * Destination that is a channel, which is written through a buffer that is filled from the
+   * content before each write.
+   *
+   * <p>The channel is either written at its current position, or at given positions. File channels
+   * are written at absolute positions, so that ranges can be written concurrently. Other channels
+   * are positioned and written while holding their lock.
+   */
+  private final class ChannelDestination extends MediaDestination {
+
+    /** Destination channel. */
+    private final WritableByteChannel channel;
+
+    /** Buffer, usually a direct buffer. */
+    private final ByteBuffer buffer;
+
+    /** Position in the channel of the next byte or {@code -1} for the current position. */
+    long position;
+
+    /** Whether to add the bytes written to {@link #bytesDownloaded}. */
+    boolean countBytes;
+
+    ChannelDestination(WritableByteChannel channel, ByteBuffer buffer, long position) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    @Override
+    void copy(InputStream content) throws IOException {
+      ReadableByteChannel contentChannel = Channels.newChannel(content);
+      buffer.clear();
+      while (true) {
+        int bytesRead;
+        try {
+          bytesRead = contentChannel.read(buffer);
+        } catch (IOException e) {
+          // write the bytes read before the failure, so that a retry continues after them
+          buffer.flip();
+          write();
+          throw e;
+        }
+        if (bytesRead == -1 || !buffer.hasRemaining()) {
+          buffer.flip();
+          write();
+          buffer.clear();
+          if (bytesRead == -1) {
+            return;
+          }
+        }
+      }
+    }
+
+    /** Writes the remaining bytes of the buffer to the channel. */
+    private void write() throws IOException {
+      int length = buffer.remaining();
+      if (position == -1) {
+        while (buffer.hasRemaining()) {
+          bytesCopied += channel.write(buffer);
+        }
+        return;
+      }
+      if (channel instanceof FileChannel) {
+        FileChannel fileChannel = (FileChannel) channel;
+        while (buffer.hasRemaining()) {
+          fileChannel.write(buffer, position + length - buffer.remaining());
+        }
+      } else {
+        SeekableByteChannel seekableChannel = (SeekableByteChannel) channel;
+        synchronized (seekableChannel) {
+          seekableChannel.position(position);
+          while (buffer.hasRemaining()) {
+            seekableChannel.write(buffer);
+          }
+        }
+      }
+      position += length;
+      bytesCopied += length;
+      if (countBytes) {
+        synchronized (MediaHttpDownloader.this) {
+          bytesDownloaded += length;
+        }
+      }
+    }
+  }
+
+  /** Destination that is a region of a byte array. */
+  private static final class ArrayDestination extends MediaDestination {
+
+    /** Destination array. */
+    private final byte[] array;
+
+    /** Offset of the region in the array. */
+    private final int offset;
+
+    /** Length of the region. */
+    private final int length;
+
+    ArrayDestination(byte[] array, int offset, int length) {
+      this.array = array;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    void copy(InputStream content) throws IOException {
+      while (bytesCopied < length) {
+        int bytesRead =
+            content.read(array, offset + (int) bytesCopied, length - (int) bytesCopied);
+        if (bytesRead == -1) {
+          return;
+        }
+        bytesCopied += bytesRead;
+      }
+      if (content.read() != -1) {
+        throw new IOException("response has more bytes than requested");
+      }
+    }
+
+    @Override
+    boolean requiresPartialContent() {
+      return true;
+    }
+  }
+
+  /**
+   * Input stream of the media content that downloads a range for each read, of at most the chunk
+   * size, directly into the array read into.
+   */
+  private final class ChunkInputStream extends InputStream {
+
+    /** Request URL where the download requests will be sent. */
+    private final GenericUrl requestUrl;
+
+    /** Request headers or {@code null} to ignore. */
+    private final HttpHeaders requestHeaders;
+
+    ChunkInputStream(GenericUrl requestUrl, HttpHeaders requestHeaders) {
+      this.requestUrl = requestUrl;
+      this.requestHeaders = requestHeaders;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (downloadState == DownloadState.MEDIA_COMPLETE) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      long currentRequestLastBytePos = bytesDownloaded + Math.min(len, chunkSize) - 1;
+      if (lastBytePos != -1) {
+        currentRequestLastBytePos = Math.min(lastBytePos, currentRequestLastBytePos);
+      }
+      ArrayDestination destination = new ArrayDestination(b, off, len);
+      long firstBytePos = bytesDownloaded;
+      MediaDigest firstMediaDigest = mediaDigest == null ? null : mediaDigest.copy();
+      try {
+        HttpResponse response =
+            executeCurrentRequest(
+                currentRequestLastBytePos, requestUrl, requestHeaders, destination);
+
+        String contentRange = response.getHeaders().getContentRange();
+        long nextByteIndex = getNextByteIndex(contentRange);
+        setMediaContentLength(contentRange);
+        if (completeIfDone(nextByteIndex)) {
+          return destination.bytesCopied == 0 ? -1 : (int) destination.bytesCopied;
+        }
+        if (destination.bytesCopied == 0) {
+          throw new IOException(
+              String.format(
+                  "empty response with Content-Range %s before the end of the media content",
+                  contentRange));
+        }
+        bytesDownloaded = nextByteIndex;
+        updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
+        return (int) destination.bytesCopied;
+      } catch (IOException e) {
+        // the bytes copied into the array are not returned, so a further read downloads them again
+        bytesDownloaded = firstBytePos;
+        mediaDigest = firstMediaDigest;
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Completes the download if all requested bytes have been downloaded.
+   *
+   * @param nextByteIndex index of the first byte that has not been downloaded
+   * @return whether the download is complete
+   */
+  private boolean completeIfDone(long nextByteIndex) throws IOException {
+    // If the last byte position is specified, complete the download when it is less than
+    // nextByteIndex.
+    if (lastBytePos != -1 && lastBytePos <= nextByteIndex) {
+      // All required bytes from the range have been downloaded from the server.
+      bytesDownloaded = lastBytePos;
+      verifyMediaDigest();
+      updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
+      return true;
+    }
+
+    if (mediaContentLength <= nextByteIndex) {
+      // All required bytes have been downloaded from the server.
+      bytesDownloaded = mediaContentLength;
+      verifyMediaDigest();
+      updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Executes the current request, retrying it with the {@link #backOff} policy if it fails.
+   *
+   * @param currentRequestLastBytePos last byte position for current request
+   * @param requestUrl request URL where the download requests will be sent
+   * @param requestHeaders request headers or {@code null} to ignore
+   * @param destination destination of the media content
+   * @return HTTP response
+   */
+  private HttpResponse executeCurrentRequest(
+      long currentRequestLastBytePos,
+      GenericUrl requestUrl,
+      HttpHeaders requestHeaders,
+      MediaDestination destination)
+      throws IOException {
+    if (backOff != null) {
+      backOff.reset();
+    }
+    while (true) {
+      // prepare the GET request
+      HttpRequest request = buildRequest(requestUrl, requestHeaders);
+      // set Range header (if necessary)
+      if (bytesDownloaded != 0 || currentRequestLastBytePos != -1) {
+        StringBuilder rangeHeader = new StringBuilder();
+        rangeHeader.append("bytes=").append(bytesDownloaded).append("-");
+        if (currentRequestLastBytePos != -1) {
+          rangeHeader.append(currentRequestLastBytePos);
+        }
+        request.getHeaders().setRange(rangeHeader.toString());
+      }
+      // execute the request and copy into the destination
+      long bytesCopied = destination.bytesCopied;
+      MediaDigest pendingMediaDigest = mediaDigest == null ? null : mediaDigest.copy();
+      try {
+        HttpResponse response = request.execute();
+        try {
+          if (bytesDownloaded != 0 || destination.requiresPartialContent()) {
+            checkContentRange(response, bytesDownloaded);
+          }
+          checkETag(response);
+          checkHashHeader(response);
+          InputStream content = response.getContent();
+          if (pendingMediaDigest != null) {
+            content = new DigestingInputStream(content, pendingMediaDigest);
+          }
+          destination.copy(content);
+        } finally {
+          response.disconnect();
+        }
+        updateMediaDigest(pendingMediaDigest, destination.bytesCopied - bytesCopied);
+        return response;
+      } catch (IOException e) {
+        // a retry continues after the bytes copied before the request failed
+        bytesDownloaded += destination.bytesCopied - bytesCopied;
+        updateMediaDigest(pendingMediaDigest, destination.bytesCopied - bytesCopied);
+        backOffOrThrow(e, backOff);
+      }
     }
-    return response;
   }
 
   /**
@@ -343,6 +1315,192 @@ public final class MediaHttpDownloader {
     return this;
   }
 
+  /**
+   * {@link Beta} <br>
+   * Sets up parallel download into a channel or disables it if the executor is {@code null}, which
+   * is the default. See {@link #download(GenericUrl, HttpHeaders, SeekableByteChannel)}. Direct
+   * download takes precedence over parallel download.
+   *
+   * @param executor executor that downloads the ranges or {@code null} to disable parallel download
+   * @param connectionCount maximum number of ranges downloaded concurrently
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpDownloader setParallelDownload(Executor executor, int connectionCount) {
+    if (executor != null) {
+      Preconditions.checkArgument(connectionCount > 0);
+    }
+    this.parallelDownloadExecutor = executor;
+    this.parallelDownloadConnectionCount = connectionCount;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns whether parallel download into a channel is enabled.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean isParallelDownloadEnabled() {
+    return parallelDownloadExecutor != null;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the maximum number of ranges of a parallel download that are downloaded concurrently.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public int getParallelDownloadConnectionCount() {
+    return parallelDownloadConnectionCount;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the back-off policy for retrying a request of a download that failed or {@code null}
+   * for none.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public BackOff getBackOff() {
+    return backOff;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the back-off policy for retrying a request of a direct, resumable or parallel download
+   * that failed with an I/O exception or a server error, or {@code null} for none, which is the
+   * default.
+   *
+   * <p>Bytes copied before a request failed, for example because the connection was reset while
+   * copying the content of a response, are not downloaded again: {@link #getNumBytesDownloaded}
+   * includes them and the retried request starts at the first byte that was not copied. The
+   * back-off policy is reset for each chunk. Each range of a {@link #setParallelDownload parallel
+   * download} is retried with a copy of the policy if it is an {@link ExponentialBackOff}. Other
+   * policies are shared by the concurrent ranges without being reset. Setting a back-off policy
+   * enables the validation of the ETag of the media content, see {@link #getETag}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpDownloader setBackOff(BackOff backOff) {
+    this.backOff = backOff;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the ETag of the media content or {@code null} before it is known.
+   *
+   * <p>The ETag is validated if a {@link #setBackOff back-off policy} is set, if the ETag is set
+   * with {@link #setETag} or if the download is resumed after {@link #setBytesDownloaded bytes
+   * that were downloaded before}. The ETag of the first response is then sent in an If-Match
+   * header with every further request of the download, unless the request headers have one, so
+   * that the server fails the request with 412 Precondition Failed if the media content changed
+   * instead of returning bytes of the changed media content. The download then fails with an
+   * {@link HttpResponseException}, or with an {@link IOException} if the server ignored the
+   * If-Match header and returned a different ETag. Weak ETags are never validated, because they
+   * never match an If-Match header.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public String getETag() {
+    return eTag;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the ETag of the media content, for example to resume an interrupted download with {@link
+   * #setBytesDownloaded} only if the media content did not change, or {@code null} to learn it from
+   * the first response, which is the default. Setting an ETag enables its validation, see {@link
+   * #getETag}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpDownloader setETag(String eTag) {
+    this.eTag = eTag;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns whether to compute the {@link #getMediaDigest media digest} during a download and
+   * verify it against the hashes of the server.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean isMediaDigestEnabled() {
+    return mediaDigestEnabled;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets whether to compute the CRC32C and MD5 {@link #getMediaDigest media digest} during a
+   * download and verify it against the hashes of the server. The default value is {@code false}.
+   *
+   * <p>The bytes are digested as they are copied to the destination, so the media content is not
+   * read a second time. Once the whole media content is downloaded, the digest is compared with the
+   * hashes in the {@link MediaDigest#HASH_HEADER} header of the responses, if any, and the download
+   * fails with an {@link IOException} if a hash does not match, before the progress listener is
+   * notified that the download is complete.
+   *
+   * <p>The digest is only computed for downloads that start at the first byte of the media content
+   * and is not computed for parallel downloads. The media content is not verified if it is only
+   * partially downloaded, if it is compressed for the transfer, or if a failed request read bytes
+   * that could not be copied to the destination.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpDownloader setMediaDigestEnabled(boolean mediaDigestEnabled) {
+    this.mediaDigestEnabled = mediaDigestEnabled;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns a copy of the digest of the media bytes downloaded so far, which is the digest of the
+   * whole media content once the download is complete, or {@code null} if it is not computed.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaDigest getMediaDigest() {
+    return mediaDigest == null ? null : mediaDigest.copy();
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the executor that downloads the next chunk of a {@link #openStream streamed download}
+   * in the background or {@code null} for none.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public Executor getChunkPrefetchExecutor() {
+    return chunkPrefetchExecutor;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the executor that downloads the next chunk of a {@link #openStream streamed download} in
+   * the background while the current chunk is consumed or {@code null} to download each chunk when
+   * it is needed. The default value is {@code null}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpDownloader setChunkPrefetchExecutor(Executor chunkPrefetchExecutor) {
+    this.chunkPrefetchExecutor = chunkPrefetchExecutor;
+    return this;
+  }
+
   /** Sets the progress listener to send progress notifications to or {@code null} for none. */
   public MediaHttpDownloader setProgressListener(
       MediaHttpDownloaderProgressListener progressListener) {
@@ -18,11 +18,13 @@ import com.google.api.client.googleapis.MethodOverride;
 import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.FileContent;
 import com.google.api.client.http.GZipEncoding;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpBackOffIOExceptionHandler;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
 import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpEncoding;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpMethods;
 import com.google.api.client.http.HttpRequest;
@@ -32,14 +34,38 @@ import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.MultipartContent;
+import com.google.api.client.util.BackOff;
 import com.google.api.client.util.Beta;
 import com.google.api.client.util.ByteStreams;
+import com.google.api.client.util.NanoClock;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
+import com.google.api.client.util.StreamingContent;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Media HTTP Uploader, with support for both direct and resumable media uploads. Documentation is
@@ -51,7 +77,8 @@ import java.util.Arrays;
  * {@link BufferedInputStream} to support the {@link InputStream#mark} and {@link InputStream#reset}
  * methods required for handling server errors. If the media content length is unknown then each
  * chunk is stored temporarily in memory. This is required to determine when the last chunk is
- * reached.
+ * reached. If the media content is a {@link FileContent}, each chunk is instead read directly from
+ * a region of the file, so recovering from server errors does not require buffering.
  *
  * <p>See {@link #setDisableGZipContent(boolean)} for information on when content is gzipped and how
  * to control that behavior.
@@ -116,6 +143,9 @@ public final class MediaHttpUploader {
   static final int MB = 0x100000;
   private static final int KB = 0x400;
 
+  /** Maximum number of bytes written at once when writes are metered through a rate limiter. */
+  private static final int RATE_LIMITED_WRITE_SIZE = 16 * KB;
+
   /** Minimum number of bytes that can be uploaded to the server (set to 256KB). */
   public static final int MINIMUM_CHUNK_SIZE = 256 * KB;
 
@@ -171,6 +201,21 @@ public final class MediaHttpUploader {
   /** An Input stream of the HTTP media content or {@code null} before {@link #upload}. */
   private InputStream contentInputStream;
 
+  /**
+   * File channel the chunks of file-backed media content are read from during a resumable upload
+   * or {@code null} for none.
+   */
+  @VisibleForTesting FileChannel mediaFileChannel;
+
+  /** Unique upload URL of the resumable upload or {@code null} before it is known. */
+  private GenericUrl currentUploadUrl;
+
+  /** Time in nanoseconds at which the upload of the current chunk started. */
+  private long currentChunkStartNanos;
+
+  /** Position of the first byte of the media content in {@link #mediaFileChannel}. */
+  private long mediaFileOffset;
+
   /**
    * Determines whether direct media upload is enabled or disabled. If value is set to {@code true}
    * then a direct upload will be done where the whole media content is uploaded in a single request
@@ -202,6 +247,33 @@ public final class MediaHttpUploader {
    */
   private int chunkSize = DEFAULT_CHUNK_SIZE;
 
+  /**
+   * Policy that adapts the chunk size after each chunk of a resumable upload or {@code null} to use
+   * {@link #chunkSize} for all chunks.
+   */
+  private ChunkSizePolicy chunkSizePolicy;
+
+  /** Size of the next chunk of a resumable upload, starting at {@link #chunkSize}. */
+  private int nextChunkSize;
+
+  /** Number of errors recovered from while uploading the current chunk. */
+  private int chunkErrorCount;
+
+  /** Nano clock used to measure the time it takes to upload a chunk. */
+  NanoClock nanoClock = NanoClock.SYSTEM;
+
+  /** Rate limiter that chunk writes are metered through or {@code null} for none. */
+  private UploadRateLimiter uploadRateLimiter;
+
+  /** Priority of this upload in the {@link #uploadRateLimiter}. */
+  private UploadRateLimiter.Priority uploadPriority = UploadRateLimiter.Priority.NORMAL;
+
+  /** Upload rate of the last chunk in bytes per second or {@code 0} before the first chunk. */
+  private double currentUploadRate;
+
+  /** Back-off policy for retrying chunks of asynchronous uploads or {@code null} to not retry. */
+  private BackOff asyncBackOff;
+
   /**
    * Used to cache a single byte when the media content length is unknown or {@code null} for none.
    */
@@ -228,6 +300,11 @@ public final class MediaHttpUploader {
    */
   private byte currentRequestContentBuffer[];
 
+  /**
+   * Pool that {@link #currentRequestContentBuffer} is borrowed from or {@code null} to allocate it.
+   */
+  private ChunkBufferPool chunkBufferPool;
+
   /**
    * Whether to disable GZip compression of HTTP content.
    *
@@ -235,9 +312,69 @@ public final class MediaHttpUploader {
    */
   private boolean disableGZipContent;
 
+  /** Whether to gzip the chunks of resumable uploads of media content of known length. */
+  private boolean knownLengthGZipEnabled;
+
+  /** Number of gzip-compressed bytes sent in request bodies so far. */
+  private long numCompressedBytesSent;
+
   /** Sleeper. * */
   Sleeper sleeper = Sleeper.DEFAULT;
 
+  /**
+   * Executor that reads the next chunk of media content of unknown length while the current chunk
+   * is uploaded or {@code null} to read each chunk when it is needed.
+   */
+  private Executor chunkPrefetchExecutor;
+
+  /** Executor that uploads the components of a parallel upload or {@code null} for none. */
+  private Executor parallelUploadExecutor;
+
+  /** Maximum number of components of a parallel upload. */
+  private int parallelUploadComponentCount;
+
+  /** Composer of a parallel upload or {@code null} if parallel upload is disabled. */
+  private MediaUploadComposer parallelUploadComposer;
+
+  /** Uploaders of the components of a parallel upload, empty before {@link #upload}. */
+  private List<MediaHttpUploader> componentUploaders = Collections.emptyList();
+
+  /** Number of bytes the server received so far for each component of a parallel upload. */
+  private long[] componentBytesUploaded;
+
+  /**
+   * Whether the parallel upload this uploader uploads a component of was stopped because another
+   * component failed, or {@code null} if this uploader does not upload a component.
+   */
+  private AtomicBoolean parallelUploadStopped;
+
+  /** Store of the resumable upload session or {@code null} to not store it. */
+  private UploadSessionStore uploadSessionStore;
+
+  /** ID of the upload session in {@link #uploadSessionStore} or {@code null} for none. */
+  private String uploadSessionId;
+
+  /** Fingerprint of the media content or {@code null} to derive it from the media content. */
+  private String mediaFingerprint;
+
+  /** Whether to compute the {@link #mediaDigest} during a resumable upload. */
+  private boolean mediaDigestEnabled;
+
+  /** Whether to send the media digest in the {@link MediaDigest#HASH_HEADER} of the final chunk. */
+  private boolean sendMediaDigest;
+
+  /** Digest of the media bytes the server received so far or {@code null} if not computed. */
+  private MediaDigest mediaDigest;
+
+  /**
+   * Digest of the media bytes the server received so far followed by the bytes of the current
+   * chunk that were last written, or {@code null} if the current chunk was not written yet.
+   */
+  private MediaDigest pendingMediaDigest;
+
+  /** Content of the current chunk, as read from the media content. */
+  private AbstractInputStreamContent currentChunkContent;
+
   /**
    * Construct the {@link MediaHttpUploader}.
    *
@@ -266,6 +403,19 @@ public final class MediaHttpUploader {
             : transport.createRequestFactory(httpRequestInitializer);
   }
 
+  /**
+   * Construct an uploader for a component of a parallel upload.
+   *
+   * @param mediaContent The content of the component
+   * @param requestFactory The request factory of the parallel upload
+   */
+  private MediaHttpUploader(
+      AbstractInputStreamContent mediaContent, HttpRequestFactory requestFactory) {
+    this.mediaContent = mediaContent;
+    this.transport = requestFactory.getTransport();
+    this.requestFactory = requestFactory;
+  }
+
   /**
    * Executes a direct media upload or resumable media upload conforming to the specifications
    * listed <a
@@ -305,7 +455,90 @@ public final class MediaHttpUploader {
     if (directUploadEnabled) {
       return directUpload(initiationRequestUrl);
     }
-    return resumableUpload(initiationRequestUrl);
+    if (parallelUploadComposer != null) {
+      return parallelUpload(initiationRequestUrl);
+    }
+    try {
+      return resumableUpload(initiationRequestUrl);
+    } finally {
+      releaseChunkBuffer();
+    }
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Executes the upload like {@link #upload} does, but asynchronously on the given executor.
+   *
+   * <p>Each step of a resumable upload, that is the initiation request and each chunk, runs as a
+   * separate task on the executor, so a thread is only used while a request is executed, and not
+   * between chunks. After a server error or an I/O exception, the upload status is queried and the
+   * upload continues after the delay of the {@link #setAsyncBackOff asynchronous back-off}, without
+   * using a thread while waiting. The delay is scheduled on the executor if it is a {@link
+   * ScheduledExecutorService}, or else on a timer thread shared by all uploaders. Direct and
+   * parallel uploads run as a single task.
+   *
+   * <p>Back-off handlers that the request initializer sets on the requests still sleep on the
+   * executor thread, so use {@link #setAsyncBackOff} instead. The progress listener is notified
+   * from the executor threads. If the executor rejects a task, the future fails with the {@link
+   * RejectedExecutionException}. Cancelling the future stops the upload before its next step.
+   *
+   * <p>This method is not reentrant and must not be combined with {@link #upload} or {@link
+   * #resume} on the same instance.
+   *
+   * @param initiationRequestUrl The request URL where the initiation request will be sent
+   * @param executor executor that runs the steps of the upload
+   * @return future of the HTTP response, which the caller is responsible for as for {@link #upload}
+   * @since 1.33
+   */
+  @Beta
+  public ListenableFuture<HttpResponse> uploadAsync(
+      GenericUrl initiationRequestUrl, Executor executor) {
+    Preconditions.checkArgument(uploadState == UploadState.NOT_STARTED);
+    AsyncUpload asyncUpload =
+        new AsyncUpload(
+            Preconditions.checkNotNull(initiationRequestUrl), Preconditions.checkNotNull(executor));
+    asyncUpload.execute(asyncUpload.initiateStep);
+    return asyncUpload.future;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Resumes the resumable media upload stored in the {@link #setUploadSessionStore upload session
+   * store}, or starts a new upload as {@link #upload} does if there is no such session.
+   *
+   * <p>A stored session is only resumed if its media fingerprint and length match those of the
+   * media content, see {@link #getMediaFingerprint}. The number of bytes the server received is
+   * queried with an empty request with a "Content-Range: bytes &#42;/N" header, and the upload
+   * continues from there. If the server no longer knows the session (HTTP 404 or 410), a new upload
+   * is started. Direct and parallel uploads are never resumed.
+   *
+   * <p>The media content length must be known. As with {@link #upload}, this method is not
+   * reentrant and the caller is responsible for the returned HTTP response.
+   *
+   * @param initiationRequestUrl The request URL where the initiation request will be sent if a new
+   *     upload is started
+   * @return HTTP response
+   * @since 1.33
+   */
+  @Beta
+  public HttpResponse resume(GenericUrl initiationRequestUrl) throws IOException {
+    Preconditions.checkArgument(uploadState == UploadState.NOT_STARTED);
+    Preconditions.checkState(uploadSessionStore != null, "No upload session store is set.");
+    Preconditions.checkArgument(
+        isMediaLengthKnown(), "Resuming an upload requires media content of known length.");
+
+    UploadSession session = uploadSessionStore.get(uploadSessionId);
+    if (directUploadEnabled
+        || parallelUploadComposer != null
+        || session == null
+        || !session.matches(getMediaFingerprint(), getMediaContentLength())) {
+      return upload(initiationRequestUrl);
+    }
+    try {
+      return resumeUploadSession(session, initiationRequestUrl);
+    } finally {
+      releaseChunkBuffer();
+    }
   }
 
   /**
@@ -364,6 +597,22 @@ public final class MediaHttpUploader {
     } finally {
       initialResponse.disconnect();
     }
+    storeUploadSession(uploadUrl);
+
+    openMediaSource();
+    return uploadChunks(uploadUrl);
+  }
+
+  /**
+   * Opens the source the chunks of the media content are read from, which is {@link
+   * #mediaFileChannel} for file-backed media content or else {@link #contentInputStream}.
+   */
+  private void openMediaSource() throws IOException {
+    mediaDigest = mediaDigestEnabled || sendMediaDigest ? new MediaDigest() : null;
+    if (openMediaFileChannel()) {
+      // Chunks are read from regions of the file, so there is no stream to mark and reset.
+      return;
+    }
 
     // Convert media content into a byte stream to upload in chunks.
     contentInputStream = mediaContent.getInputStream();
@@ -372,171 +621,770 @@ public final class MediaHttpUploader {
       // support the {@link InputStream#mark} and {@link InputStream#reset} methods required for
       // handling server errors.
       contentInputStream = new BufferedInputStream(contentInputStream);
+    } else if (!isMediaLengthKnown() && chunkPrefetchExecutor != null) {
+      // Read the next chunk in the background while the current chunk is uploaded.
+      contentInputStream =
+          new ReadAheadInputStream(contentInputStream, chunkSize, chunkPrefetchExecutor);
+    }
+  }
+
+  /**
+   * Uploads the media content in chunks to the given upload URL.
+   *
+   * @param uploadUrl The unique upload URL returned by the initiation request
+   * @return HTTP response
+   */
+  private HttpResponse uploadChunks(GenericUrl uploadUrl) throws IOException {
+    currentUploadUrl = uploadUrl;
+    nextChunkSize = chunkSize;
+    boolean done = false;
+    try {
+      // Upload the media content in chunks.
+      while (true) {
+        checkParallelUploadNotStopped();
+        buildChunkRequest();
+        HttpResponse response = executeChunkRequest();
+        if (handleChunkResponse(response)) {
+          done = true;
+          return response;
+        }
+      }
+    } finally {
+      if (!done) {
+        closeMediaFileChannelQuietly();
+      }
+    }
+  }
+
+  /** Builds the {@link #currentRequest} that uploads the next chunk. */
+  private void buildChunkRequest() throws IOException {
+    ContentChunk contentChunk = buildContentChunk();
+    chunkErrorCount = 0;
+    currentChunkStartNanos = nanoClock.nanoTime();
+    currentChunkContent = contentChunk.getContent();
+    pendingMediaDigest = null;
+    String hashHeaderValue = null;
+    if (sendMediaDigest && isFinalChunk()) {
+      // The header is sent before the chunk, so read the chunk into memory to digest it first.
+      // Chunks of media content of unknown length are in memory already.
+      byte[] chunkBytes = new byte[currentChunkLength];
+      int bytesRead =
+          ByteStreams.read(currentChunkContent.getInputStream(), chunkBytes, 0, chunkBytes.length);
+      if (bytesRead != currentChunkLength) {
+        throw new EOFException("Media content ended before the final chunk was read");
+      }
+      currentChunkContent = new ByteArrayContent(mediaContent.getType(), chunkBytes);
+      hashHeaderValue =
+          mediaDigest.copy().update(chunkBytes, 0, chunkBytes.length).getHashHeaderValue();
+    }
+    HttpContent chunkContent = currentChunkContent;
+    if (mediaDigest != null) {
+      chunkContent = new DigestingContent(chunkContent);
+    }
+    if (uploadRateLimiter != null) {
+      chunkContent = new RateLimitedContent(chunkContent, uploadRateLimiter, uploadPriority);
+    }
+    currentRequest = requestFactory.buildPutRequest(currentUploadUrl, null);
+    currentRequest.setContent(chunkContent);
+    currentRequest.getHeaders().setContentRange(contentChunk.getContentRange());
+    if (hashHeaderValue != null) {
+      currentRequest.getHeaders().set(MediaDigest.HASH_HEADER, hashHeaderValue);
     }
 
-    HttpResponse response;
-    // Upload the media content in chunks.
-    while (true) {
-      ContentChunk contentChunk = buildContentChunk();
-      currentRequest = requestFactory.buildPutRequest(uploadUrl, null);
-      currentRequest.setContent(contentChunk.getContent());
-      currentRequest.getHeaders().setContentRange(contentChunk.getContentRange());
+    // set mediaErrorHandler as I/O exception handler and as unsuccessful response handler for
+    // calling to serverErrorCallback on an I/O exception or an abnormal HTTP response
+    new MediaUploadErrorHandler(this, currentRequest);
+  }
 
-      // set mediaErrorHandler as I/O exception handler and as unsuccessful response handler for
-      // calling to serverErrorCallback on an I/O exception or an abnormal HTTP response
-      new MediaUploadErrorHandler(this, currentRequest);
+  /** Executes the {@link #currentRequest}, which uploads a chunk or queries the upload status. */
+  private HttpResponse executeChunkRequest() throws IOException {
+    if (isMediaLengthKnown() && !knownLengthGZipEnabled) {
+      return executeCurrentRequestWithoutGZip(currentRequest);
+    }
+    return executeCurrentRequest(currentRequest);
+  }
 
-      if (isMediaLengthKnown()) {
-        // TODO(rmistry): Support gzipping content for the case where media content length is
-        // known (https://github.com/googleapis/google-api-java-client/issues/691).
-        response = executeCurrentRequestWithoutGZip(currentRequest);
-      } else {
-        response = executeCurrentRequest(currentRequest);
+  /**
+   * Handles the response to the {@link #currentRequest}.
+   *
+   * @param response HTTP response
+   * @return whether the upload is done and the response is to be returned, otherwise the response
+   *     was disconnected and the next chunk is to be uploaded
+   */
+  private boolean handleChunkResponse(HttpResponse response) throws IOException {
+    long chunkNanos = nanoClock.nanoTime() - currentChunkStartNanos;
+    boolean returningResponse = false;
+    try {
+      if (response.isSuccessStatusCode()) {
+        updateCurrentUploadRate(currentChunkLength, chunkNanos);
+        updateMediaDigest(currentChunkLength);
+        totalBytesServerReceived = getMediaContentLength();
+        closeMediaSource();
+        deleteUploadSession();
+        updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
+        returningResponse = true;
+        return true;
       }
-      boolean returningResponse = false;
-      try {
-        if (response.isSuccessStatusCode()) {
-          totalBytesServerReceived = getMediaContentLength();
-          if (mediaContent.getCloseInputStream()) {
-            contentInputStream.close();
-          }
-          updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
-          returningResponse = true;
-          return response;
-        }
 
-        if (response.getStatusCode() != 308) {
-          if (mediaContent.getCloseInputStream()) {
-            contentInputStream.close();
-          }
-          returningResponse = true;
-          return response;
-        }
+      if (response.getStatusCode() != 308) {
+        closeMediaSource();
+        returningResponse = true;
+        return true;
+      }
 
-        // Check to see if the upload URL has changed on the server.
-        String updatedUploadUrl = response.getHeaders().getLocation();
-        if (updatedUploadUrl != null) {
-          uploadUrl = new GenericUrl(updatedUploadUrl);
-        }
+      // Check to see if the upload URL has changed on the server.
+      String updatedUploadUrl = response.getHeaders().getLocation();
+      if (updatedUploadUrl != null) {
+        currentUploadUrl = new GenericUrl(updatedUploadUrl);
+      }
 
-        // we check the amount of bytes the server received so far, because the server may process
-        // fewer bytes than the amount of bytes the client had sent
-        long newBytesServerReceived = getNextByteIndex(response.getHeaders().getRange());
-        // the server can receive any amount of bytes from 0 to current chunk length
-        long currentBytesServerReceived = newBytesServerReceived - totalBytesServerReceived;
+      // we check the amount of bytes the server received so far, because the server may process
+      // fewer bytes than the amount of bytes the client had sent
+      long newBytesServerReceived = getNextByteIndex(response.getHeaders().getRange());
+      // the server can receive any amount of bytes from 0 to current chunk length
+      long currentBytesServerReceived = newBytesServerReceived - totalBytesServerReceived;
+      Preconditions.checkState(
+          currentBytesServerReceived >= 0 && currentBytesServerReceived <= currentChunkLength);
+      long copyBytes = currentChunkLength - currentBytesServerReceived;
+      updateMediaDigest(currentBytesServerReceived);
+      if (isMediaLengthKnown()) {
+        if (copyBytes > 0 && mediaFileChannel == null) {
+          // If the server didn't receive all the bytes the client sent the current position of
+          // the input stream is incorrect. So we should reset the stream and skip those bytes
+          // that the server had already received.
+          // Otherwise (the server got all bytes the client sent), the stream is in its right
+          // position, and we can continue from there. Chunks read from a file are positioned
+          // by the number of bytes the server received.
+          contentInputStream.reset();
+          long actualSkipValue = contentInputStream.skip(currentBytesServerReceived);
+          Preconditions.checkState(currentBytesServerReceived == actualSkipValue);
+        }
+      } else if (copyBytes == 0) {
+        // server got all the bytes, so we don't need to use this buffer. Otherwise, we have to
+        // keep the buffer and copy part (or all) of its bytes to the stream we are sending to the
+        // server
+        releaseChunkBuffer();
+      }
+      totalBytesServerReceived = newBytesServerReceived;
+      storeUploadSession(currentUploadUrl);
+      updateCurrentUploadRate(currentBytesServerReceived, chunkNanos);
+
+      // The size of a chunk kept in memory can only change once the server received all of it.
+      if (chunkSizePolicy != null && (isMediaLengthKnown() || copyBytes == 0)) {
+        int size =
+            chunkSizePolicy.nextChunkSize(
+                nextChunkSize, currentBytesServerReceived, chunkNanos, chunkErrorCount);
         Preconditions.checkState(
-            currentBytesServerReceived >= 0 && currentBytesServerReceived <= currentChunkLength);
-        long copyBytes = currentChunkLength - currentBytesServerReceived;
-        if (isMediaLengthKnown()) {
-          if (copyBytes > 0) {
-            // If the server didn't receive all the bytes the client sent the current position of
-            // the input stream is incorrect. So we should reset the stream and skip those bytes
-            // that the server had already received.
-            // Otherwise (the server got all bytes the client sent), the stream is in its right
-            // position, and we can continue from there
-            contentInputStream.reset();
-            long actualSkipValue = contentInputStream.skip(currentBytesServerReceived);
-            Preconditions.checkState(currentBytesServerReceived == actualSkipValue);
+            size > 0 && size % MINIMUM_CHUNK_SIZE == 0,
+            "chunk size policy must return a positive multiple of " + MINIMUM_CHUNK_SIZE);
+        nextChunkSize = size;
+      }
+
+      updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
+      return false;
+    } finally {
+      if (!returningResponse) {
+        response.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Asynchronous upload, which runs each step of the upload as a separate task on an executor, so
+   * that no thread is used while waiting between the steps.
+   */
+  private final class AsyncUpload {
+
+    /** The request URL where the initiation request will be sent. */
+    private final GenericUrl initiationRequestUrl;
+
+    /** Executor that runs the steps. */
+    private final Executor executor;
+
+    /** Future of the HTTP response. */
+    private final SettableFuture<HttpResponse> future = SettableFuture.create();
+
+    /** Step that sends the initiation request, or runs a direct or parallel upload. */
+    private final Runnable initiateStep =
+        new Step() {
+          @Override
+          void runStep() throws IOException {
+            initiate();
           }
-        } else if (copyBytes == 0) {
-          // server got all the bytes, so we don't need to use this buffer. Otherwise, we have to
-          // keep the buffer and copy part (or all) of its bytes to the stream we are sending to the
-          // server
-          currentRequestContentBuffer = null;
-        }
-        totalBytesServerReceived = newBytesServerReceived;
+        };
+
+    /** Step that uploads the next chunk. */
+    private final Runnable uploadChunkStep =
+        new Step() {
+          @Override
+          void runStep() throws IOException {
+            buildChunkRequest();
+            send();
+          }
+        };
+
+    /** Step that sends the current request again after an error, which queries the status. */
+    private final Runnable retryStep =
+        new Step() {
+          @Override
+          void runStep() throws IOException {
+            send();
+          }
+        };
 
-        updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
+    AsyncUpload(GenericUrl initiationRequestUrl, Executor executor) {
+      this.initiationRequestUrl = initiationRequestUrl;
+      this.executor = executor;
+    }
+
+    private void initiate() throws IOException {
+      if (directUploadEnabled || parallelUploadComposer != null) {
+        complete(upload(initiationRequestUrl));
+        return;
+      }
+      if (asyncBackOff != null) {
+        asyncBackOff.reset();
+      }
+      HttpResponse initialResponse = executeUploadInitiation(initiationRequestUrl);
+      if (!initialResponse.isSuccessStatusCode()) {
+        complete(initialResponse);
+        return;
+      }
+      GenericUrl uploadUrl;
+      try {
+        uploadUrl = new GenericUrl(initialResponse.getHeaders().getLocation());
       } finally {
-        if (!returningResponse) {
+        initialResponse.disconnect();
+      }
+      storeUploadSession(uploadUrl);
+      openMediaSource();
+      currentUploadUrl = uploadUrl;
+      nextChunkSize = chunkSize;
+      execute(uploadChunkStep);
+    }
+
+    /** Sends the current request and handles its response. */
+    private void send() throws IOException {
+      HttpResponse response;
+      try {
+        response = executeChunkRequest();
+      } catch (IOException e) {
+        long delayMillis = nextBackOffMillis();
+        if (delayMillis == BackOff.STOP) {
+          throw e;
+        }
+        retryAfter(delayMillis);
+        return;
+      }
+      if (response.getStatusCode() / 100 == 5) {
+        long delayMillis = nextBackOffMillis();
+        if (delayMillis != BackOff.STOP) {
           response.disconnect();
+          retryAfter(delayMillis);
+          return;
+        }
+      }
+      if (handleChunkResponse(response)) {
+        complete(response);
+        return;
+      }
+      if (asyncBackOff != null) {
+        asyncBackOff.reset();
+      }
+      execute(uploadChunkStep);
+    }
+
+    /** Returns the back-off delay before retrying the current request or {@link BackOff#STOP}. */
+    private long nextBackOffMillis() throws IOException {
+      return asyncBackOff == null ? BackOff.STOP : asyncBackOff.nextBackOffMillis();
+    }
+
+    /** Changes the current request to query the upload status and sends it after the delay. */
+    private void retryAfter(long delayMillis) throws IOException {
+      serverErrorCallback();
+      if (executor instanceof ScheduledExecutorService) {
+        try {
+          ((ScheduledExecutorService) executor)
+              .schedule(retryStep, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          fail(e);
         }
+      } else {
+        AsyncUploadTimer.TIMER.schedule(
+            new Runnable() {
+              public void run() {
+                execute(retryStep);
+              }
+            },
+            delayMillis,
+            TimeUnit.MILLISECONDS);
       }
     }
-  }
 
-  /** @return {@code true} if the media length is known, otherwise {@code false} */
-  private boolean isMediaLengthKnown() throws IOException {
-    return getMediaContentLength() >= 0;
-  }
+    private void execute(Runnable step) {
+      try {
+        executor.execute(step);
+      } catch (RejectedExecutionException e) {
+        fail(e);
+      }
+    }
 
-  /**
-   * Uses lazy initialization to compute the media content length.
-   *
-   * <p>This is done to avoid throwing an {@link IOException} in the constructor.
-   */
-  private long getMediaContentLength() throws IOException {
-    if (!isMediaContentLengthCalculated) {
-      mediaContentLength = mediaContent.getLength();
-      isMediaContentLengthCalculated = true;
+    private void complete(HttpResponse response) throws IOException {
+      releaseChunkBuffer();
+      if (!future.set(response)) {
+        // the future was cancelled
+        response.disconnect();
+      }
     }
-    return mediaContentLength;
+
+    private void fail(Throwable t) {
+      releaseChunkBuffer();
+      closeMediaFileChannelQuietly();
+      future.setException(t);
+    }
+
+    /** Step of the upload, which completes the future with any exception it throws. */
+    private abstract class Step implements Runnable {
+
+      public void run() {
+        if (future.isCancelled()) {
+          releaseChunkBuffer();
+          closeMediaFileChannelQuietly();
+          return;
+        }
+        try {
+          runStep();
+        } catch (Throwable t) {
+          fail(t);
+        }
+      }
+
+      abstract void runStep() throws IOException;
+    }
+  }
+
+  /** Timer that hands the delayed steps of asynchronous uploads over to their executor. */
+  private static final class AsyncUploadTimer {
+
+    static final ScheduledExecutorService TIMER =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MediaHttpUploader-timer");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
   }
 
   /**
-   * This method sends a POST request with empty content to get the unique upload URL.
+   * Continues the upload of the given stored session from the offset the server reports.
    *
-   * @param initiationRequestUrl The request URL where the initiation request will be sent
+   * @param session stored upload session
+   * @param initiationRequestUrl The request URL passed to {@link #resume}
+   * @return HTTP response
    */
-  private HttpResponse executeUploadInitiation(GenericUrl initiationRequestUrl) throws IOException {
-    updateStateAndNotifyListener(UploadState.INITIATION_STARTED);
-
-    initiationRequestUrl.put("uploadType", "resumable");
-    HttpContent content = metadata == null ? new EmptyContent() : metadata;
-    HttpRequest request =
-        requestFactory.buildRequest(initiationRequestMethod, initiationRequestUrl, content);
-    initiationHeaders.set(CONTENT_TYPE_HEADER, mediaContent.getType());
-    if (isMediaLengthKnown()) {
-      initiationHeaders.set(CONTENT_LENGTH_HEADER, getMediaContentLength());
+  private HttpResponse resumeUploadSession(UploadSession session, GenericUrl initiationRequestUrl)
+      throws IOException {
+    // Query the number of bytes the server received by issuing an empty PUT request.
+    GenericUrl uploadUrl = new GenericUrl(session.getUploadUrl());
+    currentRequest = requestFactory.buildPutRequest(uploadUrl, new EmptyContent());
+    currentRequest.getHeaders().setContentRange("bytes */" + getMediaContentLength());
+    HttpResponse response = executeCurrentRequestWithoutGZip(currentRequest);
+    if (response.isSuccessStatusCode()) {
+      // the server received all bytes before the upload was interrupted
+      totalBytesServerReceived = getMediaContentLength();
+      deleteUploadSession();
+      updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
+      return response;
     }
-    request.getHeaders().putAll(initiationHeaders);
-    HttpResponse response = executeCurrentRequest(request);
-    boolean notificationCompleted = false;
+    int statusCode = response.getStatusCode();
+    if (statusCode == 404 || statusCode == 410) {
+      // the session expired or was cancelled, so start a new upload
+      response.disconnect();
+      deleteUploadSession();
+      return resumableUpload(initiationRequestUrl);
+    }
+    if (statusCode != 308) {
+      return response;
+    }
+    try {
+      String updatedUploadUrl = response.getHeaders().getLocation();
+      if (updatedUploadUrl != null) {
+        uploadUrl = new GenericUrl(updatedUploadUrl);
+      }
+      totalBytesServerReceived = getNextByteIndex(response.getHeaders().getRange());
+    } finally {
+      response.disconnect();
+    }
+    Preconditions.checkState(totalBytesServerReceived <= getMediaContentLength());
+    updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
 
+    openMediaSource();
+    boolean positioned = false;
     try {
-      updateStateAndNotifyListener(UploadState.INITIATION_COMPLETE);
-      notificationCompleted = true;
+      if (mediaDigest != null) {
+        // The bytes the server received before the upload was interrupted are read once more to
+        // digest them, which also positions the content input stream.
+        InputStream receivedBytes =
+            mediaFileChannel == null
+                ? contentInputStream
+                : new FileRegionContent(
+                        mediaContent.getType(),
+                        mediaFileChannel,
+                        mediaFileOffset,
+                        totalBytesServerReceived)
+                    .getInputStream();
+        digestMediaBytes(receivedBytes, totalBytesServerReceived);
+      } else if (mediaFileChannel == null) {
+        // Chunks read from a file are positioned by the number of bytes the server received.
+        MediaContentRange.skipFully(contentInputStream, totalBytesServerReceived);
+      }
+      positioned = true;
     } finally {
-      if (!notificationCompleted) {
-        response.disconnect();
+      if (!positioned) {
+        closeMediaFileChannelQuietly();
       }
     }
-    return response;
+    return uploadChunks(uploadUrl);
   }
 
   /**
-   * Executes the current request with some minimal common code.
-   *
-   * @param request current request
-   * @return HTTP response
+   * Stores the upload session with the given upload URL and the number of bytes the server received
+   * so far in the {@link #uploadSessionStore}, if any.
    */
-  private HttpResponse executeCurrentRequestWithoutGZip(HttpRequest request) throws IOException {
-    // method override for non-POST verbs
-    new MethodOverride().intercept(request);
-    // don't throw an exception so we can let a custom Google exception be thrown
-    request.setThrowExceptionOnExecuteError(false);
-    // execute the request
-    HttpResponse response = request.execute();
-    return response;
+  private void storeUploadSession(GenericUrl uploadUrl) throws IOException {
+    if (uploadSessionStore != null && isMediaLengthKnown()) {
+      uploadSessionStore.set(
+          uploadSessionId,
+          new UploadSession(
+              uploadUrl.build(),
+              getMediaFingerprint(),
+              getMediaContentLength(),
+              totalBytesServerReceived));
+    }
+  }
+
+  /** Deletes the upload session from the {@link #uploadSessionStore}, if any. */
+  private void deleteUploadSession() throws IOException {
+    if (uploadSessionStore != null) {
+      uploadSessionStore.delete(uploadSessionId);
+    }
   }
 
   /**
-   * Executes the current request with some common code that includes exponential backoff and GZip
-   * encoding.
+   * Uploads the media in components, each in a resumable manner, and composes them.
    *
-   * @param request current request
+   * @param initiationRequestUrl The request URL passed to {@link #upload}
    * @return HTTP response
    */
-  private HttpResponse executeCurrentRequest(HttpRequest request) throws IOException {
-    // enable GZip encoding if necessary
-    if (!disableGZipContent && !(request.getContent() instanceof EmptyContent)) {
-      request.setEncoding(new GZipEncoding());
+  private HttpResponse parallelUpload(GenericUrl initiationRequestUrl) throws IOException {
+    Preconditions.checkArgument(
+        isMediaLengthKnown() && mediaContent.retrySupported(),
+        "Parallel upload requires media content of known length that supports retry.");
+    updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
+
+    // split the media into components of equal size, which is a multiple of the minimum chunk size
+    long length = getMediaContentLength();
+    long componentChunks =
+        (length + (long) parallelUploadComponentCount * MINIMUM_CHUNK_SIZE - 1)
+            / ((long) parallelUploadComponentCount * MINIMUM_CHUNK_SIZE);
+    long componentLength = Math.max(1, componentChunks) * MINIMUM_CHUNK_SIZE;
+    int componentCount = (int) Math.max(1, (length + componentLength - 1) / componentLength);
+    List<MediaHttpUploader> uploaders = new ArrayList<MediaHttpUploader>(componentCount);
+    componentBytesUploaded = new long[componentCount];
+    final AtomicBoolean stopped = new AtomicBoolean();
+    for (int i = 0; i < componentCount; i++) {
+      long offset = i * componentLength;
+      MediaContentRange componentContent =
+          new MediaContentRange(mediaContent, offset, Math.min(componentLength, length - offset));
+      MediaHttpUploader uploader =
+          new MediaHttpUploader(componentContent, requestFactory)
+              .setChunkSize(chunkSize)
+              .setChunkSizePolicy(chunkSizePolicy)
+              .setDisableGZipContent(disableGZipContent)
+              .setKnownLengthGZipEnabled(knownLengthGZipEnabled)
+              .setUploadRateLimiter(uploadRateLimiter, uploadPriority)
+              .setSleeper(sleeper)
+              .setInitiationRequestMethod(initiationRequestMethod)
+              .setInitiationHeaders(initiationHeaders.clone())
+              .setMediaDigestEnabled(mediaDigestEnabled)
+              .setSendMediaDigest(sendMediaDigest)
+              .setProgressListener(new ComponentProgressListener(i));
+      uploader.parallelUploadStopped = stopped;
+      uploaders.add(uploader);
+    }
+    componentUploaders = Collections.unmodifiableList(uploaders);
+
+    // upload the components concurrently
+    final HttpResponse[] responses = new HttpResponse[componentCount];
+    final Exception[] failures = new Exception[componentCount];
+    final AtomicInteger firstFailedComponent = new AtomicInteger(-1);
+    final CountDownLatch done = new CountDownLatch(componentCount);
+    for (int i = 0; i < componentCount; i++) {
+      final int index = i;
+      final MediaHttpUploader uploader = uploaders.get(i);
+      final GenericUrl componentUrl =
+          parallelUploadComposer.getComponentUrl(initiationRequestUrl, i, componentCount);
+      Runnable task =
+          new Runnable() {
+            public void run() {
+              try {
+                if (stopped.get()) {
+                  return;
+                }
+                responses[index] = uploader.upload(componentUrl);
+                if (!responses[index].isSuccessStatusCode()) {
+                  stop();
+                }
+              } catch (IOException e) {
+                failures[index] = e;
+                stop();
+              } catch (RuntimeException e) {
+                failures[index] = e;
+                stop();
+              } finally {
+                done.countDown();
+              }
+            }
+
+            /** Stops the other components before their next chunk. */
+            private void stop() {
+              firstFailedComponent.compareAndSet(-1, index);
+              stopped.set(true);
+            }
+          };
+      try {
+        parallelUploadExecutor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.run();
+      }
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the components to be uploaded", e);
+    }
+
+    HttpResponse unsuccessfulResponse = null;
+    try {
+      // the other components may have failed only because they were stopped
+      int failed = firstFailedComponent.get();
+      if (failed != -1) {
+        if (failures[failed] instanceof IOException) {
+          throw (IOException) failures[failed];
+        } else if (failures[failed] != null) {
+          throw (RuntimeException) failures[failed];
+        }
+        // If a component upload is not successful return its response immediately.
+        unsuccessfulResponse = responses[failed];
+        return unsuccessfulResponse;
+      }
+      for (int i = 0; i < componentCount; i++) {
+        if (responses[i] == null) {
+          throw new IOException("Upload of component " + i + " did not complete");
+        }
+      }
+      HttpResponse response =
+          parallelUploadComposer.compose(initiationRequestUrl, Arrays.asList(responses));
+      totalBytesServerReceived = length;
+      updateStateAndNotifyListener(UploadState.MEDIA_COMPLETE);
+      return response;
+    } finally {
+      for (HttpResponse componentResponse : responses) {
+        if (componentResponse != null && componentResponse != unsuccessfulResponse) {
+          componentResponse.disconnect();
+        }
+      }
+    }
+  }
+
+  /**
+   * Throws an exception if the parallel upload this uploader uploads a component of was stopped,
+   * so that the component is not uploaded any further.
+   */
+  private void checkParallelUploadNotStopped() throws IOException {
+    if (parallelUploadStopped != null && parallelUploadStopped.get()) {
+      throw new IOException("Parallel upload was stopped because another component failed");
+    }
+  }
+
+  /**
+   * Progress listener of a component of a parallel upload that updates the number of bytes the
+   * server received so far and notifies the progress listener of the parallel upload.
+   */
+  private final class ComponentProgressListener implements MediaHttpUploaderProgressListener {
+
+    /** Index of the component. */
+    private final int index;
+
+    ComponentProgressListener(int index) {
+      this.index = index;
+    }
+
+    public void progressChanged(MediaHttpUploader uploader) throws IOException {
+      UploadState state = uploader.getUploadState();
+      if (state != UploadState.MEDIA_IN_PROGRESS && state != UploadState.MEDIA_COMPLETE) {
+        return;
+      }
+      synchronized (MediaHttpUploader.this) {
+        componentBytesUploaded[index] = uploader.getNumBytesUploaded();
+        long total = 0;
+        for (long bytesUploaded : componentBytesUploaded) {
+          total += bytesUploaded;
+        }
+        totalBytesServerReceived = total;
+        updateStateAndNotifyListener(UploadState.MEDIA_IN_PROGRESS);
+      }
+    }
+  }
+
+  /**
+   * Opens {@link #mediaFileChannel} if the media content is backed by a file and has a known
+   * length.
+   *
+   * @return whether the file channel was opened
+   */
+  private boolean openMediaFileChannel() throws IOException {
+    AbstractInputStreamContent content = mediaContent;
+    long offset = 0;
+    if (content instanceof MediaContentRange) {
+      MediaContentRange range = (MediaContentRange) content;
+      content = range.getMediaContent();
+      offset = range.getOffset();
+    }
+    if (!(content instanceof FileContent) || !isMediaLengthKnown()) {
+      return false;
+    }
+    if (mediaFileChannel != null && mediaFileChannel.isOpen()) {
+      // Resuming after a failure that left the channel open reads from it again.
+      return true;
+    }
+    mediaFileChannel = new RandomAccessFile(((FileContent) content).getFile(), "r").getChannel();
+    mediaFileOffset = offset;
+    return true;
+  }
+
+  /**
+   * Closes the source of the media content once the upload is done, which is the file channel if
+   * one was opened, or else the input stream if the media content asks for it to be closed.
+   */
+  private void closeMediaSource() throws IOException {
+    if (mediaFileChannel != null) {
+      mediaFileChannel.close();
+    } else if (mediaContent.getCloseInputStream()) {
+      contentInputStream.close();
+    }
+  }
+
+  /**
+   * Closes the {@link #mediaFileChannel}, if one was opened, after the upload failed, so that no
+   * file descriptor is leaked by uploaders that are never resumed.
+   */
+  private void closeMediaFileChannelQuietly() {
+    if (mediaFileChannel != null) {
+      try {
+        mediaFileChannel.close();
+      } catch (IOException e) {
+        // the failure of the upload is reported instead
+      }
+    }
+  }
+
+  /** @return {@code true} if the media length is known, otherwise {@code false} */
+  private boolean isMediaLengthKnown() throws IOException {
+    return getMediaContentLength() >= 0;
+  }
+
+  /**
+   * Uses lazy initialization to compute the media content length.
+   *
+   * <p>This is done to avoid throwing an {@link IOException} in the constructor.
+   */
+  private long getMediaContentLength() throws IOException {
+    if (!isMediaContentLengthCalculated) {
+      mediaContentLength = mediaContent.getLength();
+      isMediaContentLengthCalculated = true;
+    }
+    return mediaContentLength;
+  }
+
+  /**
+   * This method sends a POST request with empty content to get the unique upload URL.
+   *
+   * @param initiationRequestUrl The request URL where the initiation request will be sent
+   */
+  private HttpResponse executeUploadInitiation(GenericUrl initiationRequestUrl) throws IOException {
+    updateStateAndNotifyListener(UploadState.INITIATION_STARTED);
+
+    initiationRequestUrl.put("uploadType", "resumable");
+    HttpContent content = metadata == null ? new EmptyContent() : metadata;
+    HttpRequest request =
+        requestFactory.buildRequest(initiationRequestMethod, initiationRequestUrl, content);
+    initiationHeaders.set(CONTENT_TYPE_HEADER, mediaContent.getType());
+    if (isMediaLengthKnown()) {
+      initiationHeaders.set(CONTENT_LENGTH_HEADER, getMediaContentLength());
+    }
+    request.getHeaders().putAll(initiationHeaders);
+    HttpResponse response = executeCurrentRequest(request);
+    boolean notificationCompleted = false;
+
+    try {
+      updateStateAndNotifyListener(UploadState.INITIATION_COMPLETE);
+      notificationCompleted = true;
+    } finally {
+      if (!notificationCompleted) {
+        response.disconnect();
+      }
     }
-    // execute request
-    HttpResponse response = executeCurrentRequestWithoutGZip(request);
     return response;
   }
 
+  /**
+   * Executes the current request with some minimal common code.
+   *
+   * @param request current request
+   * @return HTTP response
+   */
+  private HttpResponse executeCurrentRequestWithoutGZip(HttpRequest request) throws IOException {
+    // method override for non-POST verbs
+    new MethodOverride().intercept(request);
+    // don't throw an exception so we can let a custom Google exception be thrown
+    request.setThrowExceptionOnExecuteError(false);
+    // execute the request
+    HttpResponse response = request.execute();
+    return response;
+  }
+
+  /**
+   * Executes the current request with some common code that includes exponential backoff and GZip
+   * encoding.
+   *
+   * @param request current request
+   * @return HTTP response
+   */
+  private HttpResponse executeCurrentRequest(HttpRequest request) throws IOException {
+    // enable GZip encoding if necessary
+    if (!disableGZipContent && !(request.getContent() instanceof EmptyContent)) {
+      request.setEncoding(new CountingGZipEncoding());
+    }
+    // execute request
+    HttpResponse response = executeCurrentRequestWithoutGZip(request);
+    return response;
+  }
+
+  /**
+   * Sets {@link #currentRequestContentBuffer} to {@code null}, returning it to the {@link
+   * #chunkBufferPool} if it was borrowed.
+   */
+  private void releaseChunkBuffer() {
+    if (currentRequestContentBuffer != null && chunkBufferPool != null) {
+      chunkBufferPool.release(currentRequestContentBuffer);
+    }
+    currentRequestContentBuffer = null;
+  }
+
   /**
    * Sets the HTTP media content chunk and the required headers that should be used in the upload
    * request.
@@ -545,24 +1393,36 @@ public final class MediaHttpUploader {
     int blockSize;
     if (isMediaLengthKnown()) {
       // We know exactly what the blockSize will be because we know the media content length.
-      blockSize = (int) Math.min(chunkSize, getMediaContentLength() - totalBytesServerReceived);
+      blockSize =
+          (int) Math.min(nextChunkSize, getMediaContentLength() - totalBytesServerReceived);
     } else {
       // Use the chunkSize as the blockSize because we do know what what it is yet.
-      blockSize = chunkSize;
+      blockSize = nextChunkSize;
     }
 
     AbstractInputStreamContent contentChunk;
     int actualBlockSize = blockSize;
     if (isMediaLengthKnown()) {
-      // Mark the current position in case we need to retry the request.
-      contentInputStream.mark(blockSize);
-
-      InputStream limitInputStream = ByteStreams.limit(contentInputStream, blockSize);
-      contentChunk =
-          new InputStreamContent(mediaContent.getType(), limitInputStream)
-              .setRetrySupported(true)
-              .setLength(blockSize)
-              .setCloseInputStream(false);
+      if (mediaFileChannel != null) {
+        // The chunk is a region of the file, which can be written again in case we need to retry
+        // the request.
+        contentChunk =
+            new FileRegionContent(
+                mediaContent.getType(),
+                mediaFileChannel,
+                mediaFileOffset + totalBytesServerReceived,
+                blockSize);
+      } else {
+        // Mark the current position in case we need to retry the request.
+        contentInputStream.mark(blockSize);
+
+        InputStream limitInputStream = ByteStreams.limit(contentInputStream, blockSize);
+        contentChunk =
+            new InputStreamContent(mediaContent.getType(), limitInputStream)
+                .setRetrySupported(true)
+                .setLength(blockSize)
+                .setCloseInputStream(false);
+      }
       mediaContentLengthStr = String.valueOf(getMediaContentLength());
     } else {
       // If the media content length is not known we implement a custom buffered input stream that
@@ -576,7 +1436,10 @@ public final class MediaHttpUploader {
       int copyBytes = 0;
       if (currentRequestContentBuffer == null) {
         bytesAllowedToRead = cachedByte == null ? blockSize + 1 : blockSize;
-        currentRequestContentBuffer = new byte[blockSize + 1];
+        currentRequestContentBuffer =
+            chunkBufferPool == null
+                ? new byte[blockSize + 1]
+                : chunkBufferPool.borrow(blockSize + 1);
         if (cachedByte != null) {
           currentRequestContentBuffer[0] = cachedByte;
         }
@@ -655,6 +1518,232 @@ public final class MediaHttpUploader {
     return new ContentChunk(contentChunk, contentRange);
   }
 
+  /** Returns whether the current chunk is the final chunk of the media content. */
+  private boolean isFinalChunk() throws IOException {
+    if (isMediaLengthKnown()) {
+      return totalBytesServerReceived + currentChunkLength == getMediaContentLength();
+    }
+    return !mediaContentLengthStr.equals("*");
+  }
+
+  /**
+   * Adds the first bytes of the current chunk to the {@link #mediaDigest}, if computed, once the
+   * server acknowledged them.
+   *
+   * <p>Usually the server received exactly the bytes that were last written, which were digested
+   * while they were written. Otherwise, for example if the server received only part of the chunk,
+   * the bytes it received are digested again from the start of the chunk. For media content read
+   * from a stream, this leaves the stream positioned after those bytes.
+   *
+   * @param bytes number of bytes of the current chunk the server received
+   */
+  private void updateMediaDigest(long bytes) throws IOException {
+    if (mediaDigest == null) {
+      return;
+    }
+    if (pendingMediaDigest != null
+        && pendingMediaDigest.getLength() == mediaDigest.getLength() + bytes) {
+      mediaDigest = pendingMediaDigest;
+    } else if (currentChunkContent instanceof InputStreamContent) {
+      // the content input stream is marked at the start of the chunk
+      contentInputStream.reset();
+      digestMediaBytes(contentInputStream, bytes);
+    } else {
+      digestMediaBytes(currentChunkContent.getInputStream(), bytes);
+    }
+    pendingMediaDigest = null;
+  }
+
+  /**
+   * Reads the given number of bytes from the given input stream and adds them to the {@link
+   * #mediaDigest}.
+   */
+  private void digestMediaBytes(InputStream in, long bytes) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(bytes, 8 * KB)];
+    while (bytes > 0) {
+      int bytesRead = in.read(buffer, 0, (int) Math.min(bytes, buffer.length));
+      if (bytesRead == -1) {
+        throw new EOFException("Media content ended before the bytes to digest were read");
+      }
+      mediaDigest.update(buffer, 0, bytesRead);
+      bytes -= bytesRead;
+    }
+  }
+
+  /**
+   * Sets the {@link #currentUploadRate} from the number of bytes of a chunk the server received and
+   * the time it took.
+   */
+  private void updateCurrentUploadRate(long bytes, long nanos) {
+    currentUploadRate = (double) bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+  }
+
+  /** Content of a chunk whose writes are metered through a rate limiter. */
+  private static final class RateLimitedContent implements HttpContent {
+
+    /** Content of the chunk. */
+    private final HttpContent content;
+
+    /** Rate limiter. */
+    private final UploadRateLimiter rateLimiter;
+
+    /** Priority of the upload. */
+    private final UploadRateLimiter.Priority priority;
+
+    RateLimitedContent(
+        HttpContent content, UploadRateLimiter rateLimiter, UploadRateLimiter.Priority priority) {
+      this.content = content;
+      this.rateLimiter = rateLimiter;
+      this.priority = priority;
+    }
+
+    public long getLength() throws IOException {
+      return content.getLength();
+    }
+
+    public String getType() {
+      return content.getType();
+    }
+
+    public boolean retrySupported() {
+      return content.retrySupported();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      content.writeTo(new RateLimitedOutputStream(out, rateLimiter, priority));
+    }
+  }
+
+  /** Output stream that waits for the rate limiter before each write. */
+  private static final class RateLimitedOutputStream extends FilterOutputStream {
+
+    /** Rate limiter. */
+    private final UploadRateLimiter rateLimiter;
+
+    /** Priority of the upload. */
+    private final UploadRateLimiter.Priority priority;
+
+    RateLimitedOutputStream(
+        OutputStream out, UploadRateLimiter rateLimiter, UploadRateLimiter.Priority priority) {
+      super(out);
+      this.rateLimiter = rateLimiter;
+      this.priority = priority;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      rateLimiter.acquire(1, priority);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      // write in small slices, so that the rate stays even within a chunk
+      while (len > 0) {
+        int sliceLength = Math.min(len, RATE_LIMITED_WRITE_SIZE);
+        rateLimiter.acquire(sliceLength, priority);
+        out.write(b, off, sliceLength);
+        off += sliceLength;
+        len -= sliceLength;
+      }
+    }
+  }
+
+  /**
+   * Content of a chunk that adds the bytes it writes to the {@link #pendingMediaDigest}, starting
+   * anew from the {@link #mediaDigest} each time the chunk is written.
+   */
+  private final class DigestingContent implements HttpContent {
+
+    /** Content of the chunk. */
+    private final HttpContent content;
+
+    DigestingContent(HttpContent content) {
+      this.content = content;
+    }
+
+    public long getLength() throws IOException {
+      return content.getLength();
+    }
+
+    public String getType() {
+      return content.getType();
+    }
+
+    public boolean retrySupported() {
+      return content.retrySupported();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      pendingMediaDigest = mediaDigest.copy();
+      content.writeTo(new DigestingOutputStream(out, pendingMediaDigest));
+    }
+  }
+
+  /** Output stream that adds the bytes written to a media digest. */
+  private static final class DigestingOutputStream extends FilterOutputStream {
+
+    /** Media digest. */
+    private final MediaDigest digest;
+
+    DigestingOutputStream(OutputStream out, MediaDigest digest) {
+      super(out);
+      this.digest = digest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      digest.update(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      digest.update(b, off, len);
+    }
+  }
+
+  /** GZip encoding that counts the compressed bytes in {@link #numCompressedBytesSent}. */
+  private final class CountingGZipEncoding implements HttpEncoding {
+
+    public String getName() {
+      return "gzip";
+    }
+
+    public void encode(StreamingContent content, OutputStream out) throws IOException {
+      CountingOutputStream countingOut = new CountingOutputStream(out);
+      try {
+        new GZipEncoding().encode(content, countingOut);
+      } finally {
+        numCompressedBytesSent += countingOut.count;
+      }
+    }
+  }
+
+  /** Output stream that counts the bytes written. */
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    /** Number of bytes written. */
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
   private static class ContentChunk {
     private final AbstractInputStreamContent content;
     private final String contentRange;
@@ -684,9 +1773,11 @@ public final class MediaHttpUploader {
   @Beta
   void serverErrorCallback() throws IOException {
     Preconditions.checkNotNull(currentRequest, "The current request should not be null");
+    chunkErrorCount++;
 
     // Query the current status of the upload by issuing an empty PUT request on the upload URI.
     currentRequest.setContent(new EmptyContent());
+    currentRequest.setEncoding(null);
     currentRequest.getHeaders().setContentRange("bytes */" + mediaContentLengthStr);
   }
 
@@ -705,6 +1796,230 @@ public final class MediaHttpUploader {
     return Long.parseLong(rangeHeader.substring(rangeHeader.indexOf('-') + 1)) + 1;
   }
 
+  /**
+   * {@link Beta} <br>
+   * Returns the store of the resumable upload session or {@code null} to not store it.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public UploadSessionStore getUploadSessionStore() {
+    return uploadSessionStore;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the ID of the upload session in the {@link #getUploadSessionStore() upload session
+   * store} or {@code null} for none.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public String getUploadSessionId() {
+    return uploadSessionId;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the store of the resumable upload session, so that the upload can be continued with {@link
+   * #resume} after the process restarted, or {@code null} to not store it. The default value is
+   * {@code null}.
+   *
+   * <p>Only resumable uploads of media content of known length are stored. The session is stored
+   * once the upload URL is known, updated after each chunk and deleted once the upload is complete.
+   *
+   * @param uploadSessionStore store of the upload session or {@code null} to not store it
+   * @param uploadSessionId ID that identifies the upload in the store, for example the path of the
+   *     uploaded file, or {@code null} if the store is {@code null}
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setUploadSessionStore(
+      UploadSessionStore uploadSessionStore, String uploadSessionId) {
+    Preconditions.checkArgument(uploadSessionStore == null || uploadSessionId != null);
+    this.uploadSessionStore = uploadSessionStore;
+    this.uploadSessionId = uploadSessionId;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the fingerprint of the media content that is stored with the upload session and must
+   * match for {@link #resume} to continue the session.
+   *
+   * <p>This is the fingerprint set by {@link #setMediaFingerprint}, or else for a {@link
+   * FileContent} the absolute path and last modification time of the file, or else {@code null},
+   * in which case only the media content length is compared.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public String getMediaFingerprint() {
+    if (mediaFingerprint == null && mediaContent instanceof FileContent) {
+      File file = ((FileContent) mediaContent).getFile();
+      return file.getAbsolutePath() + "@" + file.lastModified();
+    }
+    return mediaFingerprint;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the fingerprint of the media content that is stored with the upload session, for example
+   * a content hash, or {@code null} for the default described in {@link #getMediaFingerprint}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setMediaFingerprint(String mediaFingerprint) {
+    this.mediaFingerprint = mediaFingerprint;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns whether to compute the {@link #getMediaDigest media digest} during a resumable upload.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean isMediaDigestEnabled() {
+    return mediaDigestEnabled;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets whether to compute the CRC32C and MD5 {@link #getMediaDigest media digest} during a
+   * resumable upload. The default value is {@code false}.
+   *
+   * <p>The bytes of each chunk are digested as the chunk is written, so the media content is not
+   * read a second time. Only bytes the server acknowledged are part of the digest: if the server
+   * received only part of a chunk, the digest is rewound to the bytes it received. When resuming an
+   * upload, the bytes the server received before the upload was interrupted are read once to digest
+   * them. The digest is not computed for direct uploads. For parallel uploads it is not computed
+   * for the whole media content, but each {@link #getComponentUploaders component uploader}
+   * computes the digest of its component.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setMediaDigestEnabled(boolean mediaDigestEnabled) {
+    this.mediaDigestEnabled = mediaDigestEnabled;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns whether to send the media digest with the final chunk of a resumable upload.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean getSendMediaDigest() {
+    return sendMediaDigest;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets whether to send the {@link #getMediaDigest media digest} of the whole media content in the
+   * {@link MediaDigest#HASH_HEADER} header of the final chunk of a resumable upload, so that the
+   * server can verify the integrity of the upload. Implies {@link #setMediaDigestEnabled}. The
+   * default value is {@code false}.
+   *
+   * <p>The final chunk is read into memory before it is sent to digest it ahead of the header.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setSendMediaDigest(boolean sendMediaDigest) {
+    this.sendMediaDigest = sendMediaDigest;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns a copy of the digest of the media bytes the server acknowledged so far, which is the
+   * digest of the whole media content once the upload is complete, or {@code null} if it is not
+   * computed.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaDigest getMediaDigest() {
+    return mediaDigest == null ? null : mediaDigest.copy();
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the rate limiter that the chunk writes are metered through or {@code null} for none.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public UploadRateLimiter getUploadRateLimiter() {
+    return uploadRateLimiter;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the priority of this upload in the {@link #getUploadRateLimiter() rate limiter}.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public UploadRateLimiter.Priority getUploadPriority() {
+    return uploadPriority;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the rate limiter that the chunk writes of resumable uploads are metered through, which may
+   * be shared by many uploaders to cap their aggregate bandwidth, or {@code null} for none. The
+   * default value is {@code null}.
+   *
+   * <p>The bytes of the media content are metered before they are gzipped, so compressed chunks
+   * use less bandwidth than the rate limiter allows.
+   *
+   * @param uploadRateLimiter rate limiter or {@code null} for none
+   * @param uploadPriority priority of this upload in the rate limiter, {@link
+   *     UploadRateLimiter.Priority#NORMAL} by default
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setUploadRateLimiter(
+      UploadRateLimiter uploadRateLimiter, UploadRateLimiter.Priority uploadPriority) {
+    this.uploadRateLimiter = uploadRateLimiter;
+    this.uploadPriority = Preconditions.checkNotNull(uploadPriority);
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the back-off policy for retrying chunks of {@link #uploadAsync asynchronous uploads}
+   * after a server error or an I/O exception or {@code null} to not retry.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public BackOff getAsyncBackOff() {
+    return asyncBackOff;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the back-off policy for retrying chunks of {@link #uploadAsync asynchronous uploads} after
+   * a server error or an I/O exception or {@code null} to not retry. The default value is {@code
+   * null}.
+   *
+   * <p>The back-off is reset at the start of the upload and whenever a chunk was acknowledged.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setAsyncBackOff(BackOff asyncBackOff) {
+    this.asyncBackOff = asyncBackOff;
+    return this;
+  }
+
   /** Returns HTTP content metadata for the media request or {@code null} for none. */
   public HttpContent getMetadata() {
     return metadata;
@@ -793,6 +2108,36 @@ public final class MediaHttpUploader {
     return chunkSize;
   }
 
+  /**
+   * {@link Beta} <br>
+   * Returns the policy that adapts the chunk size after each chunk of a resumable upload or {@code
+   * null} to use the {@link #getChunkSize() chunk size} for all chunks.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public ChunkSizePolicy getChunkSizePolicy() {
+    return chunkSizePolicy;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the policy that adapts the chunk size after each chunk of a resumable upload, for example
+   * an {@link AdaptiveChunkSizePolicy}, or {@code null} to use the {@link #getChunkSize() chunk
+   * size} for all chunks. The default value is {@code null}.
+   *
+   * <p>The first chunk has the chunk size set by {@link #setChunkSize}. If the media content length
+   * is unknown, the size of a chunk only changes after the server received all bytes of the
+   * previous chunk, since the previous chunk is kept in memory until then.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setChunkSizePolicy(ChunkSizePolicy chunkSizePolicy) {
+    this.chunkSizePolicy = chunkSizePolicy;
+    return this;
+  }
+
   /**
    * Returns whether to disable GZip compression of HTTP content.
    *
@@ -809,8 +2154,8 @@ public final class MediaHttpUploader {
    *
    * <p>If {@link #setDisableGZipContent(boolean)} is set to false (the default value) then content
    * is gzipped for direct media upload and resumable media uploads when content length is not
-   * known. Due to a current limitation, content is not gzipped for resumable media uploads when
-   * content length is known; this limitation will be removed in the future.
+   * known. Content is not gzipped for resumable media uploads when content length is known, unless
+   * enabled with {@link #setKnownLengthGZipEnabled}.
    *
    * @since 1.13
    */
@@ -819,6 +2164,176 @@ public final class MediaHttpUploader {
     return this;
   }
 
+  /**
+   * {@link Beta} <br>
+   * Returns whether to gzip the chunks of resumable media uploads when content length is known.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean isKnownLengthGZipEnabled() {
+    return knownLengthGZipEnabled;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets whether to gzip the chunks of resumable media uploads when content length is known, which
+   * can considerably reduce the bytes sent for compressible media such as CSV or JSON files. Has no
+   * effect if GZip is {@link #setDisableGZipContent disabled}. The default value is {@code false}.
+   *
+   * <p>Each chunk is compressed on the fly as it is sent, with a "Content-Encoding: gzip" header.
+   * The server decodes each chunk, so the byte ranges of the chunks and the bytes the server
+   * acknowledges are offsets in the media content. If the server received only part of a chunk,
+   * the next chunk starts at the first byte it did not receive and is compressed anew. See {@link
+   * #getNumCompressedBytesSent} for the number of compressed bytes that were sent.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setKnownLengthGZipEnabled(boolean knownLengthGZipEnabled) {
+    this.knownLengthGZipEnabled = knownLengthGZipEnabled;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the number of gzip-compressed bytes sent in request bodies so far, including the bodies
+   * of chunks that were sent again after an error and, for a parallel upload, of all components.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public long getNumCompressedBytesSent() {
+    long total = numCompressedBytesSent;
+    for (MediaHttpUploader componentUploader : componentUploaders) {
+      total += componentUploader.getNumCompressedBytesSent();
+    }
+    return total;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets up parallel composite upload or disables it if the composer is {@code null}, which is the
+   * default.
+   *
+   * <p>In a parallel upload the media content is split into at most {@code componentCount}
+   * components of equal size, which is a multiple of {@link #MINIMUM_CHUNK_SIZE}. Each component is
+   * uploaded by its own {@link MediaHttpUploader} in a resumable manner on the given executor, with
+   * its own upload URL, progress and recovery from server errors. Once all components have been
+   * uploaded, {@link MediaUploadComposer#compose} composes them into the final object. If the
+   * upload of a component fails or is not successful, the other components are stopped before their
+   * next chunk, and its exception is thrown or its response returned instead.
+   *
+   * <p>The media content must have a known length and must support retry, so that its input stream
+   * can be opened once per component, like for {@link com.google.api.client.http.FileContent}. The
+   * components are uploaded with the chunk size, sleeper, GZip setting, initiation request method
+   * and headers, and media digest settings of this uploader, so each component digests and, if
+   * enabled, sends the digest of its own bytes. The progress listener is notified from the threads
+   * of the executor, one at a time, whenever a component made progress. Direct upload takes
+   * precedence over parallel upload.
+   *
+   * @param executor executor that uploads the components
+   * @param componentCount maximum number of components
+   * @param composer composer of the components or {@code null} to disable parallel upload
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setParallelUpload(
+      Executor executor, int componentCount, MediaUploadComposer composer) {
+    if (composer != null) {
+      Preconditions.checkNotNull(executor);
+      Preconditions.checkArgument(componentCount > 0);
+    }
+    this.parallelUploadExecutor = executor;
+    this.parallelUploadComponentCount = componentCount;
+    this.parallelUploadComposer = composer;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns whether parallel composite upload is enabled.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public boolean isParallelUploadEnabled() {
+    return parallelUploadComposer != null;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the uploaders of the components of a parallel upload, which is empty before {@link
+   * #upload} or if parallel upload is disabled.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public List<MediaHttpUploader> getComponentUploaders() {
+    return componentUploaders;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the pool that chunk buffers of media content of unknown length are borrowed from or
+   * {@code null} to allocate them.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public ChunkBufferPool getChunkBufferPool() {
+    return chunkBufferPool;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the pool that chunk buffers of media content of unknown length are borrowed from or
+   * {@code null} to allocate them. The default value is {@code null}.
+   *
+   * <p>A pool can be shared by many uploaders to reuse buffers and to bound the memory used for
+   * chunk buffers. The buffer is borrowed when the first chunk is read and returned when the upload
+   * is done or the server received all bytes of a chunk.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setChunkBufferPool(ChunkBufferPool chunkBufferPool) {
+    this.chunkBufferPool = chunkBufferPool;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Returns the executor that reads the next chunk of media content of unknown length while the
+   * current chunk is uploaded or {@code null} to read each chunk when it is needed.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public Executor getChunkPrefetchExecutor() {
+    return chunkPrefetchExecutor;
+  }
+
+  /**
+   * {@link Beta} <br>
+   * Sets the executor that reads the next chunk of media content of unknown length while the
+   * current chunk is uploaded or {@code null} to read each chunk when it is needed. The default
+   * value is {@code null}.
+   *
+   * <p>Prefetching overlaps reading from a slow source, such as a decompressing stream or a
+   * database cursor, with sending to the server. It uses two additional buffers of the chunk size
+   * and may read up to two chunks further from the input stream of the media content than has been
+   * uploaded. It has no effect if the media content length is known, in which case the next bytes
+   * are read while the current chunk is sent.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public MediaHttpUploader setChunkPrefetchExecutor(Executor chunkPrefetchExecutor) {
+    this.chunkPrefetchExecutor = chunkPrefetchExecutor;
+    return this;
+  }
+
   /**
    * Returns the sleeper.
    *
@@ -908,6 +2423,29 @@ public final class MediaHttpUploader {
     return uploadState;
   }
 
+  /**
+   * {@link Beta} <br>
+   * Returns the upload rate in bytes per second, measured over the most recently acknowledged chunk
+   * from sending it until the server acknowledged it, or {@code 0} before the first chunk was
+   * acknowledged. For a parallel upload, this is the sum of the rates of the components that are in
+   * progress.
+   *
+   * @since 1.33
+   */
+  @Beta
+  public double getCurrentUploadRate() {
+    if (componentUploaders.isEmpty()) {
+      return currentUploadRate;
+    }
+    double total = 0;
+    for (MediaHttpUploader componentUploader : componentUploaders) {
+      if (componentUploader.getUploadState() == UploadState.MEDIA_IN_PROGRESS) {
+        total += componentUploader.getCurrentUploadRate();
+      }
+    }
+    return total;
+  }
+
   /**
    * Gets the upload progress denoting the percentage of bytes that have been uploaded, represented
    * between 0.0 (0%) and 1.0 (100%).
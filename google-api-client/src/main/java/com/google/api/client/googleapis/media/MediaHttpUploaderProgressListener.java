@@ -57,8 +57,9 @@ public interface MediaHttpUploaderProgressListener {
    * called multiple times depending on how many chunks are uploaded. Once the upload completes it
    * is called one final time.
    *
-   * <p>The upload state can be queried by calling {@link MediaHttpUploader#getUploadState} and the
-   * progress by calling {@link MediaHttpUploader#getProgress}.
+   * <p>The upload state can be queried by calling {@link MediaHttpUploader#getUploadState}, the
+   * progress by calling {@link MediaHttpUploader#getProgress} and the current upload rate by
+   * calling {@link MediaHttpUploader#getCurrentUploadRate}.
    *
    * @param uploader Media HTTP uploader
    */
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.util.Beta;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link Beta} <br>
+ * Supplies the service specific parts of a parallel composite upload, in which the media is split
+ * into components that are uploaded as independent resumable uploads and then composed into the
+ * final object.
+ *
+ * <p>Used together with {@link MediaHttpUploader#setParallelUpload}. Implementations may be invoked
+ * concurrently from the threads of the executor that uploads the components.
+ *
+ * @since 1.33
+ */
+@Beta
+public interface MediaUploadComposer {
+
+  /**
+   * Returns the request URL where the initiation request of the resumable upload of a component is
+   * sent, for example the URL of a temporary object.
+   *
+   * @param initiationRequestUrl request URL passed to {@link MediaHttpUploader#upload}
+   * @param index index of the component, starting at {@code 0}
+   * @param componentCount number of components
+   */
+  GenericUrl getComponentUrl(GenericUrl initiationRequestUrl, int index, int componentCount);
+
+  /**
+   * Composes the uploaded components into the final object.
+   *
+   * <p>The successful responses of the component uploads are disconnected once this method
+   * returns.
+   *
+   * @param initiationRequestUrl request URL passed to {@link MediaHttpUploader#upload}
+   * @param componentResponses responses of the component uploads, ordered by component index
+   * @return HTTP response returned by {@link MediaHttpUploader#upload}
+   */
+  HttpResponse compose(GenericUrl initiationRequestUrl, List<HttpResponse> componentResponses)
+      throws IOException;
+}
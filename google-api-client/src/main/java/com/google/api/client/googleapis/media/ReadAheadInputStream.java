@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.ByteStreams;
+import com.google.api.client.util.Preconditions;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Input stream that reads the underlying stream ahead on an executor using two buffers: while the
+ * bytes of one buffer are consumed, the other one is filled in the background.
+ *
+ * <p>The underlying stream is only read by the executor, one buffer at a time. At most two buffers
+ * worth of bytes are read from the underlying stream ahead of the consumer.
+ *
+ * <p>Implementation is not thread-safe.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+  /** Underlying input stream. */
+  private final InputStream in;
+
+  /** Executor that fills the buffers. */
+  private final Executor executor;
+
+  /** Buffer whose bytes are consumed. */
+  private byte[] current;
+
+  /** Buffer that is filled in the background. */
+  private byte[] next;
+
+  /** Position of the next unread byte in {@link #current}. */
+  private int position;
+
+  /** Position after the last valid byte in {@link #current}. */
+  private int limit;
+
+  /** Pending fill of {@link #next} or {@code null} for none. */
+  private FutureTask<Integer> pendingFill;
+
+  /** Whether the underlying stream reached its end. */
+  private boolean endOfStream;
+
+  /**
+   * @param in underlying input stream
+   * @param bufferSize size of each of the two buffers
+   * @param executor executor that fills the buffers
+   */
+  ReadAheadInputStream(InputStream in, int bufferSize, Executor executor) {
+    Preconditions.checkArgument(bufferSize > 0);
+    this.in = Preconditions.checkNotNull(in);
+    this.executor = Preconditions.checkNotNull(executor);
+    current = new byte[bufferSize];
+    next = new byte[bufferSize];
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == limit && !advance()) {
+      return -1;
+    }
+    return current[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkNotNull(b);
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (position == limit && !advance()) {
+      return -1;
+    }
+    int count = Math.min(len, limit - position);
+    System.arraycopy(current, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return limit - position;
+  }
+
+  /** Waits for any pending fill and closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (pendingFill != null) {
+        awaitFill();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Makes the next filled buffer the current one and starts filling the other buffer.
+   *
+   * @return whether there are bytes left to read
+   */
+  private boolean advance() throws IOException {
+    if (pendingFill == null) {
+      if (endOfStream) {
+        return false;
+      }
+      startFill();
+    }
+    int filled = awaitFill();
+    byte[] buffer = current;
+    current = next;
+    next = buffer;
+    position = 0;
+    limit = filled;
+    if (filled < current.length) {
+      endOfStream = true;
+    } else {
+      startFill();
+    }
+    return filled > 0;
+  }
+
+  /** Starts filling {@link #next} on the executor or inline if the executor rejects it. */
+  private void startFill() {
+    final byte[] buffer = next;
+    pendingFill =
+        new FutureTask<Integer>(
+            new Callable<Integer>() {
+              public Integer call() throws IOException {
+                return Math.max(0, ByteStreams.read(in, buffer, 0, buffer.length));
+              }
+            });
+    try {
+      executor.execute(pendingFill);
+    } catch (RejectedExecutionException e) {
+      pendingFill.run();
+    }
+  }
+
+  /** Waits for the pending fill and returns the number of bytes it read. */
+  private int awaitFill() throws IOException {
+    FutureTask<Integer> fill = pendingFill;
+    pendingFill = null;
+    try {
+      return fill.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.Sleeper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Beta} <br>
+ * Token bucket rate limiter that caps the aggregate bandwidth of the {@link MediaHttpUploader}
+ * instances it is shared by.
+ *
+ * <p>The bucket holds up to the burst size in bytes and is refilled at the given rate. Writing a
+ * byte of a chunk takes a token from the bucket, and writes wait until enough tokens are available.
+ * Uploads of a higher {@link Priority} take precedence: while an upload of a higher priority waits
+ * for tokens, uploads of a lower priority do not take any, so interactive uploads are not slowed
+ * down by bulk uploads sharing the same limiter.
+ *
+ * <p>Implementation is thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class UploadRateLimiter {
+
+  /** Priority class of an upload. */
+  public enum Priority {
+    /** Uploads a user waits for, which take precedence over all other uploads. */
+    HIGH,
+
+    /** Default priority. */
+    NORMAL,
+
+    /** Background uploads that only use the bandwidth left over by the other uploads. */
+    LOW
+  }
+
+  /** Maximum rate in bytes per second. */
+  private final long bytesPerSecond;
+
+  /** Maximum number of tokens in the bucket. */
+  private final long burstBytes;
+
+  /** Number of tokens in the bucket, which is negative after a write larger than the bucket. */
+  private double tokens;
+
+  /** Time of the last refill in nanoseconds or {@code null} before the first write. */
+  private Long lastRefillNanos;
+
+  /** Number of bytes waited for by each priority. */
+  private final long[] waitingBytes = new long[Priority.values().length];
+
+  /** Nano clock. */
+  NanoClock nanoClock = NanoClock.SYSTEM;
+
+  /** Sleeper. */
+  Sleeper sleeper = Sleeper.DEFAULT;
+
+  /**
+   * Constructs a rate limiter with a burst size of the number of bytes per second.
+   *
+   * @param bytesPerSecond maximum rate in bytes per second
+   */
+  public UploadRateLimiter(long bytesPerSecond) {
+    this(bytesPerSecond, bytesPerSecond);
+  }
+
+  /**
+   * @param bytesPerSecond maximum rate in bytes per second
+   * @param burstBytes maximum number of bytes that can be written at once after the limiter has
+   *     been idle
+   */
+  public UploadRateLimiter(long bytesPerSecond, long burstBytes) {
+    Preconditions.checkArgument(bytesPerSecond > 0);
+    Preconditions.checkArgument(burstBytes > 0);
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstBytes = burstBytes;
+    this.tokens = burstBytes;
+  }
+
+  /** Returns the maximum rate in bytes per second. */
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /** Returns the maximum number of bytes that can be written at once after being idle. */
+  public long getBurstBytes() {
+    return burstBytes;
+  }
+
+  /**
+   * Waits until the given number of bytes may be written.
+   *
+   * <p>Writes larger than the burst size wait until the bucket is full, and the following writes
+   * wait until the bucket has been refilled accordingly.
+   *
+   * @param bytes number of bytes to write
+   * @param priority priority of the upload
+   * @throws InterruptedIOException if the thread was interrupted while waiting
+   */
+  public void acquire(long bytes, Priority priority) throws IOException {
+    Preconditions.checkArgument(bytes >= 0);
+    Preconditions.checkNotNull(priority);
+    boolean waiting = false;
+    try {
+      while (true) {
+        long waitMillis;
+        synchronized (this) {
+          refill();
+          long higherWaitingBytes = 0;
+          for (int i = 0; i < priority.ordinal(); i++) {
+            higherWaitingBytes += waitingBytes[i];
+          }
+          long neededTokens = Math.min(bytes, burstBytes);
+          if (higherWaitingBytes == 0 && tokens >= neededTokens) {
+            tokens -= bytes;
+            return;
+          }
+          if (!waiting) {
+            waitingBytes[priority.ordinal()] += bytes;
+            waiting = true;
+          }
+          // wait until the tokens for this write and all writes of a higher priority are available
+          double missingTokens = neededTokens + higherWaitingBytes - tokens;
+          waitMillis = Math.max(1, (long) Math.ceil(missingTokens * 1000 / bytesPerSecond));
+        }
+        sleeper.sleep(waitMillis);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+    } finally {
+      if (waiting) {
+        synchronized (this) {
+          waitingBytes[priority.ordinal()] -= bytes;
+        }
+      }
+    }
+  }
+
+  /** Adds the tokens accumulated since the last refill to the bucket. */
+  private void refill() {
+    long now = nanoClock.nanoTime();
+    if (lastRefillNanos != null) {
+      double refilled =
+          (double) (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+      tokens = Math.min(burstBytes, tokens + refilled);
+    }
+    lastRefillNanos = now;
+  }
+}
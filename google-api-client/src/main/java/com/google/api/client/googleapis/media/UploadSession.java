@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Objects;
+import com.google.api.client.util.Preconditions;
+import java.io.Serializable;
+
+/**
+ * {@link Beta} <br>
+ * State of a resumable upload session to be stored in an {@link UploadSessionStore}, so that an
+ * upload can be resumed with {@link MediaHttpUploader#resume} after the process restarted.
+ *
+ * <p>Implementation is immutable and thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class UploadSession implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Unique upload URL returned by the initiation request. */
+  private final String uploadUrl;
+
+  /** Fingerprint of the media content or {@code null} for none. */
+  private final String mediaFingerprint;
+
+  /** Length of the media content. */
+  private final long mediaLength;
+
+  /** Number of bytes the server acknowledged so far. */
+  private final long bytesServerReceived;
+
+  /**
+   * @param uploadUrl unique upload URL returned by the initiation request
+   * @param mediaFingerprint fingerprint of the media content or {@code null} for none
+   * @param mediaLength length of the media content
+   * @param bytesServerReceived number of bytes the server acknowledged so far
+   */
+  public UploadSession(
+      String uploadUrl, String mediaFingerprint, long mediaLength, long bytesServerReceived) {
+    Preconditions.checkArgument(mediaLength >= 0);
+    Preconditions.checkArgument(bytesServerReceived >= 0 && bytesServerReceived <= mediaLength);
+    this.uploadUrl = Preconditions.checkNotNull(uploadUrl);
+    this.mediaFingerprint = mediaFingerprint;
+    this.mediaLength = mediaLength;
+    this.bytesServerReceived = bytesServerReceived;
+  }
+
+  /** Returns the unique upload URL returned by the initiation request. */
+  public String getUploadUrl() {
+    return uploadUrl;
+  }
+
+  /** Returns the fingerprint of the media content or {@code null} for none. */
+  public String getMediaFingerprint() {
+    return mediaFingerprint;
+  }
+
+  /** Returns the length of the media content. */
+  public long getMediaLength() {
+    return mediaLength;
+  }
+
+  /**
+   * Returns the number of bytes the server acknowledged so far.
+   *
+   * <p>The server may have received more bytes since, so {@link MediaHttpUploader#resume} asks the
+   * server for its offset rather than relying on this value.
+   */
+  public long getBytesServerReceived() {
+    return bytesServerReceived;
+  }
+
+  /**
+   * Returns whether this session uploads media content with the given fingerprint and length.
+   *
+   * @param mediaFingerprint fingerprint of the media content or {@code null} for none
+   * @param mediaLength length of the media content
+   */
+  public boolean matches(String mediaFingerprint, long mediaLength) {
+    return Objects.equal(this.mediaFingerprint, mediaFingerprint)
+        && this.mediaLength == mediaLength;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(UploadSession.class)
+        .add("uploadUrl", uploadUrl)
+        .add("mediaFingerprint", mediaFingerprint)
+        .add("mediaLength", mediaLength)
+        .add("bytesServerReceived", bytesServerReceived)
+        .toString();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import java.io.IOException;
+
+/**
+ * {@link Beta} <br>
+ * Store of resumable upload sessions backed by a {@link DataStore}, which allows uploads to be
+ * resumed after the process restarted.
+ *
+ * <p>Sessions are keyed by an ID chosen by the application, for example the path of the uploaded
+ * file. {@link MediaHttpUploader} stores the session once the upload URL is known, updates it after
+ * each chunk, and deletes it once the upload is complete. Use a persistent data store factory such
+ * as {@code FileDataStoreFactory} to keep the sessions across process restarts.
+ *
+ * <p>Implementation is thread-safe if the data store is.
+ *
+ * @since 1.33
+ */
+@Beta
+public final class UploadSessionStore {
+
+  /** Default data store ID. */
+  public static final String DEFAULT_DATA_STORE_ID = UploadSessionStore.class.getSimpleName();
+
+  /** Data store of the upload sessions. */
+  private final DataStore<UploadSession> dataStore;
+
+  /**
+   * Constructs a store backed by the data store derived from {@link
+   * #getDefaultDataStore(DataStoreFactory)} on the given data store factory.
+   *
+   * @param dataStoreFactory data store factory
+   */
+  public UploadSessionStore(DataStoreFactory dataStoreFactory) throws IOException {
+    this(getDefaultDataStore(dataStoreFactory));
+  }
+
+  /** @param dataStore data store of the upload sessions */
+  public UploadSessionStore(DataStore<UploadSession> dataStore) {
+    this.dataStore = Preconditions.checkNotNull(dataStore);
+  }
+
+  /** Returns the data store of the upload sessions. */
+  public DataStore<UploadSession> getDataStore() {
+    return dataStore;
+  }
+
+  /**
+   * Returns the upload session with the given ID or {@code null} for none.
+   *
+   * @param sessionId upload session ID
+   */
+  public UploadSession get(String sessionId) throws IOException {
+    return dataStore.get(sessionId);
+  }
+
+  /**
+   * Stores the upload session with the given ID, replacing any previous session with that ID.
+   *
+   * @param sessionId upload session ID
+   * @param session upload session
+   */
+  public UploadSessionStore set(String sessionId, UploadSession session) throws IOException {
+    dataStore.set(sessionId, session);
+    return this;
+  }
+
+  /**
+   * Deletes the upload session with the given ID, if any.
+   *
+   * @param sessionId upload session ID
+   */
+  public UploadSessionStore delete(String sessionId) throws IOException {
+    dataStore.delete(sessionId);
+    return this;
+  }
+
+  /**
+   * Returns the upload session data store using the ID {@link #DEFAULT_DATA_STORE_ID}.
+   *
+   * @param dataStoreFactory data store factory
+   * @return upload session data store
+   */
+  public static DataStore<UploadSession> getDefaultDataStore(DataStoreFactory dataStoreFactory)
+      throws IOException {
+    return dataStoreFactory.getDataStore(DEFAULT_DATA_STORE_ID);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.testing.batch;
+
+import com.google.api.client.googleapis.batch.BatchListener;
+import com.google.api.client.util.Beta;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * {@link Beta} <br>
+ * Mock for the {@link BatchListener} interface that keeps the reported metrics in memory as totals
+ * and histograms.
+ *
+ * <p>Sizes are bucketed by the largest power of two that is not larger than the size, so a batch
+ * HTTP request of 1500 bytes is counted in the bucket {@code 1024}.
+ *
+ * <p>Implementation is thread-safe.
+ *
+ * @since 1.33
+ */
+@Beta
+public class MockBatchListener implements BatchListener {
+
+  /** Number of batch HTTP requests by number of parts. */
+  private final SortedMap<Integer, Integer> partsPerBatchHistogram =
+      new TreeMap<Integer, Integer>();
+
+  /** Number of batch HTTP requests by request size bucket. */
+  private final SortedMap<Long, Integer> requestBytesHistogram = new TreeMap<Long, Integer>();
+
+  /** Number of batch HTTP requests by response size bucket. */
+  private final SortedMap<Long, Integer> responseBytesHistogram = new TreeMap<Long, Integer>();
+
+  /** Number of received parts by status code. */
+  private final SortedMap<Integer, Integer> statusCodeHistogram = new TreeMap<Integer, Integer>();
+
+  /** Number of received parts by round. */
+  private final SortedMap<Integer, Integer> roundHistogram = new TreeMap<Integer, Integer>();
+
+  /** Number of completed batch HTTP requests. */
+  private int batchCount;
+
+  /** Total latency of the completed batch HTTP requests in nanoseconds. */
+  private long totalLatencyNanos;
+
+  /** Number of parsed parts. */
+  private int parsedPartCount;
+
+  /** Total parse time of the parsed parts in nanoseconds. */
+  private long totalParseNanos;
+
+  /** Number of back-off rounds. */
+  private int backOffRoundCount;
+
+  /** Total delay before the back-off rounds in milliseconds. */
+  private long totalBackOffMillis;
+
+  public synchronized void onBatchCompleted(
+      int partCount, long requestBytes, long responseBytes, long latencyNanos) {
+    increment(partsPerBatchHistogram, partCount);
+    increment(requestBytesHistogram, bucket(requestBytes));
+    increment(responseBytesHistogram, bucket(responseBytes));
+    batchCount++;
+    totalLatencyNanos += latencyNanos;
+  }
+
+  public synchronized void onPartReceived(int statusCode, int round) {
+    increment(statusCodeHistogram, statusCode);
+    increment(roundHistogram, round);
+  }
+
+  public synchronized void onPartParsed(int statusCode, long parseNanos) {
+    parsedPartCount++;
+    totalParseNanos += parseNanos;
+  }
+
+  public synchronized void onBackOffRound(int partCount, long delayMillis) {
+    backOffRoundCount++;
+    totalBackOffMillis += delayMillis;
+  }
+
+  /** Returns the number of completed batch HTTP requests. */
+  public synchronized int getBatchCount() {
+    return batchCount;
+  }
+
+  /** Returns the total latency of the completed batch HTTP requests in nanoseconds. */
+  public synchronized long getTotalLatencyNanos() {
+    return totalLatencyNanos;
+  }
+
+  /** Returns the number of parts that were parsed into a data or error class. */
+  public synchronized int getParsedPartCount() {
+    return parsedPartCount;
+  }
+
+  /** Returns the total parse time of the parsed parts in nanoseconds. */
+  public synchronized long getTotalParseNanos() {
+    return totalParseNanos;
+  }
+
+  /** Returns the number of back-off rounds. */
+  public synchronized int getBackOffRoundCount() {
+    return backOffRoundCount;
+  }
+
+  /** Returns the total delay before the back-off rounds in milliseconds. */
+  public synchronized long getTotalBackOffMillis() {
+    return totalBackOffMillis;
+  }
+
+  /** Returns a snapshot of the number of batch HTTP requests keyed by their number of parts. */
+  public synchronized SortedMap<Integer, Integer> getPartsPerBatchHistogram() {
+    return snapshot(partsPerBatchHistogram);
+  }
+
+  /**
+   * Returns a snapshot of the number of batch HTTP requests keyed by the bucket of their request
+   * size, where {@code -1} is used for an unknown size.
+   */
+  public synchronized SortedMap<Long, Integer> getRequestBytesHistogram() {
+    return snapshot(requestBytesHistogram);
+  }
+
+  /**
+   * Returns a snapshot of the number of batch HTTP requests keyed by the bucket of their response
+   * size.
+   */
+  public synchronized SortedMap<Long, Integer> getResponseBytesHistogram() {
+    return snapshot(responseBytesHistogram);
+  }
+
+  /** Returns a snapshot of the number of received parts keyed by their status code. */
+  public synchronized SortedMap<Integer, Integer> getStatusCodeHistogram() {
+    return snapshot(statusCodeHistogram);
+  }
+
+  /** Returns a snapshot of the number of received parts keyed by the round they arrived in. */
+  public synchronized SortedMap<Integer, Integer> getRoundHistogram() {
+    return snapshot(roundHistogram);
+  }
+
+  /** Returns the bucket of the given size, which is the size itself if it is not positive. */
+  private static long bucket(long bytes) {
+    return bytes <= 0 ? bytes : Long.highestOneBit(bytes);
+  }
+
+  private static <K> void increment(SortedMap<K, Integer> histogram, K key) {
+    Integer count = histogram.get(key);
+    histogram.put(key, count == null ? 1 : count + 1);
+  }
+
+  private static <K> SortedMap<K, Integer> snapshot(SortedMap<K, Integer> histogram) {
+    return Collections.unmodifiableSortedMap(new TreeMap<K, Integer>(histogram));
+  }
+}
@@ -8,10 +8,12 @@ import com.google.api.client.googleapis.batch.BatchRequest.RequestInfo;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonError.ErrorInfo;
 import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.testing.batch.MockBatchListener;
 import com.google.api.client.googleapis.testing.services.MockGoogleClient;
 import com.google.api.client.googleapis.testing.services.MockGoogleClientRequest;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
 import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpExecuteInterceptor;
 import com.google.api.client.http.HttpHeaders;
@@ -30,16 +32,40 @@ import com.google.api.client.testing.http.HttpTesting;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.testing.util.MockBackOff;
+import com.google.api.client.testing.util.MockSleeper;
 import com.google.api.client.util.Charsets;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Key;
+import com.google.api.client.util.NanoClock;
 import com.google.api.client.util.ObjectParser;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
 
 /**
@@ -494,6 +520,136 @@ public class BatchRequestTest extends TestCase {
     }
   }
 
+  /**
+   * Transport that answers each batch HTTP request with one successful part per request part and
+   * keeps track of the batch HTTP requests it received.
+   */
+  private static class EchoTransport extends MockHttpTransport {
+
+    final AtomicInteger actualCalls = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final List<Integer> partsPerCall = Collections.synchronizedList(new ArrayList<Integer>());
+    /** Content-Length and actual length of the body of each batch HTTP request. */
+    final List<String> contentLengths = Collections.synchronizedList(new ArrayList<String>());
+    /** Body of each batch HTTP request. */
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    volatile boolean failRequests;
+    /** Number of batch HTTP requests still to fail with an {@link IOException}. */
+    final AtomicInteger failingCalls = new AtomicInteger();
+    /** Number of parts still to answer with 503 Service Unavailable. */
+    final AtomicInteger unavailableParts = new AtomicInteger();
+    /** Retry-After header value of unavailable parts or {@code null} for none. */
+    volatile String retryAfter;
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String name, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          actualCalls.incrementAndGet();
+          int current = inFlight.incrementAndGet();
+          try {
+            while (true) {
+              int max = maxInFlight.get();
+              if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                break;
+              }
+            }
+            if (failRequests || failingCalls.getAndDecrement() > 0) {
+              throw new IOException("expected");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            getStreamingContent().writeTo(out);
+            contentLengths.add(getContentLength() + "/" + out.size());
+            if ("gzip".equals(getContentEncoding())) {
+              ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+              IOUtils.copy(
+                  new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), uncompressed);
+              out = uncompressed;
+            }
+            bodies.add(out.toString("UTF-8"));
+            int parts = 0;
+            for (String line : out.toString("UTF-8").split("\r\n")) {
+              if (line.toLowerCase().startsWith("content-id:")) {
+                parts++;
+              }
+            }
+            partsPerCall.add(parts);
+            // give concurrent batch HTTP requests a chance to overlap
+            Thread.sleep(10);
+            StringBuilder responseContent = new StringBuilder();
+            for (int i = 1; i <= parts; i++) {
+              boolean unavailable = unavailableParts.getAndDecrement() > 0;
+              responseContent
+                  .append("--" + RESPONSE_BOUNDARY + "\n")
+                  .append("Content-Type: application/http\n")
+                  .append("Content-ID: response-" + i + "\n\n")
+                  .append(unavailable ? "HTTP/1.1 503 Unavailable\n" : "HTTP/1.1 200 OK\n");
+              if (unavailable && retryAfter != null) {
+                responseContent.append("Retry-After: " + retryAfter + "\n");
+              }
+              responseContent
+                  .append("Content-Type: application/json; charset=UTF-8\n")
+                  .append("Content-Length: 2\n\n")
+                  .append("{}\n");
+            }
+            responseContent.append("--" + RESPONSE_BOUNDARY + "--\n\n");
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setStatusCode(200);
+            response.addHeader("Content-Type", "multipart/mixed; boundary=" + RESPONSE_BOUNDARY);
+            response.setContent(responseContent.toString());
+            return response;
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        }
+      };
+    }
+  }
+
+  /** Callback that counts its invocations. */
+  private static class CountingCallback implements BatchCallback<GenericJson, GenericJson> {
+
+    final AtomicInteger successCalls = new AtomicInteger();
+    final AtomicInteger failureCalls = new AtomicInteger();
+
+    @Override
+    public void onSuccess(GenericJson t, HttpHeaders responseHeaders) {
+      successCalls.incrementAndGet();
+    }
+
+    @Override
+    public void onFailure(GenericJson e, HttpHeaders responseHeaders) {
+      failureCalls.incrementAndGet();
+    }
+  }
+
+  private static BatchRequest getBatchWithEchoRequests(
+      EchoTransport transport,
+      int numberOfRequests,
+      BatchCallback<GenericJson, GenericJson> callback)
+      throws IOException {
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    for (int i = 0; i < numberOfRequests; i++) {
+      batchRequest.queue(
+          newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    }
+    return batchRequest;
+  }
+
+  private static HttpRequest newEchoRequest(EchoTransport transport) throws IOException {
+    HttpRequest request =
+        transport
+            .createRequestFactory()
+            .buildGetRequest(new GenericUrl(ROOT_URL + SERVICE_PATH + URI_TEMPLATE1));
+    request.setParser(new JsonObjectParser(new GsonFactory()));
+    return request;
+  }
+
   private BatchRequest getBatchPopulatedWithRequests(
       boolean testServerError,
       boolean testAuthenticationError,
@@ -592,6 +748,779 @@ public class BatchRequestTest extends TestCase {
     assertEquals(1, transport.actualCalls);
   }
 
+  public void testExecuteWithoutLength() throws IOException {
+    BatchRequest batchRequest =
+        getBatchPopulatedWithRequests(false, false, false, false, false, true);
+    batchRequest.execute();
+    // Assert callbacks have been invoked.
+    assertEquals(1, callback1.successCalls);
+    assertEquals(1, callback2.successCalls);
+    assertEquals(0, callback2.failureCalls);
+    // Assert requestInfos is empty after execute.
+    assertTrue(batchRequest.requestInfos.isEmpty());
+  }
+
+  public void testExecuteWithErrorWithoutLength() throws IOException {
+    BatchRequest batchRequest =
+        getBatchPopulatedWithRequests(true, false, false, false, false, true);
+    batchRequest.execute();
+    // Assert callbacks have been invoked.
+    assertEquals(1, callback1.successCalls);
+    assertEquals(0, callback2.successCalls);
+    assertEquals(1, callback2.failureCalls);
+  }
+
+  public void testExecute_splitsIntoMultipleBatches() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 25, callback).setMaxPartsPerBatch(10);
+    batchRequest.execute();
+    assertEquals(25, callback.successCalls.get());
+    assertEquals(0, callback.failureCalls.get());
+    assertEquals(Arrays.asList(10, 10, 5), transport.partsPerCall);
+    assertEquals(1, transport.maxInFlight.get());
+    assertTrue(batchRequest.requestInfos.isEmpty());
+  }
+
+  public void testExecute_backOffCoalescesRetriedParts() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(3);
+    CountingCallback callback = new CountingCallback();
+    MockSleeper sleeper = new MockSleeper();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 5, callback)
+            .setMaxPartsPerBatch(3)
+            .setSleeper(sleeper)
+            .setBackOff(new MockBackOff().setBackOffMillis(100));
+    batchRequest.execute();
+    assertEquals(5, callback.successCalls.get());
+    assertEquals(0, callback.failureCalls.get());
+    assertEquals(Arrays.asList(3, 2, 3), transport.partsPerCall);
+    assertEquals(1, sleeper.getCount());
+    assertEquals(100, sleeper.getLastMillis());
+    BatchRetryStats stats = batchRequest.getRetryStats();
+    assertEquals(5, stats.getPartCount());
+    assertEquals(3, stats.getRetriedPartCount());
+    assertEquals(2, stats.getMaxRounds());
+    assertEquals(Integer.valueOf(2), stats.getRoundsHistogram().get(1));
+    assertEquals(Integer.valueOf(3), stats.getRoundsHistogram().get(2));
+  }
+
+  public void testExecute_listener() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(3);
+    CountingCallback callback = new CountingCallback();
+    MockBatchListener listener = new MockBatchListener();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 5, callback)
+            .setMaxPartsPerBatch(3)
+            .setSleeper(new MockSleeper())
+            .setBackOff(new MockBackOff().setBackOffMillis(100))
+            .setListener(listener);
+    batchRequest.execute();
+    assertEquals(5, callback.successCalls.get());
+    assertEquals(3, listener.getBatchCount());
+    assertEquals(Integer.valueOf(2), listener.getPartsPerBatchHistogram().get(3));
+    assertEquals(Integer.valueOf(1), listener.getPartsPerBatchHistogram().get(2));
+    assertEquals(Integer.valueOf(5), listener.getStatusCodeHistogram().get(200));
+    assertEquals(Integer.valueOf(3), listener.getStatusCodeHistogram().get(503));
+    assertEquals(Integer.valueOf(5), listener.getRoundHistogram().get(1));
+    assertEquals(Integer.valueOf(3), listener.getRoundHistogram().get(2));
+    // only the final responses are parsed
+    assertEquals(5, listener.getParsedPartCount());
+    assertEquals(1, listener.getBackOffRoundCount());
+    assertEquals(100, listener.getTotalBackOffMillis());
+    // all parts have a known length
+    assertTrue(listener.getRequestBytesHistogram().firstKey() > 0);
+    assertTrue(listener.getResponseBytesHistogram().firstKey() > 0);
+  }
+
+  public void testExecute_backOffHonorsRetryAfter() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(1);
+    transport.retryAfter = "7";
+    CountingCallback callback = new CountingCallback();
+    MockSleeper sleeper = new MockSleeper();
+    getBatchWithEchoRequests(transport, 2, callback)
+        .setSleeper(sleeper)
+        .setBackOff(new MockBackOff().setBackOffMillis(100))
+        .execute();
+    assertEquals(2, callback.successCalls.get());
+    assertEquals(Arrays.asList(2, 1), transport.partsPerCall);
+    assertEquals(7000, sleeper.getLastMillis());
+  }
+
+  public void testExecute_backOffExhausted() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(100);
+    CountingCallback callback = new CountingCallback();
+    MockSleeper sleeper = new MockSleeper();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 2, callback)
+            .setSleeper(sleeper)
+            .setBackOff(new MockBackOff().setMaxTries(1));
+    batchRequest.execute();
+    assertEquals(0, callback.successCalls.get());
+    assertEquals(2, callback.failureCalls.get());
+    assertEquals(2, transport.actualCalls.get());
+    assertEquals(1, sleeper.getCount());
+    assertEquals(Integer.valueOf(2), batchRequest.getRetryStats().getRoundsHistogram().get(2));
+  }
+
+  public void testExecute_withoutBackOffDoesNotRetry() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(1);
+    CountingCallback callback = new CountingCallback();
+    getBatchWithEchoRequests(transport, 2, callback).execute();
+    assertEquals(1, callback.successCalls.get());
+    assertEquals(1, callback.failureCalls.get());
+    assertEquals(1, transport.actualCalls.get());
+  }
+
+  public void testExecuteAsync_backOff() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(4);
+    CountingCallback callback = new CountingCallback();
+    MockSleeper sleeper = new MockSleeper();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      getBatchWithEchoRequests(transport, 8, callback)
+          .setMaxPartsPerBatch(2)
+          .setSleeper(sleeper)
+          .setBackOff(new MockBackOff())
+          .executeAsync(executor)
+          .get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(8, callback.successCalls.get());
+    assertEquals(0, callback.failureCalls.get());
+    assertEquals(6, transport.actualCalls.get());
+    assertEquals(1, sleeper.getCount());
+  }
+
+  public void testGetRetryAfterMillis() {
+    assertEquals(0, BatchUnparsedResponse.getRetryAfterMillis(new HttpHeaders()));
+    assertEquals(
+        3000, BatchUnparsedResponse.getRetryAfterMillis(new HttpHeaders().set("Retry-After", "3")));
+    assertEquals(
+        0, BatchUnparsedResponse.getRetryAfterMillis(new HttpHeaders().set("Retry-After", "x")));
+    assertEquals(
+        0,
+        BatchUnparsedResponse.getRetryAfterMillis(
+            new HttpHeaders().set("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT")));
+    SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    String inOneHour = dateFormat.format(new Date(System.currentTimeMillis() + 3600000));
+    long millis =
+        BatchUnparsedResponse.getRetryAfterMillis(
+            new HttpHeaders().set("Retry-After", inOneHour));
+    assertTrue(millis > 3500000 && millis <= 3600000);
+  }
+
+  public void testExecute_partHeadersAndCharset() throws IOException {
+    final String json = "{\"name\":\"\u00fc\"}";
+    final int length = json.getBytes("UTF-8").length;
+    MockHttpTransport transport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String name, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.addHeader(
+                    "Content-Type", "multipart/mixed; boundary=" + RESPONSE_BOUNDARY);
+                response.setContent(
+                    "--" + RESPONSE_BOUNDARY + "\n"
+                        + "Content-Type: application/http\n"
+                        + "Content-ID: response-1\n\n"
+                        + "HTTP/1.1 200 OK\n"
+                        + "Content-Type: application/json; charset=UTF-8\n"
+                        + "ETag: \"abc\"\n"
+                        + "Content-Length: " + length + "\n\n"
+                        + json + "\n"
+                        + "--" + RESPONSE_BOUNDARY + "--\n\n");
+                return response;
+              }
+            };
+          }
+        };
+    final List<Object> results = new ArrayList<Object>();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    HttpRequest request =
+        transport
+            .createRequestFactory()
+            .buildGetRequest(new GenericUrl(ROOT_URL + SERVICE_PATH + URI_TEMPLATE1));
+    request.setParser(new JsonObjectParser(new GsonFactory()));
+    batchRequest.queue(
+        request,
+        GenericJson.class,
+        GenericJson.class,
+        new BatchCallback<GenericJson, GenericJson>() {
+          @Override
+          public void onSuccess(GenericJson t, HttpHeaders responseHeaders) {
+            results.add(t.get("name"));
+            results.add(responseHeaders.getETag());
+            results.add(responseHeaders.getContentLength());
+          }
+
+          @Override
+          public void onFailure(GenericJson e, HttpHeaders responseHeaders) {
+            fail();
+          }
+        });
+    batchRequest.execute();
+    assertEquals(Arrays.<Object>asList("\u00fc", "\"abc\"", (long) length), results);
+  }
+
+  public void testExecute_gzipEncodedParts() throws IOException {
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+    gzip.write("{\"name\":\"\u00fc\"}".getBytes("UTF-8"));
+    gzip.close();
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int i = 1; i <= 2; i++) {
+      content.write(
+          ("--" + RESPONSE_BOUNDARY + "\n"
+                  + "Content-Type: application/http\n"
+                  + "Content-ID: response-" + i + "\n\n"
+                  + "HTTP/1.1 200 OK\n"
+                  + "Content-Type: application/json; charset=UTF-8\n"
+                  + "Content-Encoding: gzip\n"
+                  + "Content-Length: " + gzipped.size() + "\n\n")
+              .getBytes("UTF-8"));
+      gzipped.writeTo(content);
+      content.write('\n');
+    }
+    content.write(("--" + RESPONSE_BOUNDARY + "--\n\n").getBytes("UTF-8"));
+    MockHttpTransport transport =
+        new MockHttpTransport() {
+          @Override
+          public LowLevelHttpRequest buildRequest(String name, String url) {
+            return new MockLowLevelHttpRequest(url) {
+              @Override
+              public LowLevelHttpResponse execute() {
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(200);
+                response.addHeader(
+                    "Content-Type", "multipart/mixed; boundary=" + RESPONSE_BOUNDARY);
+                response.setContent(content.toByteArray());
+                return response;
+              }
+            };
+          }
+        };
+    final List<Object> results = new ArrayList<Object>();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    HttpRequest request =
+        transport
+            .createRequestFactory()
+            .buildGetRequest(new GenericUrl(ROOT_URL + SERVICE_PATH + URI_TEMPLATE1));
+    request.setParser(new JsonObjectParser(new GsonFactory()));
+    batchRequest.queue(
+        request,
+        GenericJson.class,
+        GenericJson.class,
+        new BatchCallback<GenericJson, GenericJson>() {
+          @Override
+          public void onSuccess(GenericJson t, HttpHeaders responseHeaders) {
+            results.add(t.get("name"));
+          }
+
+          @Override
+          public void onFailure(GenericJson e, HttpHeaders responseHeaders) {
+            fail();
+          }
+        });
+    batchRequest.queue(
+        transport
+            .createRequestFactory()
+            .buildGetRequest(new GenericUrl(ROOT_URL + SERVICE_PATH + URI_TEMPLATE1)),
+        new BatchUnparsedCallback() {
+          @Override
+          public void onResponse(int statusCode, HttpHeaders responseHeaders, InputStream content)
+              throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copy(content, out);
+            results.add(out.toString("UTF-8"));
+          }
+        });
+    batchRequest.execute();
+    assertEquals(Arrays.<Object>asList("\u00fc", "{\"name\":\"\u00fc\"}"), results);
+  }
+
+  public void testExecute_splitsByBytes() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    long partLength = new HttpRequestContent(newEchoRequest(transport)).getLength();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 5, callback).setMaxBytesPerBatch(partLength * 5 / 2);
+    batchRequest.execute();
+    assertEquals(5, callback.successCalls.get());
+    assertEquals(Arrays.asList(2, 2, 1), transport.partsPerCall);
+  }
+
+  public void testQueue_autoFlushByParts() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 0, callback).setMaxPartsPerBatch(3).setAutoFlush(true);
+    for (int i = 0; i < 7; i++) {
+      batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    }
+    assertEquals(Arrays.asList(3, 3), transport.partsPerCall);
+    assertEquals(6, callback.successCalls.get());
+    assertEquals(1, batchRequest.size());
+    batchRequest.execute();
+    assertEquals(Arrays.asList(3, 3, 1), transport.partsPerCall);
+    assertEquals(0, batchRequest.size());
+  }
+
+  public void testQueue_autoFlushByBytes() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    long partLength = new HttpRequestContent(newEchoRequest(transport)).getLength();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 0, callback)
+            .setMaxBytesPerBatch(partLength * 5 / 2)
+            .setAutoFlush(true);
+    for (int i = 0; i < 5; i++) {
+      batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    }
+    // flushed before the third and the fifth request would exceed the maximum size
+    assertEquals(Arrays.asList(2, 2), transport.partsPerCall);
+    assertEquals(1, batchRequest.size());
+  }
+
+  public void testQueue_autoFlushByLinger() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    final long[] nanos = {0};
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 0, callback)
+            .setMaxLingerMillis(1000)
+            .setAutoFlush(true);
+    batchRequest.nanoClock =
+        new NanoClock() {
+          @Override
+          public long nanoTime() {
+            return nanos[0];
+          }
+        };
+    batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    nanos[0] = TimeUnit.MILLISECONDS.toNanos(999);
+    batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    assertEquals(0, transport.actualCalls.get());
+    nanos[0] = TimeUnit.MILLISECONDS.toNanos(1000);
+    batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    assertEquals(Arrays.asList(3), transport.partsPerCall);
+    assertEquals(0, batchRequest.size());
+  }
+
+  public void testQueue_withoutAutoFlush() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 5, callback).setMaxPartsPerBatch(2);
+    assertEquals(0, transport.actualCalls.get());
+    assertEquals(5, batchRequest.size());
+  }
+
+  public void testExecute_sendsContentLength() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    getBatchWithEchoRequests(transport, 3, callback).execute();
+    assertEquals(1, transport.contentLengths.size());
+    String[] lengths = transport.contentLengths.get(0).split("/");
+    assertEquals(lengths[1], lengths[0]);
+  }
+
+  public void testExecute_reserializesPartsModifiedByInterceptor() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(1);
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null)
+            .setBatchUrl(new GenericUrl(TEST_BATCH_URL))
+            .setSleeper(new MockSleeper())
+            .setBackOff(new MockBackOff());
+    final AtomicInteger interceptions = new AtomicInteger();
+    HttpRequest request = newEchoRequest(transport);
+    request.setInterceptor(
+        new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) {
+            request.getHeaders().set("X-Interception", interceptions.incrementAndGet());
+          }
+        });
+    batchRequest.queue(request, GenericJson.class, GenericJson.class, callback);
+    batchRequest.execute();
+    assertEquals(1, callback.successCalls.get());
+    assertEquals(2, transport.bodies.size());
+    assertTrue(transport.bodies.get(0).contains("x-interception: 1\r\n"));
+    assertTrue(transport.bodies.get(1).contains("x-interception: 2\r\n"));
+    for (String contentLength : transport.contentLengths) {
+      String[] lengths = contentLength.split("/");
+      assertEquals(lengths[1], lengths[0]);
+    }
+  }
+
+  public void testExecute_reserializesPartsModifiedByInterceptorOnHttpRetry() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.failingCalls.set(1);
+    CountingCallback callback = new CountingCallback();
+    // the batch HTTP request itself is retried after the I/O exception
+    BatchRequest batchRequest =
+        new BatchRequest(
+                transport,
+                new HttpRequestInitializer() {
+                  @Override
+                  public void initialize(HttpRequest request) {
+                    request.setIOExceptionHandler(
+                        new HttpBackOffIOExceptionHandler(new MockBackOff()));
+                  }
+                })
+            .setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    final StringBuilder interception = new StringBuilder();
+    HttpRequest request = newEchoRequest(transport);
+    request.setInterceptor(
+        new HttpExecuteInterceptor() {
+          @Override
+          public void intercept(HttpRequest request) {
+            // the header gets longer on each attempt
+            request.getHeaders().set("X-Interception", interception.append('x').toString());
+          }
+        });
+    batchRequest.queue(request, GenericJson.class, GenericJson.class, callback);
+    batchRequest.execute();
+    assertEquals(1, callback.successCalls.get());
+    assertEquals(2, transport.actualCalls.get());
+    assertEquals(1, transport.bodies.size());
+    assertTrue(transport.bodies.get(0).contains("x-interception: xx\r\n"));
+    String[] lengths = transport.contentLengths.get(0).split("/");
+    assertEquals(lengths[1], lengths[0]);
+  }
+
+  public void testExecute_gzipContent() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    getBatchWithEchoRequests(transport, 100, callback).execute();
+    getBatchWithEchoRequests(transport, 100, callback).setEnableGZipContent(true).execute();
+    assertEquals(200, callback.successCalls.get());
+    assertEquals(Arrays.asList(100, 100), transport.partsPerCall);
+    String[] plainLengths = transport.contentLengths.get(0).split("/");
+    String[] gzipLengths = transport.contentLengths.get(1).split("/");
+    assertEquals(plainLengths[1], plainLengths[0]);
+    // compressed bodies are streamed without a Content-Length
+    assertEquals("-1", gzipLengths[0]);
+    assertTrue(Long.parseLong(gzipLengths[1]) * 10 < Long.parseLong(plainLengths[1]));
+    assertEquals(transport.bodies.get(0).length(), transport.bodies.get(1).length());
+  }
+
+  public void testExecute_unparsedCallback() throws IOException {
+    EchoTransport transport = new EchoTransport();
+    transport.unavailableParts.set(1);
+    final List<String> responses = new ArrayList<String>();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    for (int i = 0; i < 3; i++) {
+      final boolean readContent = i != 1;
+      batchRequest.queue(
+          newEchoRequest(transport),
+          new BatchUnparsedCallback() {
+            @Override
+            public void onResponse(int statusCode, HttpHeaders responseHeaders, InputStream content)
+                throws IOException {
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              if (readContent) {
+                IOUtils.copy(content, out);
+              }
+              responses.add(
+                  statusCode + " " + responseHeaders.getContentLength() + " " + out.toString());
+            }
+          });
+    }
+    batchRequest.execute();
+    assertEquals(Arrays.asList("503 2 {}", "200 2 ", "200 2 {}"), responses);
+  }
+
+  /** Queues echo requests whose callbacks record their index and the thread they ran on. */
+  private static BatchRequest getBatchWithRecordingCallbacks(
+      EchoTransport transport,
+      int numberOfRequests,
+      final List<Integer> indexes,
+      final List<Thread> threads)
+      throws IOException {
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    for (int i = 0; i < numberOfRequests; i++) {
+      final int index = i;
+      batchRequest.queue(
+          newEchoRequest(transport),
+          GenericJson.class,
+          GenericJson.class,
+          new BatchCallback<GenericJson, GenericJson>() {
+            @Override
+            public void onSuccess(GenericJson t, HttpHeaders responseHeaders) {
+              indexes.add(index);
+              threads.add(Thread.currentThread());
+            }
+
+            @Override
+            public void onFailure(GenericJson e, HttpHeaders responseHeaders) {
+              fail();
+            }
+          });
+    }
+    return batchRequest;
+  }
+
+  public void testExecute_orderedCallbackExecutor() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    List<Integer> indexes = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      getBatchWithRecordingCallbacks(transport, 50, indexes, threads)
+          .setMaxPartsPerBatch(20)
+          .setCallbackExecutor(executor)
+          .setMaxPendingCallbacks(3)
+          .execute();
+    } finally {
+      executor.shutdown();
+    }
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 50; i++) {
+      expected.add(i);
+    }
+    assertEquals(expected, indexes);
+    assertFalse(threads.contains(Thread.currentThread()));
+  }
+
+  public void testExecute_unorderedCallbackExecutor() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    List<Integer> indexes = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      getBatchWithRecordingCallbacks(transport, 50, indexes, threads)
+          .setCallbackExecutor(executor)
+          .setOrderedCallbacks(false)
+          .setMaxPendingCallbacks(2)
+          .execute();
+    } finally {
+      executor.shutdown();
+    }
+    // all callbacks are done once execute returns
+    assertEquals(50, indexes.size());
+    assertEquals(50, new HashSet<Integer>(indexes).size());
+    assertFalse(threads.contains(Thread.currentThread()));
+  }
+
+  public void testExecute_callbackExecutorRejects() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    List<Integer> indexes = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    Executor rejectingExecutor =
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            throw new RejectedExecutionException();
+          }
+        };
+    getBatchWithRecordingCallbacks(transport, 5, indexes, threads)
+        .setCallbackExecutor(rejectingExecutor)
+        .execute();
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), indexes);
+    assertEquals(Collections.nCopies(5, Thread.currentThread()), threads);
+  }
+
+  public void testExecute_callbackExecutorFailure() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    final AtomicInteger calls = new AtomicInteger();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null).setBatchUrl(new GenericUrl(TEST_BATCH_URL));
+    for (int i = 0; i < 5; i++) {
+      batchRequest.queue(
+          newEchoRequest(transport),
+          new BatchUnparsedCallback() {
+            @Override
+            public void onResponse(int statusCode, HttpHeaders responseHeaders, InputStream content)
+                throws IOException {
+              calls.incrementAndGet();
+              throw new IOException("expected");
+            }
+          });
+    }
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      batchRequest.setCallbackExecutor(executor).execute();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("expected", e.getMessage());
+    } finally {
+      executor.shutdown();
+    }
+    // no further callbacks are invoked after the first failure
+    assertEquals(1, calls.get());
+  }
+
+  public void testExecuteAsync() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 23, callback)
+            .setMaxPartsPerBatch(5)
+            .setMaxConcurrentBatches(2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<Void> future = batchRequest.executeAsync(executor);
+      // the queued requests are handed off to the asynchronous execution right away
+      assertTrue(batchRequest.requestInfos.isEmpty());
+      future.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(23, callback.successCalls.get());
+    assertEquals(0, callback.failureCalls.get());
+    assertEquals(5, transport.actualCalls.get());
+    assertTrue(transport.maxInFlight.get() <= 2);
+    int totalParts = 0;
+    for (int parts : transport.partsPerCall) {
+      assertTrue(parts <= 5);
+      totalParts += parts;
+    }
+    assertEquals(23, totalParts);
+  }
+
+  public void testExecuteAsync_failure() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    transport.failRequests = true;
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 10, callback)
+            .setMaxPartsPerBatch(2)
+            .setMaxConcurrentBatches(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      batchRequest.executeAsync(executor).get(10, TimeUnit.SECONDS);
+      fail("expected " + ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    } finally {
+      executor.shutdown();
+    }
+    // no further batch HTTP requests are started after the first failure
+    assertEquals(1, transport.actualCalls.get());
+    assertEquals(0, callback.successCalls.get());
+  }
+
+  public void testExecuteAsync_concurrentExecutionsBackOffOnTheirOwn() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    // each execution gets two back-off rounds
+    transport.unavailableParts.set(4);
+    CountingCallback callback = new CountingCallback();
+    MockBatchListener listener = new MockBatchListener();
+    BatchRequest batchRequest =
+        new BatchRequest(transport, null)
+            .setBatchUrl(new GenericUrl(TEST_BATCH_URL))
+            .setSleeper(new MockSleeper())
+            .setListener(listener)
+            .setBackOff(
+                new ExponentialBackOff.Builder()
+                    .setInitialIntervalMillis(100)
+                    .setRandomizationFactor(0)
+                    .setMultiplier(2)
+                    .build());
+    // the rounds of both executions interleave on the only thread
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+      Future<Void> first = batchRequest.executeAsync(executor);
+      batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+      Future<Void> second = batchRequest.executeAsync(executor);
+      first.get(10, TimeUnit.SECONDS);
+      second.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(2, callback.successCalls.get());
+    assertEquals(4, listener.getBackOffRoundCount());
+    // 100 ms and 200 ms for each execution
+    assertEquals(600, listener.getTotalBackOffMillis());
+  }
+
+  public void testExecuteAsync_sharedBackOffStillInUse() throws Exception {
+    EchoTransport transport = new EchoTransport();
+    CountingCallback callback = new CountingCallback();
+    BatchRequest batchRequest =
+        getBatchWithEchoRequests(transport, 1, callback).setBackOff(new MockBackOff());
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Executor executor =
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        };
+    Future<Void> future = batchRequest.executeAsync(executor);
+    batchRequest.queue(newEchoRequest(transport), GenericJson.class, GenericJson.class, callback);
+    try {
+      batchRequest.executeAsync(executor);
+      fail("expected " + IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // the request stays queued and can be executed once the first execution is done
+    assertEquals(1, batchRequest.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      tasks.get(i).run();
+    }
+    future.get(10, TimeUnit.SECONDS);
+    batchRequest.execute();
+    assertEquals(2, callback.successCalls.get());
+  }
+
+  public void testExecuteAsync_sharedCallbackExecutor() throws Exception {
+    subTestExecuteAsync_sharedCallbackExecutor(true);
+    subTestExecuteAsync_sharedCallbackExecutor(false);
+  }
+
+  private void subTestExecuteAsync_sharedCallbackExecutor(boolean ordered) throws Exception {
+    EchoTransport transport = new EchoTransport();
+    List<Integer> indexes = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+    // the only thread reads the batch responses, so it must not wait for pending callbacks
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      getBatchWithRecordingCallbacks(transport, 20, indexes, threads)
+          .setMaxPartsPerBatch(5)
+          .setMaxConcurrentBatches(2)
+          .setCallbackExecutor(executor)
+          .setOrderedCallbacks(ordered)
+          .setMaxPendingCallbacks(1)
+          .executeAsync(executor)
+          .get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(20, indexes.size());
+    assertEquals(20, new HashSet<Integer>(indexes).size());
+    if (ordered) {
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < 20; i++) {
+        expected.add(i);
+      }
+      assertEquals(expected, indexes);
+    }
+    assertFalse(threads.contains(Thread.currentThread()));
+  }
+
   public void testExecuteWithVoidCallback() throws Exception {
     subTestExecuteWithVoidCallback(false);
     // Assert callbacks have been invoked.
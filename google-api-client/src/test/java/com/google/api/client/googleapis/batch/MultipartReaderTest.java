@@ -0,0 +1,130 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.batch;
+
+import com.google.api.client.util.Charsets;
+import com.google.api.client.util.IOUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import junit.framework.TestCase;
+
+/** Tests {@link MultipartReader}. */
+public class MultipartReaderTest extends TestCase {
+
+  private static final String BOUNDARY = "--__END_OF_PART__";
+
+  private static MultipartReader newReader(String content, int bufferSize) {
+    return new MultipartReader(
+        new ByteArrayInputStream(content.getBytes(Charsets.ISO_8859_1)), BOUNDARY, bufferSize);
+  }
+
+  private static String readFully(InputStream body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copy(body, out);
+    return new String(out.toByteArray(), Charsets.ISO_8859_1);
+  }
+
+  public void testReadLine() throws IOException {
+    MultipartReader reader = newReader("first\r\nsecond\n\nlast", 1);
+    assertEquals("first", reader.readLine());
+    assertEquals("second", reader.readLine());
+    assertEquals("", reader.readLine());
+    assertEquals("last", reader.readLine());
+    assertNull(reader.readLine());
+  }
+
+  public void testReadLine_longerThanBuffer() throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      line.append((char) ('a' + i % 26));
+    }
+    MultipartReader reader = newReader(line + "\r\n" + BOUNDARY + "--\r\n", 64);
+    assertEquals(line.toString(), reader.readLine());
+    assertEquals(BOUNDARY + "--", reader.readLine());
+    assertNull(reader.readLine());
+  }
+
+  public void testOpenBody_knownLength() throws IOException {
+    MultipartReader reader = newReader("header\n0123456789\n" + BOUNDARY + "--\n", 64);
+    assertEquals("header", reader.readLine());
+    assertEquals("0123456789", readFully(reader.openBody(10)));
+    assertEquals("", reader.readLine());
+    assertEquals(BOUNDARY + "--", reader.readLine());
+  }
+
+  public void testOpenBody_knownLengthLargerThanBuffer() throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      body.append((char) ('0' + i % 10));
+    }
+    MultipartReader reader = newReader(body + "\nnext", 64);
+    assertEquals(body.toString(), readFully(reader.openBody(body.length())));
+    assertEquals("", reader.readLine());
+    assertEquals("next", reader.readLine());
+  }
+
+  public void testOpenBody_skip() throws IOException {
+    MultipartReader reader = newReader("0123456789\nnext", 64);
+    InputStream body = reader.openBody(10);
+    assertEquals('0', body.read());
+    assertEquals(9, body.skip(Long.MAX_VALUE));
+    assertEquals(-1, body.read());
+    assertEquals("", reader.readLine());
+    assertEquals("next", reader.readLine());
+  }
+
+  public void testOpenBody_unknownLength() throws IOException {
+    MultipartReader reader =
+        newReader("Big\nEgg\r\n--__END_OF_PART\r\n" + BOUNDARY + "\r\nnext", 64);
+    // a line that is only a prefix of the boundary is part of the body
+    assertEquals("Big\nEgg\r\n--__END_OF_PART", readFully(reader.openBody(-1)));
+    assertEquals(BOUNDARY, reader.readLine());
+    assertEquals("next", reader.readLine());
+  }
+
+  public void testOpenBody_unknownLengthSpanningManyReads() throws IOException {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      body.append(i % 50 == 49 ? "\r\n" : "x");
+    }
+    for (int bufferSize : new int[] {1, 50, 51, 64, 4096}) {
+      MultipartReader reader = newReader(body + "\r\n" + BOUNDARY + "--\r\n", bufferSize);
+      assertEquals(body.toString(), readFully(reader.openBody(-1)));
+      assertEquals(BOUNDARY + "--", reader.readLine());
+      assertNull(reader.readLine());
+    }
+  }
+
+  public void testOpenBody_unknownLengthEmpty() throws IOException {
+    MultipartReader reader = newReader(BOUNDARY + "--\n\n", 64);
+    assertEquals("", readFully(reader.openBody(-1)));
+    assertEquals(BOUNDARY + "--", reader.readLine());
+
+    reader = newReader("\r\n" + BOUNDARY + "--\n", 64);
+    assertEquals("", readFully(reader.openBody(-1)));
+    assertEquals(BOUNDARY + "--", reader.readLine());
+  }
+
+  public void testOpenBody_unknownLengthSkip() throws IOException {
+    MultipartReader reader = newReader("0123456789\r\n" + BOUNDARY + "\nnext", 32);
+    InputStream body = reader.openBody(-1);
+    assertEquals(10, body.skip(Long.MAX_VALUE));
+    assertEquals(-1, body.read());
+    assertEquals(BOUNDARY, reader.readLine());
+    assertEquals("next", reader.readLine());
+  }
+}
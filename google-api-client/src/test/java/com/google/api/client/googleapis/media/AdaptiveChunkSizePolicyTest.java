@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/** Tests {@link AdaptiveChunkSizePolicy}. */
+public class AdaptiveChunkSizePolicyTest extends TestCase {
+
+  private static final int MIN = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+
+  private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  public void testConstructor() {
+    AdaptiveChunkSizePolicy policy = new AdaptiveChunkSizePolicy();
+    assertEquals(MIN, policy.getMinChunkSize());
+    assertEquals(AdaptiveChunkSizePolicy.DEFAULT_MAXIMUM_CHUNK_SIZE, policy.getMaxChunkSize());
+    assertEquals(
+        AdaptiveChunkSizePolicy.DEFAULT_TARGET_CHUNK_MILLIS, policy.getTargetChunkMillis());
+    try {
+      new AdaptiveChunkSizePolicy(MIN + 1, 4 * MIN, 1000);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new AdaptiveChunkSizePolicy(4 * MIN, 2 * MIN, 1000);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testNextChunkSize_throughput() {
+    AdaptiveChunkSizePolicy policy = new AdaptiveChunkSizePolicy(MIN, 64 * MIN, 1000);
+    // chunk took exactly the target duration
+    assertEquals(8 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, ONE_SECOND, 0));
+    // slightly faster, rounded down to a multiple of the minimum chunk size
+    assertEquals(10 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, ONE_SECOND * 3 / 4, 0));
+    // much faster, at most doubled
+    assertEquals(16 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, ONE_SECOND / 10, 0));
+    // much slower, at least halved
+    assertEquals(4 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, 10 * ONE_SECOND, 0));
+    // no measurable time
+    assertEquals(16 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, 0, 0));
+  }
+
+  public void testNextChunkSize_errors() {
+    AdaptiveChunkSizePolicy policy = new AdaptiveChunkSizePolicy(2 * MIN, 64 * MIN, 1000);
+    assertEquals(4 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, ONE_SECOND / 10, 1));
+    assertEquals(2 * MIN, policy.nextChunkSize(2 * MIN, 2 * MIN, ONE_SECOND, 3));
+  }
+
+  public void testNextChunkSize_bounds() {
+    AdaptiveChunkSizePolicy policy = new AdaptiveChunkSizePolicy(2 * MIN, 8 * MIN, 1000);
+    assertEquals(8 * MIN, policy.nextChunkSize(8 * MIN, 8 * MIN, ONE_SECOND / 10, 0));
+    assertEquals(2 * MIN, policy.nextChunkSize(2 * MIN, 2 * MIN, 10 * ONE_SECOND, 0));
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/** Tests {@link ChunkBufferPool}. */
+public class ChunkBufferPoolTest extends TestCase {
+
+  public void testBorrow_reusesReturnedBuffers() throws IOException {
+    ChunkBufferPool pool = new ChunkBufferPool(2);
+    byte[] first = pool.borrow(10);
+    assertEquals(10, first.length);
+    assertEquals(1, pool.getBorrowedCount());
+    pool.release(first);
+    assertEquals(0, pool.getBorrowedCount());
+    assertEquals(1, pool.getIdleCount());
+    // a returned buffer is reused for requests of at most its length
+    assertSame(first, pool.borrow(5));
+    assertEquals(10, pool.getRetainedBytes());
+  }
+
+  public void testBorrow_replacesTooSmallIdleBuffer() throws IOException {
+    ChunkBufferPool pool = new ChunkBufferPool(2);
+    byte[] first = pool.borrow(10);
+    byte[] second = pool.borrow(10);
+    pool.release(first);
+    pool.release(second);
+    byte[] large = pool.borrow(20);
+    assertEquals(20, large.length);
+    // one of the idle buffers was dropped to stay within the bound
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(30, pool.getRetainedBytes());
+  }
+
+  public void testBorrow_failFast() throws IOException {
+    ChunkBufferPool pool = new ChunkBufferPool(1).setBlockWhenExhausted(false);
+    pool.borrow(1);
+    try {
+      pool.borrow(1);
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(1, pool.getExhaustedCount());
+  }
+
+  public void testBorrow_blocksUntilReleased() throws Exception {
+    final ChunkBufferPool pool = new ChunkBufferPool(1);
+    byte[] buffer = pool.borrow(1);
+    final AtomicReference<byte[]> borrowed = new AtomicReference<byte[]>();
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread thread =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              borrowed.set(pool.borrow(1));
+            } catch (IOException e) {
+              // leaves borrowed unset
+            }
+            done.countDown();
+          }
+        };
+    thread.start();
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+    pool.release(buffer);
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertSame(buffer, borrowed.get());
+    assertEquals(1, pool.getExhaustedCount());
+  }
+}
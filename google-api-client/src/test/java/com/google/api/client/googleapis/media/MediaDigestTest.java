@@ -0,0 +1,85 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/** Tests {@link MediaDigest} and {@link Crc32c}. */
+public class MediaDigestTest extends TestCase {
+
+  public void testCrc32c() throws Exception {
+    assertEquals(0xE3069283L, crc32c("123456789".getBytes("US-ASCII")));
+    assertEquals(0x8A9136AAL, crc32c(new byte[32]));
+    byte[] ones = new byte[32];
+    Arrays.fill(ones, (byte) 0xff);
+    assertEquals(0x62A8AB43L, crc32c(ones));
+  }
+
+  public void testCrc32c_SplitUpdates() {
+    byte[] data = new byte[1000];
+    new Random().nextBytes(data);
+    long expected = crc32c(data);
+    for (int split = 0; split <= 17; split++) {
+      Crc32c crc = new Crc32c();
+      crc.update(data, 0, split);
+      crc.update(data[split]);
+      crc.update(data, split + 1, data.length - split - 1);
+      assertEquals(expected, crc.getValue());
+      Crc32c continued = new Crc32c((int) crc.getValue());
+      assertEquals(expected, continued.getValue());
+      crc.reset();
+      assertEquals(0, crc.getValue());
+    }
+  }
+
+  public void testEmpty() {
+    MediaDigest digest = new MediaDigest();
+    assertEquals(0, digest.getLength());
+    assertEquals("AAAAAA==", digest.getCrc32cBase64());
+    assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==", digest.getMd5Base64());
+    assertEquals("crc32c=AAAAAA==,md5=1B2M2Y8AsgTpgAmY7PhCfg==", digest.getHashHeaderValue());
+  }
+
+  public void testUpdate() throws Exception {
+    byte[] data = "123456789".getBytes("US-ASCII");
+    MediaDigest digest = new MediaDigest().update(data, 0, 4).update(data, 4, 5);
+    assertEquals(9, digest.getLength());
+    assertEquals(0xE3069283, digest.getCrc32c());
+    assertEquals("4waSgw==", digest.getCrc32cBase64());
+    assertEquals("JfnnlDI7RTiF9RgfG2JNCw==", digest.getMd5Base64());
+    // getting the MD5 digest does not change the digest
+    assertEquals("JfnnlDI7RTiF9RgfG2JNCw==", digest.getMd5Base64());
+  }
+
+  public void testCopy() throws Exception {
+    byte[] data = "123456789".getBytes("US-ASCII");
+    MediaDigest digest = new MediaDigest().update(data, 0, 4);
+    MediaDigest copy = digest.copy();
+    copy.update(data, 4, 5);
+    assertEquals(4, digest.getLength());
+    assertEquals(
+        new MediaDigest().update(data, 0, 4).getHashHeaderValue(), digest.getHashHeaderValue());
+    assertEquals(9, copy.getLength());
+    assertEquals("4waSgw==", copy.getCrc32cBase64());
+  }
+
+  private static long crc32c(byte[] data) {
+    Crc32c crc = new Crc32c();
+    crc.update(data, 0, data.length);
+    return crc.getValue();
+  }
+}
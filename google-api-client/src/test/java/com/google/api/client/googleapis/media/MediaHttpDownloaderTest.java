@@ -15,14 +15,39 @@
 package com.google.api.client.googleapis.media;
 
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.LowLevelHttpRequest;
 import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.testing.util.MockBackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.TestCase;
 
 /**
@@ -80,7 +105,14 @@ public class MediaHttpDownloaderTest extends TestCase {
               response.setStatusCode(500);
               return response;
             }
-            response.setStatusCode(200);
+            if (bytesDownloaded != 0) {
+              response.setStatusCode(206);
+              response.addHeader(
+                  "Content-Range",
+                  "bytes " + bytesDownloaded + "-" + (contentLength - 1) + "/" + contentLength);
+            } else {
+              response.setStatusCode(200);
+            }
             if (contentLengthIncluded) {
               response.addHeader("Content-Length", String.valueOf(contentLength));
             }
@@ -467,4 +499,852 @@ public class MediaHttpDownloaderTest extends TestCase {
     // should be 1 call made: 1 download request with server error
     assertEquals(1, fakeTransport.lowLevelExecCalls);
   }
+
+  /** Transport that serves any byte range of random media content. */
+  static class RangeMediaTransport extends MockHttpTransport {
+
+    final byte[] content;
+    final AtomicInteger requestCount = new AtomicInteger();
+
+    /** Number of the request whose content fails halfway or {@code -1} for none. */
+    int failingRequest = -1;
+
+    /** Start of the range whose first request fails halfway or {@code -1} for none. */
+    int failingRangeStart = -1;
+
+    /** Latch that the failing range awaits before it fails or {@code null} for none. */
+    CountDownLatch failureLatch;
+
+    /** Number of the request whose content is empty or {@code -1} for none. */
+    int emptyRequest = -1;
+
+    /** Number of the request that fails with a server error or {@code -1} for none. */
+    int serverErrorRequest = -1;
+
+    /** Status code of all requests after the first or {@code 0} for a successful response. */
+    int rangeStatusCode;
+
+    /** ETag of the content or {@code null} for none. */
+    String eTag;
+
+    /** Number of the request before which the content changes or {@code -1} for none. */
+    int changingRequest = -1;
+
+    /** Value of the {@link MediaDigest#HASH_HEADER} header or {@code null} for none. */
+    String hashHeader;
+
+    /** Whether to ignore the If-Match header. */
+    boolean ignoresIfMatch;
+
+    /** If-Match headers of the requests. */
+    final List<String> ifMatches = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Whether to respond to a range with the content up to the end despite the Content-Range. */
+    boolean oversizedRanges;
+
+    /** Whether to ignore the Range header and respond with the whole content. */
+    boolean ignoresRange;
+
+    /** Range headers of the requests. */
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    RangeMediaTransport(int contentLength) {
+      content = new byte[contentLength];
+      new Random().nextBytes(content);
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String name, String url) {
+      assertEquals(TEST_REQUEST_URL, url);
+      return new MockLowLevelHttpRequest() {
+        @Override
+        public LowLevelHttpResponse execute() {
+          int requestNumber = requestCount.incrementAndGet();
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          if (requestNumber == serverErrorRequest) {
+            response.setStatusCode(503);
+            return response;
+          }
+          if (requestNumber > 1 && rangeStatusCode != 0) {
+            response.setStatusCode(rangeStatusCode);
+            return response;
+          }
+          if (requestNumber == changingRequest) {
+            eTag = eTag + "-changed";
+          }
+          String ifMatch = getFirstHeaderValue("If-Match");
+          ifMatches.add(ifMatch);
+          if (ifMatch != null && !ignoresIfMatch && !ifMatch.equals(eTag)) {
+            response.setStatusCode(412);
+            return response;
+          }
+          if (eTag != null) {
+            response.addHeader("ETag", eTag);
+          }
+          if (hashHeader != null) {
+            response.addHeader(MediaDigest.HASH_HEADER, hashHeader);
+          }
+          String range = getFirstHeaderValue("Range");
+          ranges.add(range);
+          if (range == null || ignoresRange) {
+            response.setStatusCode(200);
+            InputStream body = new ByteArrayInputStream(content);
+            if (requestNumber == failingRequest) {
+              body = new FailingInputStream(body, content.length / 2);
+            }
+            response.setContent(body);
+            return response;
+          }
+          int first = Integer.parseInt(range.substring(6, range.indexOf('-')));
+          String lastString = range.substring(range.indexOf('-') + 1);
+          int last =
+              Math.min(
+                  lastString.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(lastString),
+                  content.length - 1);
+          response.setStatusCode(206);
+          response.addHeader(
+              "Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+          InputStream body =
+              new ByteArrayInputStream(
+                  content, first, oversizedRanges ? content.length - first : last - first + 1);
+          if (requestNumber == failingRequest) {
+            body = new FailingInputStream(body, (last - first + 1) / 2);
+          } else if (first == failingRangeStart) {
+            failingRangeStart = -1;
+            FailingInputStream failingBody = new FailingInputStream(body, (last - first + 1) / 2);
+            failingBody.failureLatch = failureLatch;
+            body = failingBody;
+          } else if (requestNumber == emptyRequest) {
+            body = new ByteArrayInputStream(new byte[0]);
+          }
+          response.setContent(body);
+          return response;
+        }
+      };
+    }
+  }
+
+  /** Input stream that fails with an I/O exception after a number of bytes. */
+  static class FailingInputStream extends FilterInputStream {
+
+    int remaining;
+
+    /** Latch to await before failing or {@code null} for none. */
+    CountDownLatch failureLatch;
+
+    FailingInputStream(InputStream in, int remaining) {
+      super(in);
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int available() {
+      // like a socket, so that buffered streams do not read ahead into the failure
+      return 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        if (failureLatch != null) {
+          try {
+            failureLatch.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        throw new IOException("connection reset");
+      }
+      int bytesRead = super.read(b, off, Math.min(len, remaining));
+      if (bytesRead > 0) {
+        remaining -= bytesRead;
+      }
+      return bytesRead;
+    }
+  }
+
+  /** Seekable byte channel that is not a file channel. */
+  static class DelegatingSeekableByteChannel implements SeekableByteChannel {
+
+    final SeekableByteChannel channel;
+
+    DelegatingSeekableByteChannel(SeekableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+      return channel.read(dst);
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+      return channel.write(src);
+    }
+
+    public long position() throws IOException {
+      return channel.position();
+    }
+
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      channel.position(newPosition);
+      return this;
+    }
+
+    public long size() throws IOException {
+      return channel.size();
+    }
+
+    public SeekableByteChannel truncate(long size) throws IOException {
+      channel.truncate(size);
+      return this;
+    }
+
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) randomAccessFile.length()];
+      randomAccessFile.readFully(bytes);
+      return bytes;
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private void subtestParallelDownload(RangeMediaTransport fakeTransport, boolean fileChannel)
+      throws Exception {
+    int contentLength = fakeTransport.content.length;
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      // the media content is written after the bytes already in the channel
+      channel.write(ByteBuffer.wrap(new byte[100]));
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.sleeper =
+          new Sleeper() {
+            public void sleep(long millis) {}
+          };
+      downloader
+          .setChunkSize(1000)
+          .setParallelDownload(executor, 3)
+          .setBackOff(new ExponentialBackOff());
+      assertTrue(downloader.isParallelDownloadEnabled());
+      assertEquals(3, downloader.getParallelDownloadConnectionCount());
+      final AtomicInteger progressCalls = new AtomicInteger();
+      downloader.setProgressListener(
+          new MediaHttpDownloaderProgressListener() {
+            public void progressChanged(MediaHttpDownloader downloader) {
+              progressCalls.incrementAndGet();
+            }
+          });
+      downloader.download(
+          new GenericUrl(TEST_REQUEST_URL),
+          new HttpHeaders(),
+          fileChannel ? channel : new DelegatingSeekableByteChannel(channel));
+      assertEquals(100 + contentLength, channel.position());
+      assertEquals(contentLength, downloader.getNumBytesDownloaded());
+      assertEquals(1.0, downloader.getProgress());
+      assertEquals(MediaHttpDownloader.DownloadState.MEDIA_COMPLETE, downloader.getDownloadState());
+      // one call after the first chunk and for each other range if any, and one on completion
+      int chunkCount = (contentLength + 999) / 1000;
+      assertEquals(chunkCount == 1 ? 1 : chunkCount + 1, progressCalls.get());
+    } finally {
+      executor.shutdown();
+      randomAccessFile.close();
+    }
+    byte[] written = readFile(file);
+    assertEquals(100 + contentLength, written.length);
+    assertTrue(
+        Arrays.equals(fakeTransport.content, Arrays.copyOfRange(written, 100, written.length)));
+  }
+
+  public void testParallelDownload() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(10500);
+    subtestParallelDownload(fakeTransport, true);
+    assertEquals(11, fakeTransport.requestCount.get());
+  }
+
+  public void testParallelDownload_SeekableByteChannel() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(10500);
+    subtestParallelDownload(fakeTransport, false);
+    assertEquals(11, fakeTransport.requestCount.get());
+  }
+
+  public void testParallelDownload_RetryRange() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(10500);
+    fakeTransport.failingRequest = 3;
+    fakeTransport.serverErrorRequest = 5;
+    subtestParallelDownload(fakeTransport, true);
+    // the failed requests are retried from the first byte that was not written yet
+    assertEquals(13, fakeTransport.requestCount.get());
+  }
+
+  public void testParallelDownload_FailureWithoutBackOff() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(5000);
+    fakeTransport.failingRequest = 3;
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(1000).setParallelDownload(executor, 2);
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), null, randomAccessFile.getChannel());
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    } finally {
+      executor.shutdown();
+      randomAccessFile.close();
+    }
+    // the failed range is not retried
+    assertTrue(fakeTransport.requestCount.get() <= 5);
+  }
+
+  public void testParallelDownload_ResumeAfterFailedRange() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(5000);
+    // the second range fails halfway once the first chunk and the other ranges were downloaded
+    fakeTransport.failingRangeStart = 2000;
+    final CountDownLatch failureLatch = new CountDownLatch(4);
+    fakeTransport.failureLatch = failureLatch;
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(1000).setParallelDownload(executor, 3);
+      downloader.setProgressListener(
+          new MediaHttpDownloaderProgressListener() {
+            public void progressChanged(MediaHttpDownloader downloader) {
+              failureLatch.countDown();
+            }
+          });
+      try {
+        downloader.download(new GenericUrl(TEST_REQUEST_URL), null, file.toPath());
+        fail("Expected " + IOException.class);
+      } catch (IOException e) {
+        assertEquals("connection reset", e.getMessage());
+      }
+      // only the bytes before the first missing byte are counted
+      long bytesDownloaded = downloader.getNumBytesDownloaded();
+      assertEquals(2500, bytesDownloaded);
+      byte[] written = readFile(file);
+      assertTrue(
+          Arrays.equals(
+              Arrays.copyOf(fakeTransport.content, (int) bytesDownloaded),
+              Arrays.copyOf(written, (int) bytesDownloaded)));
+
+      MediaHttpDownloader resumed = new MediaHttpDownloader(fakeTransport, null);
+      resumed.setChunkSize(1000).setParallelDownload(executor, 3);
+      resumed.setBytesDownloaded(bytesDownloaded);
+      resumed.download(new GenericUrl(TEST_REQUEST_URL), null, file.toPath());
+      assertTrue(Arrays.equals(fakeTransport.content, readFile(file)));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testParallelDownload_RangeIgnored() throws Exception {
+    final RangeMediaTransport fakeTransport = new RangeMediaTransport(5000);
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(1000).setParallelDownload(executor, 2);
+      // the first chunk is a range as requested, the other ranges get the whole content
+      downloader.setProgressListener(
+          new MediaHttpDownloaderProgressListener() {
+            public void progressChanged(MediaHttpDownloader downloader) {
+              fakeTransport.ignoresRange = true;
+            }
+          });
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), null, randomAccessFile.getChannel());
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("unexpected response 200"));
+    } finally {
+      executor.shutdown();
+      randomAccessFile.close();
+    }
+  }
+
+  public void testParallelDownload_OneChunk() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(800);
+    subtestParallelDownload(fakeTransport, true);
+    assertEquals(1, fakeTransport.requestCount.get());
+  }
+
+  public void testParallelDownload_ClientError() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(5000);
+    fakeTransport.rangeStatusCode = 404;
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(1000).setParallelDownload(executor, 2);
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), null, randomAccessFile.getChannel());
+      fail("Expected " + HttpResponseException.class);
+    } catch (HttpResponseException e) {
+      assertEquals(404, e.getStatusCode());
+    } finally {
+      executor.shutdown();
+      randomAccessFile.close();
+    }
+    // the failing ranges are not retried and no further ranges are downloaded
+    assertTrue(fakeTransport.requestCount.get() <= 3);
+  }
+
+  public void testParallelDownload_Disabled() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(1000);
+      assertFalse(downloader.isParallelDownloadEnabled());
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), null, randomAccessFile.getChannel());
+      assertEquals(2500, randomAccessFile.getChannel().position());
+    } finally {
+      randomAccessFile.close();
+    }
+    assertTrue(Arrays.equals(fakeTransport.content, readFile(file)));
+    assertEquals(3, fakeTransport.requestCount.get());
+  }
+
+  public void testDownload_WritableByteChannel() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    downloader.download(
+        new GenericUrl(TEST_REQUEST_URL), null, Channels.newChannel(outputStream));
+    assertTrue(Arrays.equals(fakeTransport.content, outputStream.toByteArray()));
+    assertEquals(3, fakeTransport.requestCount.get());
+    assertEquals(2500, downloader.getNumBytesDownloaded());
+  }
+
+  public void testDownload_Path() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    // the file is replaced, including bytes after the end of the media content
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.write(new byte[3000]);
+    } finally {
+      randomAccessFile.close();
+    }
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), null, file.toPath());
+    assertTrue(Arrays.equals(fakeTransport.content, readFile(file)));
+    assertEquals(3, fakeTransport.requestCount.get());
+  }
+
+  public void testDownload_PathResumed() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    // the first 1200 bytes were downloaded before
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.write(fakeTransport.content, 0, 1200);
+    } finally {
+      randomAccessFile.close();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+      downloader.setChunkSize(500).setParallelDownload(executor, 2).setBytesDownloaded(1200);
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), null, file.toPath());
+      assertEquals(2500, downloader.getNumBytesDownloaded());
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(Arrays.equals(fakeTransport.content, readFile(file)));
+    assertEquals(3, fakeTransport.requestCount.get());
+  }
+
+  public void testDownload_RetryWithBackOff() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "v1";
+    fakeTransport.failingRequest = 2;
+    fakeTransport.serverErrorRequest = 4;
+    MockBackOff backOff = new MockBackOff();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.sleeper =
+        new Sleeper() {
+          public void sleep(long millis) {}
+        };
+    downloader.setChunkSize(1000).setBackOff(backOff);
+    assertSame(backOff, downloader.getBackOff());
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+    assertTrue(Arrays.equals(fakeTransport.content, outputStream.toByteArray()));
+    assertEquals("v1", downloader.getETag());
+    // the failed request is retried after the 500 bytes that were copied before it failed
+    assertEquals(
+        Arrays.asList("bytes=0-999", "bytes=1000-1999", "bytes=1500-1999", "bytes=2000-2999"),
+        fakeTransport.ranges);
+    assertEquals(5, fakeTransport.requestCount.get());
+    // the back-off policy is reset for each chunk
+    assertEquals(1, backOff.getNumberOfTries());
+  }
+
+  public void testDownload_FailureWithoutBackOff() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.failingRequest = 2;
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    // the bytes copied before the request failed are downloaded
+    assertEquals(1500, outputStream.size());
+    assertEquals(1500, downloader.getNumBytesDownloaded());
+  }
+
+  public void testDownload_ETagChanged() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "v1";
+    fakeTransport.changingRequest = 2;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff());
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+      fail("Expected " + HttpResponseException.class);
+    } catch (HttpResponseException e) {
+      assertEquals(412, e.getStatusCode());
+    }
+    // the request is not retried
+    assertEquals(2, fakeTransport.requestCount.get());
+    assertEquals(1000, downloader.getNumBytesDownloaded());
+  }
+
+  public void testDownload_ResumeWithETag() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "v2";
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setBytesDownloaded(1000).setETag("v1");
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+      fail("Expected " + HttpResponseException.class);
+    } catch (HttpResponseException e) {
+      assertEquals(412, e.getStatusCode());
+    }
+  }
+
+  public void testOpenStream() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    // no request is sent before the stream is read
+    assertEquals(0, fakeTransport.requestCount.get());
+    assertTrue(Arrays.equals(fakeTransport.content, ByteStreams.toByteArray(stream)));
+    stream.close();
+    assertEquals(
+        Arrays.asList("bytes=0-999", "bytes=1000-1999", "bytes=2000-2999"), fakeTransport.ranges);
+    assertEquals(MediaHttpDownloader.DownloadState.MEDIA_COMPLETE, downloader.getDownloadState());
+    assertEquals(2500, downloader.getNumBytesDownloaded());
+  }
+
+  public void testOpenStream_Prefetch() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setChunkPrefetchExecutor(MoreExecutors.directExecutor());
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    assertEquals(0, fakeTransport.requestCount.get());
+    assertEquals(fakeTransport.content[0], (byte) stream.read());
+    // the chunk after the one being read is prefetched, but no further chunk
+    assertEquals(2, fakeTransport.requestCount.get());
+    byte[] content = new byte[2500];
+    content[0] = fakeTransport.content[0];
+    ByteStreams.readFully(stream, content, 1, 2499);
+    assertTrue(Arrays.equals(fakeTransport.content, content));
+    assertEquals(-1, stream.read());
+    stream.close();
+    assertEquals(3, fakeTransport.requestCount.get());
+  }
+
+  public void testOpenStream_RetryWithBackOff() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.failingRequest = 2;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.sleeper =
+        new Sleeper() {
+          public void sleep(long millis) {}
+        };
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff());
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    assertTrue(Arrays.equals(fakeTransport.content, ByteStreams.toByteArray(stream)));
+    // the failed request is retried after the 500 bytes that were read before it failed
+    assertEquals(
+        Arrays.asList("bytes=0-999", "bytes=1000-1999", "bytes=1500-1999", "bytes=2000-2999"),
+        fakeTransport.ranges);
+  }
+
+  public void testOpenStream_DirectDownload() throws Exception {
+    MediaHttpDownloader downloader = new MediaHttpDownloader(new RangeMediaTransport(10), null);
+    downloader.setDirectDownloadEnabled(true);
+    try {
+      downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+      fail("Expected " + IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private static Sleeper noSleeper() {
+    return new Sleeper() {
+      public void sleep(long millis) {}
+    };
+  }
+
+  public void testDownload_MediaDigest() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    String hashHeader =
+        new MediaDigest().update(fakeTransport.content, 0, 2500).getHashHeaderValue();
+    fakeTransport.hashHeader = hashHeader;
+    fakeTransport.failingRequest = 2;
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.sleeper = noSleeper();
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff()).setMediaDigestEnabled(true);
+    assertTrue(downloader.isMediaDigestEnabled());
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+    assertTrue(Arrays.equals(fakeTransport.content, outputStream.toByteArray()));
+    assertEquals(hashHeader, downloader.getMediaDigest().getHashHeaderValue());
+  }
+
+  public void testDownload_MediaDigestWithPath() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    String hashHeader =
+        new MediaDigest().update(fakeTransport.content, 0, 2500).getHashHeaderValue();
+    fakeTransport.hashHeader = hashHeader;
+    fakeTransport.failingRequest = 2;
+    File file = File.createTempFile("download", ".bin");
+    file.deleteOnExit();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.sleeper = noSleeper();
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff()).setMediaDigestEnabled(true);
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), null, file.toPath());
+    assertTrue(Arrays.equals(fakeTransport.content, readFile(file)));
+    assertEquals(hashHeader, downloader.getMediaDigest().getHashHeaderValue());
+    // the bytes read before the request failed are written, so the retry continues after them
+    assertEquals("bytes=1500-1999", fakeTransport.ranges.get(2));
+  }
+
+  public void testDownload_MediaDigestMismatch() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    byte[] corrupted = fakeTransport.content.clone();
+    corrupted[1234]++;
+    fakeTransport.hashHeader = new MediaDigest().update(corrupted, 0, 2500).getHashHeaderValue();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setMediaDigestEnabled(true);
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("crc32c="));
+    }
+    assertEquals(
+        MediaHttpDownloader.DownloadState.MEDIA_IN_PROGRESS, downloader.getDownloadState());
+  }
+
+  public void testDownload_MediaDigestDisabled() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.hashHeader = "crc32c=AAAAAA==,md5=AAAAAAAAAAAAAAAAAAAAAA==";
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    assertFalse(downloader.isMediaDigestEnabled());
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+    assertNull(downloader.getMediaDigest());
+  }
+
+  public void testDownload_MediaDigestResumed() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.hashHeader = "crc32c=AAAAAA==,md5=AAAAAAAAAAAAAAAAAAAAAA==";
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setBytesDownloaded(1000).setMediaDigestEnabled(true);
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+    // the bytes downloaded before cannot be digested, so nothing is verified
+    assertNull(downloader.getMediaDigest());
+  }
+
+  public void testOpenStream_MediaDigestMismatch() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.hashHeader = "crc32c=AAAAAA==";
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setMediaDigestEnabled(true);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    try {
+      ByteStreams.toByteArray(stream);
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testDownload_RetryIgnoringRange() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(20);
+    fakeTransport.failingRequest = 1;
+    fakeTransport.ignoresRange = true;
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.sleeper =
+        new Sleeper() {
+          public void sleep(long millis) {}
+        };
+    downloader.setDirectDownloadEnabled(true).setBackOff(new MockBackOff());
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("unexpected response 200"));
+    }
+    // the whole content of the retries is not appended to the bytes copied before
+    assertTrue(
+        Arrays.equals(Arrays.copyOf(fakeTransport.content, 10), outputStream.toByteArray()));
+    assertEquals(10, downloader.getNumBytesDownloaded());
+  }
+
+  public void testDownload_ETagNotValidated() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "v1";
+    fakeTransport.changingRequest = 2;
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+    assertEquals(2500, outputStream.size());
+    // without a back-off policy, an ETag or a resumed download, the ETag is not validated
+    assertEquals(Arrays.asList(null, null, null), fakeTransport.ifMatches);
+    assertEquals("v1", downloader.getETag());
+  }
+
+  public void testDownload_WeakETag() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "W/\"1\"";
+    fakeTransport.changingRequest = 2;
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff());
+    downloader.download(new GenericUrl(TEST_REQUEST_URL), outputStream);
+    assertTrue(Arrays.equals(fakeTransport.content, outputStream.toByteArray()));
+    // weak ETags never match an If-Match header, so they are neither sent nor compared
+    assertEquals(Arrays.asList(null, null, null), fakeTransport.ifMatches);
+    assertNull(downloader.getETag());
+  }
+
+  public void testDownload_ETagChangedIgnoringIfMatch() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.eTag = "v1";
+    fakeTransport.changingRequest = 2;
+    fakeTransport.ignoresIfMatch = true;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000).setBackOff(new MockBackOff());
+    try {
+      downloader.download(new GenericUrl(TEST_REQUEST_URL), new ByteArrayOutputStream());
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("media content changed"));
+    }
+    // the request is not retried
+    assertEquals(Arrays.asList(null, "v1"), fakeTransport.ifMatches);
+    assertEquals(1000, downloader.getNumBytesDownloaded());
+  }
+
+  public void testOpenStream_FailureWithoutBackOff() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.failingRequest = 2;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    byte[] content = new byte[2500];
+    ByteStreams.readFully(stream, content, 0, 1000);
+    try {
+      stream.read();
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    // the bytes copied before the request failed were not returned, so they are downloaded again
+    assertEquals(1000, downloader.getNumBytesDownloaded());
+    ByteStreams.readFully(stream, content, 1000, 1500);
+    assertEquals(-1, stream.read());
+    assertTrue(Arrays.equals(fakeTransport.content, content));
+    assertEquals("bytes=1000-1999", fakeTransport.ranges.get(2));
+  }
+
+  public void testOpenStream_EmptyResponse() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.emptyRequest = 2;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    ByteStreams.readFully(stream, new byte[1000]);
+    try {
+      stream.read();
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("empty response"));
+    }
+    assertEquals(1000, downloader.getNumBytesDownloaded());
+  }
+
+  public void testOpenStream_RangeIgnored() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.ignoresRange = true;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    try {
+      stream.read();
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("unexpected response 200"));
+    }
+    assertEquals(0, downloader.getNumBytesDownloaded());
+  }
+
+  public void testOpenStream_OversizedRange() throws Exception {
+    RangeMediaTransport fakeTransport = new RangeMediaTransport(2500);
+    fakeTransport.oversizedRanges = true;
+    MediaHttpDownloader downloader = new MediaHttpDownloader(fakeTransport, null);
+    downloader.setChunkSize(1000);
+    InputStream stream = downloader.openStream(new GenericUrl(TEST_REQUEST_URL));
+    try {
+      stream.read();
+      fail("Expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("response has more bytes than requested", e.getMessage());
+    }
+    assertEquals(0, downloader.getNumBytesDownloaded());
+  }
 }
@@ -15,8 +15,10 @@
 package com.google.api.client.googleapis.media;
 
 import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.FileContent;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpBackOffIOExceptionHandler;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
@@ -32,19 +34,38 @@ import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.testing.util.MockBackOff;
 import com.google.api.client.testing.util.TestableByteArrayInputStream;
 import com.google.api.client.util.BackOff;
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import junit.framework.TestCase;
 
 /**
@@ -593,6 +614,28 @@ public class MediaHttpUploaderTest extends TestCase {
     assertEquals(6, fakeTransport.lowLevelExecCalls);
   }
 
+  public void testUploadMultipleCalls_WithNoContentSizeProvided_WithChunkBufferPool()
+      throws Exception {
+    int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 3;
+    ChunkBufferPool pool = new ChunkBufferPool(1).setBlockWhenExhausted(false);
+    for (int i = 0; i < 2; i++) {
+      MediaTransport fakeTransport = new MediaTransport(contentLength);
+      fakeTransport.contentLengthNotSpecified = true;
+      InputStream is = new ByteArrayInputStream(new byte[contentLength]);
+      InputStreamContent mediaContent = new InputStreamContent(TEST_CONTENT_TYPE, is);
+      MediaHttpUploader uploader = new MediaHttpUploader(mediaContent, fakeTransport, null);
+      uploader.setChunkBufferPool(pool).upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+
+      // There should be 4 calls made. 1 initiation request and 3 upload requests.
+      assertEquals(4, fakeTransport.lowLevelExecCalls);
+      assertEquals(0, pool.getBorrowedCount());
+      assertEquals(1, pool.getIdleCount());
+    }
+    // the buffer is reused for each chunk and by the second upload
+    assertEquals(MediaHttpUploader.DEFAULT_CHUNK_SIZE + 1, pool.getRetainedBytes());
+    assertEquals(0, pool.getExhaustedCount());
+  }
+
   public void testUploadMultipleCalls_WithNoContentSizeProvidedChunkedInput() throws Exception {
     int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 5;
     MediaTransport fakeTransport = new MediaTransport(contentLength);
@@ -851,6 +894,25 @@ public class MediaHttpUploaderTest extends TestCase {
       int chunks,
       boolean force308OnRangeQueryResponse)
       throws Exception {
+    subtestUpload_ResumableWithError(
+        error,
+        contentLength,
+        contentLengthKnown,
+        maxByteIndexUploadedOnError,
+        chunks,
+        force308OnRangeQueryResponse,
+        null);
+  }
+
+  public void subtestUpload_ResumableWithError(
+      ErrorType error,
+      int contentLength,
+      boolean contentLengthKnown,
+      int maxByteIndexUploadedOnError,
+      int chunks,
+      boolean force308OnRangeQueryResponse,
+      Executor chunkPrefetchExecutor)
+      throws Exception {
     MediaTransport fakeTransport = new MediaTransport(contentLength, true);
     if (error == ErrorType.IO_EXCEPTION) {
       fakeTransport.testIOException = true;
@@ -870,6 +932,8 @@ public class MediaHttpUploaderTest extends TestCase {
     MediaHttpUploader uploader =
         new MediaHttpUploader(mediaContent, fakeTransport, new ZeroBackOffRequestInitializer());
 
+    uploader.setChunkPrefetchExecutor(chunkPrefetchExecutor);
+
     // disable GZip - so we would be able to test byte received by server.
     uploader.setDisableGZipContent(true);
     HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
@@ -884,6 +948,77 @@ public class MediaHttpUploaderTest extends TestCase {
     assertTrue(is.isClosed);
   }
 
+  public void testUpload_ResumableServerError_WithChunkPrefetch() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // no bytes were uploaded on the 2nd chunk
+      subtestUpload_ResumableWithError(
+          ErrorType.SERVER_UNAVAILABLE,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE * 3,
+          false,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE - 1,
+          4,
+          false,
+          executor);
+      // part of the bytes were uploaded in the 2nd chunk
+      subtestUpload_ResumableWithError(
+          ErrorType.SERVER_UNAVAILABLE,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE * 2 + 3,
+          false,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE + 4,
+          3,
+          false,
+          executor);
+      // only 1 byte was uploaded in the 2nd chunk
+      subtestUpload_ResumableWithError(
+          ErrorType.IO_EXCEPTION,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE * 3 + 2,
+          false,
+          MediaHttpUploader.DEFAULT_CHUNK_SIZE,
+          5,
+          false,
+          executor);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static File createTempFile(byte[] data) throws IOException {
+    File file = File.createTempFile("upload", ".tmp");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  public void testUpload_ResumableServerError_WithFileContent() throws Exception {
+    int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 2;
+    MediaTransport fakeTransport = new MediaTransport(contentLength, true);
+    fakeTransport.testServerError = true;
+    // part of the bytes were uploaded in the 2nd chunk
+    fakeTransport.maxByteIndexUploadedOnError = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 4 / 3;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    File file = createTempFile(testedData);
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new FileContent(TEST_CONTENT_TYPE, file),
+            fakeTransport,
+            new ZeroBackOffRequestInitializer());
+    uploader.setDisableGZipContent(true);
+    HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+
+    // 1 initiation request + 1 call to query the range + 3 chunks
+    assertEquals(5, fakeTransport.lowLevelExecCalls);
+    assertTrue(Arrays.equals(testedData, fakeTransport.bytesReceived));
+    assertTrue(file.delete());
+  }
+
   public void testUploadIOException_WithoutIOExceptionHandler() throws Exception {
     int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 2;
     MediaTransport fakeTransport = new MediaTransport(contentLength);
@@ -903,6 +1038,26 @@ public class MediaHttpUploaderTest extends TestCase {
     }
   }
 
+  public void testUploadIOException_WithFileContent() throws Exception {
+    int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 2;
+    MediaTransport fakeTransport = new MediaTransport(contentLength);
+    fakeTransport.testIOException = true;
+    File file = createTempFile(new byte[contentLength]);
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(new FileContent(TEST_CONTENT_TYPE, file), fakeTransport, null);
+    uploader.setDisableGZipContent(true);
+
+    try {
+      uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals(3, fakeTransport.lowLevelExecCalls);
+    }
+    // the file channel is closed when the upload fails
+    assertFalse(uploader.mediaFileChannel.isOpen());
+    assertTrue(file.delete());
+  }
+
   public void testUploadServerErrorWithBackOffDisabled_WithNoContentSizeProvided()
       throws Exception {
     int contentLength = MediaHttpUploader.DEFAULT_CHUNK_SIZE * 2;
@@ -1346,4 +1501,798 @@ public class MediaHttpUploaderTest extends TestCase {
 
     assertTrue("input stream should be closed", is.isClosed);
   }
+
+  /**
+   * Transport of a parallel upload that keeps the bytes received for each component, where the
+   * component is given by the {@code component} parameter of the initiation request URL, or is
+   * {@code 0} without that parameter.
+   */
+  static class ParallelMediaTransport extends MockHttpTransport {
+
+    final Map<Integer, ByteArrayOutputStream> components =
+        Collections.synchronizedMap(new TreeMap<Integer, ByteArrayOutputStream>());
+    final AtomicInteger putCalls = new AtomicInteger();
+    final List<Integer> chunkLengths = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<String> initiationMethods = Collections.synchronizedList(new ArrayList<String>());
+    int failingComponent = -1;
+    /** Component whose chunks wait for {@link #blockedComponentLatch}, or {@code -1} for none. */
+    int blockedComponent = -1;
+    final CountDownLatch blockedComponentLatch = new CountDownLatch(1);
+
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) {
+      return new MockLowLevelHttpRequest() {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          GenericUrl genericUrl = new GenericUrl(url);
+          if ("resumable".equals(genericUrl.getFirst("uploadType"))) {
+            initiationMethods.add(method);
+            assertEquals(TEST_CONTENT_TYPE, getFirstHeaderValue("x-upload-content-type"));
+            Object component = genericUrl.getFirst("component");
+            response.addHeader(
+                "Location", TEST_UPLOAD_URL + "/" + (component == null ? 0 : component));
+            return response;
+          }
+          if (method.equals("POST")) {
+            // compose request
+            return response;
+          }
+          assertEquals("PUT", method);
+          putCalls.incrementAndGet();
+          int component = Integer.parseInt(url.substring(url.lastIndexOf('/') + 1));
+          if (component == failingComponent) {
+            response.setStatusCode(403);
+            return response;
+          }
+          if (component == blockedComponent) {
+            try {
+              assertTrue(blockedComponentLatch.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+          }
+          String contentRange = getFirstHeaderValue("Content-Range");
+          long last =
+              Long.parseLong(
+                  contentRange.substring(
+                      contentRange.indexOf('-') + 1, contentRange.indexOf('/')));
+          String total = contentRange.substring(contentRange.indexOf('/') + 1);
+          ByteArrayOutputStream received = new ByteArrayOutputStream();
+          getStreamingContent().writeTo(received);
+          chunkLengths.add(received.size());
+          synchronized (components) {
+            if (!components.containsKey(component)) {
+              components.put(component, new ByteArrayOutputStream());
+            }
+            components.get(component).write(received.toByteArray());
+          }
+          if (total.equals("*") || last + 1 < Long.parseLong(total)) {
+            response.setStatusCode(308);
+            response.addHeader("Range", "bytes=0-" + last);
+          }
+          return response;
+        }
+      };
+    }
+  }
+
+  static class ComponentUrlComposer implements MediaUploadComposer {
+
+    final HttpTransport transport;
+    List<HttpResponse> componentResponses;
+
+    ComponentUrlComposer(HttpTransport transport) {
+      this.transport = transport;
+    }
+
+    public GenericUrl getComponentUrl(
+        GenericUrl initiationRequestUrl, int index, int componentCount) {
+      GenericUrl componentUrl = initiationRequestUrl.clone();
+      componentUrl.put("component", index);
+      return componentUrl;
+    }
+
+    public HttpResponse compose(
+        GenericUrl initiationRequestUrl, List<HttpResponse> componentResponses)
+        throws IOException {
+      this.componentResponses = componentResponses;
+      return transport
+          .createRequestFactory()
+          .buildPostRequest(new GenericUrl("http://www.test.com/compose"), new EmptyContent())
+          .execute();
+    }
+  }
+
+  public void testParallelUpload() throws Exception {
+    int contentLength = 2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 100;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    ComponentUrlComposer composer = new ComponentUrlComposer(fakeTransport);
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      uploader
+          .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+          .setParallelUpload(executor, 3, composer);
+      HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      assertEquals(200, response.getStatusCode());
+    } finally {
+      executor.shutdown();
+    }
+
+    // components of one minimum chunk each, the last one with the remaining bytes
+    assertEquals(3, composer.componentResponses.size());
+    assertEquals(3, fakeTransport.putCalls.get());
+    assertEquals(3, uploader.getComponentUploaders().size());
+    ByteArrayOutputStream composed = new ByteArrayOutputStream();
+    for (ByteArrayOutputStream component : fakeTransport.components.values()) {
+      component.writeTo(composed);
+    }
+    assertTrue(Arrays.equals(testedData, composed.toByteArray()));
+    assertEquals(100, uploader.getComponentUploaders().get(2).getNumBytesUploaded());
+    assertEquals(contentLength, uploader.getNumBytesUploaded());
+    assertEquals(MediaHttpUploader.UploadState.MEDIA_COMPLETE, uploader.getUploadState());
+  }
+
+  public void testParallelUpload_componentsWithSeveralChunks() throws Exception {
+    int contentLength = 5 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    final List<Long> progress = Collections.synchronizedList(new ArrayList<Long>());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      uploader
+          .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+          .setParallelUpload(executor, 2, new ComponentUrlComposer(fakeTransport))
+          .setProgressListener(
+              new MediaHttpUploaderProgressListener() {
+                public void progressChanged(MediaHttpUploader uploader) {
+                  progress.add(uploader.getNumBytesUploaded());
+                }
+              });
+      uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    } finally {
+      executor.shutdown();
+    }
+
+    // 3 chunks for the first component and 2 chunks for the second one
+    assertEquals(2, uploader.getComponentUploaders().size());
+    assertEquals(5, fakeTransport.putCalls.get());
+    ByteArrayOutputStream composed = new ByteArrayOutputStream();
+    for (ByteArrayOutputStream component : fakeTransport.components.values()) {
+      component.writeTo(composed);
+    }
+    assertTrue(Arrays.equals(testedData, composed.toByteArray()));
+    assertEquals(Long.valueOf(contentLength), progress.get(progress.size() - 1));
+  }
+
+  public void testParallelUpload_componentsInheritSettings() throws Exception {
+    int contentLength = 2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 100;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      uploader
+          .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+          .setInitiationRequestMethod(HttpMethods.PUT)
+          .setSendMediaDigest(true)
+          .setParallelUpload(executor, 3, new ComponentUrlComposer(fakeTransport))
+          .upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(Collections.nCopies(3, "PUT"), fakeTransport.initiationMethods);
+    // each component digests its own bytes
+    for (int i = 0; i < 3; i++) {
+      byte[] component = fakeTransport.components.get(i).toByteArray();
+      assertEquals(
+          new MediaDigest().update(component, 0, component.length).getHashHeaderValue(),
+          uploader.getComponentUploaders().get(i).getMediaDigest().getHashHeaderValue());
+    }
+    assertNull(uploader.getMediaDigest());
+  }
+
+  public void testParallelUpload_fileContent() throws Exception {
+    int contentLength = 3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 7;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    File file = createTempFile(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(new FileContent(TEST_CONTENT_TYPE, file), fakeTransport, null);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      uploader
+          .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+          .setParallelUpload(executor, 4, new ComponentUrlComposer(fakeTransport))
+          .upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(4, uploader.getComponentUploaders().size());
+    ByteArrayOutputStream composed = new ByteArrayOutputStream();
+    for (ByteArrayOutputStream component : fakeTransport.components.values()) {
+      component.writeTo(composed);
+    }
+    assertTrue(Arrays.equals(testedData, composed.toByteArray()));
+    assertTrue(file.delete());
+  }
+
+  public void testParallelUpload_unsuccessfulComponent() throws Exception {
+    int contentLength = 3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    fakeTransport.failingComponent = 1;
+    ComponentUrlComposer composer = new ComponentUrlComposer(fakeTransport);
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, new byte[contentLength]), fakeTransport, null);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      uploader.setParallelUpload(executor, 3, composer);
+      HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      assertEquals(403, response.getStatusCode());
+    } finally {
+      executor.shutdown();
+    }
+    assertNull(composer.componentResponses);
+  }
+
+  public void testParallelUpload_unsuccessfulComponentStopsOthers() throws Exception {
+    int contentLength = 9 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    final ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    fakeTransport.failingComponent = 2;
+    fakeTransport.blockedComponent = 0;
+    ComponentUrlComposer composer = new ComponentUrlComposer(fakeTransport);
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, new byte[contentLength]), fakeTransport, null);
+    // component 0 starts on its own thread and is still sending its first chunk when component 2
+    // fails on the calling thread, after which component 1 starts
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final List<Thread> threads = new ArrayList<Thread>();
+    Executor executor =
+        new Executor() {
+          public void execute(Runnable command) {
+            tasks.add(command);
+            if (tasks.size() == 3) {
+              Thread thread = new Thread(tasks.get(0));
+              threads.add(thread);
+              thread.start();
+              tasks.get(2).run();
+              fakeTransport.blockedComponentLatch.countDown();
+              tasks.get(1).run();
+            }
+          }
+        };
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setParallelUpload(executor, 3, composer);
+    HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(403, response.getStatusCode());
+    threads.get(0).join();
+    assertNull(composer.componentResponses);
+    // at most the first chunk of component 0 and the failing chunk of component 2
+    assertTrue(fakeTransport.putCalls.get() <= 2);
+    assertFalse(fakeTransport.components.containsKey(1));
+  }
+
+  public void testParallelUpload_unknownLength() throws Exception {
+    InputStreamContent mediaContent =
+        new InputStreamContent(TEST_CONTENT_TYPE, new ByteArrayInputStream(new byte[10]));
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(mediaContent, new ParallelMediaTransport(), null)
+            .setParallelUpload(
+                Executors.newSingleThreadExecutor(),
+                2,
+                new ComponentUrlComposer(new ParallelMediaTransport()));
+    try {
+      uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /** Chunk size policy that doubles the chunk size and records the sizes it was called with. */
+  static class DoublingChunkSizePolicy implements ChunkSizePolicy {
+
+    final List<Integer> chunkSizes = new ArrayList<Integer>();
+    final List<Long> bytesUploaded = new ArrayList<Long>();
+
+    public int nextChunkSize(int chunkSize, long bytesUploaded, long elapsedNanos, int errorCount) {
+      chunkSizes.add(chunkSize);
+      this.bytesUploaded.add(bytesUploaded);
+      return 2 * chunkSize;
+    }
+  }
+
+  public void testUpload_ChunkSizePolicy() throws Exception {
+    int min = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    int contentLength = 5 * min;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    DoublingChunkSizePolicy policy = new DoublingChunkSizePolicy();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    uploader.setChunkSize(min).setChunkSizePolicy(policy);
+    assertSame(policy, uploader.getChunkSizePolicy());
+    HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+
+    // chunks of 1, 2 and the remaining 2 minimum chunks
+    assertEquals(Arrays.asList(min, 2 * min, 2 * min), fakeTransport.chunkLengths);
+    assertEquals(Arrays.asList(min, 2 * min), policy.chunkSizes);
+    assertEquals(Arrays.asList((long) min, 2L * min), policy.bytesUploaded);
+    assertTrue(Arrays.equals(testedData, fakeTransport.components.get(0).toByteArray()));
+    assertEquals(min, uploader.getChunkSize());
+  }
+
+  public void testUpload_ChunkSizePolicy_WithNoContentSizeProvided() throws Exception {
+    int min = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    int contentLength = 4 * min + 100;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    ParallelMediaTransport fakeTransport = new ParallelMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new InputStreamContent(TEST_CONTENT_TYPE, new ByteArrayInputStream(testedData)),
+            fakeTransport,
+            null);
+    uploader
+        .setChunkSize(min)
+        .setChunkSizePolicy(new DoublingChunkSizePolicy())
+        .setDisableGZipContent(true);
+    uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+
+    assertEquals(Arrays.asList(min, 2 * min, min + 100), fakeTransport.chunkLengths);
+    assertTrue(Arrays.equals(testedData, fakeTransport.components.get(0).toByteArray()));
+  }
+
+  public void testUpload_ChunkSizePolicy_InvalidChunkSize() throws Exception {
+    byte[] testedData = new byte[2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE];
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData),
+            new ParallelMediaTransport(),
+            null);
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setChunkSizePolicy(
+            new ChunkSizePolicy() {
+              public int nextChunkSize(
+                  int chunkSize, long bytesUploaded, long elapsedNanos, int errorCount) {
+                return chunkSize + 1;
+              }
+            });
+    try {
+      uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      fail("expected " + IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Transport of a resumable upload that keeps the received bytes and answers status queries with
+   * the number of bytes received so far.
+   */
+  static class SessionMediaTransport extends MockHttpTransport {
+
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    int initiationCalls;
+    int putCalls;
+
+    /** Number of the chunk request that fails with an I/O exception or {@code -1} for none. */
+    int failingPut = -1;
+
+    /** Number of the chunk request that fails with a server error or {@code -1} for none. */
+    int serverErrorPut = -1;
+
+    /** Whether status queries find that the session expired. */
+    boolean sessionExpired;
+
+    /** Maximum number of bytes of a chunk the server keeps. */
+    int maxBytesPerPut = Integer.MAX_VALUE;
+
+    /** Number of chunk requests with gzip-encoded content. */
+    int gzipPutCalls;
+
+    /** Value of the last media digest header sent or {@code null} for none. */
+    String hashHeader;
+
+    @Override
+    public LowLevelHttpRequest buildRequest(final String method, final String url) {
+      return new MockLowLevelHttpRequest() {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          if (method.equals("POST")) {
+            initiationCalls++;
+            received.reset();
+            response.addHeader("Location", TEST_UPLOAD_URL);
+            return response;
+          }
+          assertEquals("PUT", method);
+          assertEquals(TEST_UPLOAD_URL, url);
+          String contentRange = getFirstHeaderValue("Content-Range");
+          if (getFirstHeaderValue(MediaDigest.HASH_HEADER) != null) {
+            hashHeader = getFirstHeaderValue(MediaDigest.HASH_HEADER);
+          }
+          String totalString = contentRange.substring(contentRange.indexOf('/') + 1);
+          long total = totalString.equals("*") ? Long.MAX_VALUE : Long.parseLong(totalString);
+          if (contentRange.startsWith("bytes */")) {
+            if (sessionExpired) {
+              response.setStatusCode(404);
+            } else if (received.size() < total) {
+              response.setStatusCode(308);
+              if (received.size() > 0) {
+                response.addHeader("Range", "bytes=0-" + (received.size() - 1));
+              }
+            }
+            return response;
+          }
+          if (++putCalls == failingPut) {
+            throw new IOException("connection reset");
+          }
+          if (putCalls == serverErrorPut) {
+            response.setStatusCode(503);
+            return response;
+          }
+          long first = Long.parseLong(contentRange.substring(6, contentRange.indexOf('-')));
+          assertEquals(received.size(), first);
+          ByteArrayOutputStream body = new ByteArrayOutputStream();
+          getStreamingContent().writeTo(body);
+          InputStream chunk = new ByteArrayInputStream(body.toByteArray());
+          if ("gzip".equals(getContentEncoding())) {
+            gzipPutCalls++;
+            chunk = new GZIPInputStream(chunk);
+          }
+          ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+          IOUtils.copy(chunk, decoded);
+          received.write(decoded.toByteArray(), 0, Math.min(decoded.size(), maxBytesPerPut));
+          if (received.size() < total) {
+            response.setStatusCode(308);
+            response.addHeader("Range", "bytes=0-" + (received.size() - 1));
+          }
+          return response;
+        }
+      };
+    }
+  }
+
+  private void subtestResume(boolean fileContent) throws Exception {
+    int contentLength = 4 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    File file = fileContent ? createTempFile(testedData) : null;
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    fakeTransport.failingPut = 3;
+    UploadSessionStore store = new UploadSessionStore(new MemoryDataStoreFactory());
+
+    // the upload is interrupted after two chunks
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            fileContent
+                ? new FileContent(TEST_CONTENT_TYPE, file)
+                : new ByteArrayContent(TEST_CONTENT_TYPE, testedData),
+            fakeTransport,
+            null);
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setUploadSessionStore(store, "session");
+    try {
+      uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    UploadSession session = store.get("session");
+    assertEquals(TEST_UPLOAD_URL, session.getUploadUrl());
+    assertEquals(2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE, session.getBytesServerReceived());
+    assertTrue(session.matches(uploader.getMediaFingerprint(), contentLength));
+    assertEquals(fileContent, uploader.getMediaFingerprint() != null);
+
+    // a new uploader continues after the bytes the server received
+    fakeTransport.failingPut = -1;
+    uploader =
+        new MediaHttpUploader(
+            fileContent
+                ? new FileContent(TEST_CONTENT_TYPE, file)
+                : new ByteArrayContent(TEST_CONTENT_TYPE, testedData),
+            fakeTransport,
+            null);
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setUploadSessionStore(store, "session")
+        .setMediaDigestEnabled(true);
+    HttpResponse response = uploader.resume(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+    assertEquals(1, fakeTransport.initiationCalls);
+    assertEquals(5, fakeTransport.putCalls);
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    assertEquals(contentLength, uploader.getNumBytesUploaded());
+    assertNull(store.get("session"));
+    // the digest includes the bytes the server received before the upload was interrupted
+    assertEquals(
+        new MediaDigest().update(testedData, 0, contentLength).getHashHeaderValue(),
+        uploader.getMediaDigest().getHashHeaderValue());
+  }
+
+  public void testResume() throws Exception {
+    subtestResume(false);
+  }
+
+  public void testResume_WithFileContent() throws Exception {
+    subtestResume(true);
+  }
+
+  public void testResume_NoMatchingSession() throws Exception {
+    int contentLength = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    UploadSessionStore store = new UploadSessionStore(new MemoryDataStoreFactory());
+    store.set("session", new UploadSession(TEST_UPLOAD_URL, "other", contentLength, 0));
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, new byte[contentLength]), fakeTransport, null);
+    uploader.setUploadSessionStore(store, "session").setMediaFingerprint("media");
+    HttpResponse response = uploader.resume(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+    assertEquals(1, fakeTransport.initiationCalls);
+    assertNull(store.get("session"));
+  }
+
+  public void testResume_ExpiredSession() throws Exception {
+    int contentLength = 2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    fakeTransport.sessionExpired = true;
+    UploadSessionStore store = new UploadSessionStore(new MemoryDataStoreFactory());
+    store.set("session", new UploadSession(TEST_UPLOAD_URL, null, contentLength, 0));
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setUploadSessionStore(store, "session");
+    HttpResponse response = uploader.resume(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+    assertEquals(1, fakeTransport.initiationCalls);
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    assertNull(store.get("session"));
+  }
+
+  private void subtestUpload_KnownLengthGZip(boolean fileContent) throws Exception {
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; csv.length() < 3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 100; i++) {
+      csv.append(i).append(",name-").append(i % 100).append(",value\n");
+    }
+    byte[] testedData = csv.toString().getBytes("UTF-8");
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    // the server keeps only part of each chunk
+    fakeTransport.maxBytesPerPut = MediaHttpUploader.MINIMUM_CHUNK_SIZE - 1000;
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            fileContent
+                ? new FileContent(TEST_CONTENT_TYPE, createTempFile(testedData))
+                : new ByteArrayContent(TEST_CONTENT_TYPE, testedData),
+            fakeTransport,
+            null);
+    uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE).setKnownLengthGZipEnabled(true);
+    assertTrue(uploader.isKnownLengthGZipEnabled());
+    HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    assertEquals(fakeTransport.putCalls, fakeTransport.gzipPutCalls);
+    // four chunks, since the server kept 1000 bytes less than the chunk size of each chunk
+    assertEquals(4, fakeTransport.putCalls);
+    assertEquals(testedData.length, uploader.getNumBytesUploaded());
+    assertTrue(uploader.getNumCompressedBytesSent() > 0);
+    assertTrue(uploader.getNumCompressedBytesSent() < testedData.length / 2);
+  }
+
+  public void testUpload_KnownLengthGZip() throws Exception {
+    subtestUpload_KnownLengthGZip(false);
+  }
+
+  public void testUpload_KnownLengthGZip_WithFileContent() throws Exception {
+    subtestUpload_KnownLengthGZip(true);
+  }
+
+  public void testUpload_KnownLengthGZipDisabled() throws Exception {
+    byte[] testedData = new byte[MediaHttpUploader.MINIMUM_CHUNK_SIZE];
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    uploader.setKnownLengthGZipEnabled(true).setDisableGZipContent(true);
+    uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(1, fakeTransport.putCalls);
+    assertEquals(0, fakeTransport.gzipPutCalls);
+    assertEquals(0, uploader.getNumCompressedBytesSent());
+  }
+
+  private void subtestUpload_MediaDigest(AbstractInputStreamContent mediaContent, byte[] testedData)
+      throws Exception {
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    // the server keeps only part of each chunk, so the digest is rewound after each chunk
+    fakeTransport.maxBytesPerPut = MediaHttpUploader.MINIMUM_CHUNK_SIZE - 1000;
+    MediaHttpUploader uploader = new MediaHttpUploader(mediaContent, fakeTransport, null);
+    uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE).setSendMediaDigest(true);
+    assertNull(uploader.getMediaDigest());
+    HttpResponse response = uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertEquals(200, response.getStatusCode());
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    assertEquals(4, fakeTransport.putCalls);
+
+    String expected =
+        new MediaDigest().update(testedData, 0, testedData.length).getHashHeaderValue();
+    MediaDigest digest = uploader.getMediaDigest();
+    assertEquals(testedData.length, digest.getLength());
+    assertEquals(expected, digest.getHashHeaderValue());
+    assertEquals(expected, fakeTransport.hashHeader);
+  }
+
+  private static byte[] newMediaDigestTestData() {
+    byte[] testedData = new byte[3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 100];
+    new Random().nextBytes(testedData);
+    return testedData;
+  }
+
+  public void testUpload_MediaDigest() throws Exception {
+    byte[] testedData = newMediaDigestTestData();
+    subtestUpload_MediaDigest(new ByteArrayContent(TEST_CONTENT_TYPE, testedData), testedData);
+  }
+
+  public void testUpload_MediaDigest_WithFileContent() throws Exception {
+    byte[] testedData = newMediaDigestTestData();
+    subtestUpload_MediaDigest(
+        new FileContent(TEST_CONTENT_TYPE, createTempFile(testedData)), testedData);
+  }
+
+  public void testUpload_MediaDigest_WithNoContentSizeProvided() throws Exception {
+    byte[] testedData = newMediaDigestTestData();
+    subtestUpload_MediaDigest(
+        new InputStreamContent(TEST_CONTENT_TYPE, new ByteArrayInputStream(testedData)),
+        testedData);
+  }
+
+  public void testUpload_MediaDigestDisabled() throws Exception {
+    byte[] testedData = new byte[MediaHttpUploader.MINIMUM_CHUNK_SIZE];
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+    assertNull(uploader.getMediaDigest());
+    assertNull(fakeTransport.hashHeader);
+  }
+
+  public void testUpload_RateLimiter() throws Exception {
+    int contentLength = 3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    UploadRateLimiterTest.FakeClock clock = new UploadRateLimiterTest.FakeClock();
+    UploadRateLimiter rateLimiter = new UploadRateLimiter(MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    rateLimiter.nanoClock = clock;
+    rateLimiter.sleeper = clock;
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    assertEquals(UploadRateLimiter.Priority.NORMAL, uploader.getUploadPriority());
+    final List<Double> rates = new ArrayList<Double>();
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setUploadRateLimiter(rateLimiter, UploadRateLimiter.Priority.HIGH)
+        .setProgressListener(
+            new MediaHttpUploaderProgressListener() {
+              public void progressChanged(MediaHttpUploader uploader) {
+                if (uploader.getUploadState() != MediaHttpUploader.UploadState.INITIATION_STARTED
+                    && uploader.getUploadState()
+                        != MediaHttpUploader.UploadState.INITIATION_COMPLETE) {
+                  rates.add(uploader.getCurrentUploadRate());
+                }
+              }
+            });
+    uploader.upload(new GenericUrl(TEST_RESUMABLE_REQUEST_URL));
+
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    // the first chunk is covered by the initial burst, the other two take a second each
+    long sleptMillis = clock.getSleptMillis();
+    assertTrue(String.valueOf(sleptMillis), sleptMillis >= 2000 && sleptMillis < 2100);
+    assertEquals(3, rates.size());
+    for (double rate : rates) {
+      assertTrue(rate > 0);
+    }
+  }
+
+  private void subtestUploadAsync(ExecutorService executor) throws Exception {
+    int contentLength = 3 * MediaHttpUploader.MINIMUM_CHUNK_SIZE + 100;
+    byte[] testedData = new byte[contentLength];
+    new Random().nextBytes(testedData);
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    fakeTransport.serverErrorPut = 2;
+    fakeTransport.failingPut = 4;
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, testedData), fakeTransport, null);
+    uploader
+        .setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE)
+        .setAsyncBackOff(new MockBackOff().setBackOffMillis(10));
+    try {
+      ListenableFuture<HttpResponse> future =
+          uploader.uploadAsync(new GenericUrl(TEST_RESUMABLE_REQUEST_URL), executor);
+      assertEquals(200, future.get().getStatusCode());
+    } finally {
+      executor.shutdown();
+    }
+
+    // the chunks that failed are sent again after querying the upload status
+    assertEquals(6, fakeTransport.putCalls);
+    assertTrue(Arrays.equals(testedData, fakeTransport.received.toByteArray()));
+    assertEquals(contentLength, uploader.getNumBytesUploaded());
+    assertEquals(MediaHttpUploader.UploadState.MEDIA_COMPLETE, uploader.getUploadState());
+  }
+
+  public void testUploadAsync() throws Exception {
+    subtestUploadAsync(Executors.newFixedThreadPool(2));
+  }
+
+  public void testUploadAsync_ScheduledExecutor() throws Exception {
+    subtestUploadAsync(Executors.newSingleThreadScheduledExecutor());
+  }
+
+  public void testUploadAsync_ServerErrorWithoutBackOff() throws Exception {
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    fakeTransport.serverErrorPut = 2;
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(
+                TEST_CONTENT_TYPE, new byte[2 * MediaHttpUploader.MINIMUM_CHUNK_SIZE]),
+            fakeTransport,
+            null);
+    uploader.setChunkSize(MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      HttpResponse response =
+          uploader.uploadAsync(new GenericUrl(TEST_RESUMABLE_REQUEST_URL), executor).get();
+      assertEquals(503, response.getStatusCode());
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(2, fakeTransport.putCalls);
+  }
+
+  public void testUploadAsync_IOExceptionWithoutBackOff() throws Exception {
+    SessionMediaTransport fakeTransport = new SessionMediaTransport();
+    fakeTransport.failingPut = 1;
+    MediaHttpUploader uploader =
+        new MediaHttpUploader(
+            new ByteArrayContent(TEST_CONTENT_TYPE, new byte[100]), fakeTransport, null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      uploader.uploadAsync(new GenericUrl(TEST_RESUMABLE_REQUEST_URL), executor).get();
+      fail("expected " + ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertEquals("connection reset", e.getCause().getMessage());
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
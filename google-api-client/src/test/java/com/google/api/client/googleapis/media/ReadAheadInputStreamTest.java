@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.testing.util.TestableByteArrayInputStream;
+import com.google.api.client.util.IOUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import junit.framework.TestCase;
+
+/** Tests {@link ReadAheadInputStream}. */
+public class ReadAheadInputStreamTest extends TestCase {
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random().nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copy(in, out);
+    return out.toByteArray();
+  }
+
+  public void testRead() throws IOException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      for (int length : new int[] {0, 1, 63, 64, 65, 1000}) {
+        byte[] data = randomBytes(length);
+        TestableByteArrayInputStream source = new TestableByteArrayInputStream(data);
+        ReadAheadInputStream in = new ReadAheadInputStream(source, 64, executor);
+        assertTrue(Arrays.equals(data, readFully(in)));
+        assertEquals(-1, in.read());
+        in.close();
+        assertTrue(source.isClosed());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testRead_singleBytes() throws IOException {
+    byte[] data = randomBytes(100);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ReadAheadInputStream in =
+          new ReadAheadInputStream(new TestableByteArrayInputStream(data), 7, executor);
+      for (byte b : data) {
+        assertEquals(b & 0xff, in.read());
+      }
+      assertEquals(-1, in.read());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testRead_rejectingExecutor() throws IOException {
+    byte[] data = randomBytes(200);
+    Executor executor =
+        new Executor() {
+          public void execute(Runnable command) {
+            throw new RejectedExecutionException();
+          }
+        };
+    ReadAheadInputStream in =
+        new ReadAheadInputStream(new TestableByteArrayInputStream(data), 16, executor);
+    assertTrue(Arrays.equals(data, readFully(in)));
+  }
+
+  public void testRead_failure() {
+    InputStream source =
+        new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new IOException("source failed");
+          }
+        };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      new ReadAheadInputStream(source, 16, executor).read();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("source failed", e.getMessage());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.googleapis.media;
+
+import com.google.api.client.googleapis.media.UploadRateLimiter.Priority;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Sleeper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/** Tests {@link UploadRateLimiter}. */
+public class UploadRateLimiterTest extends TestCase {
+
+  /** Fake clock whose time only advances when sleeping. */
+  static class FakeClock implements NanoClock, Sleeper {
+
+    long nanos;
+    long sleptMillis;
+
+    public synchronized long nanoTime() {
+      return nanos;
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+      synchronized (this) {
+        sleptMillis += millis;
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+      }
+    }
+
+    synchronized long getSleptMillis() {
+      return sleptMillis;
+    }
+  }
+
+  private static UploadRateLimiter newRateLimiter(
+      long bytesPerSecond, long burstBytes, FakeClock clock) {
+    UploadRateLimiter rateLimiter = new UploadRateLimiter(bytesPerSecond, burstBytes);
+    rateLimiter.nanoClock = clock;
+    rateLimiter.sleeper = clock;
+    return rateLimiter;
+  }
+
+  public void testConstructor() {
+    UploadRateLimiter rateLimiter = new UploadRateLimiter(1000);
+    assertEquals(1000, rateLimiter.getBytesPerSecond());
+    assertEquals(1000, rateLimiter.getBurstBytes());
+    try {
+      new UploadRateLimiter(0);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testAcquire() throws Exception {
+    FakeClock clock = new FakeClock();
+    UploadRateLimiter rateLimiter = newRateLimiter(1000, 1000, clock);
+    // the bucket starts full
+    rateLimiter.acquire(1000, Priority.NORMAL);
+    assertEquals(0, clock.getSleptMillis());
+    rateLimiter.acquire(500, Priority.NORMAL);
+    assertEquals(500, clock.getSleptMillis());
+    rateLimiter.acquire(250, Priority.LOW);
+    assertEquals(750, clock.getSleptMillis());
+    // idle time refills the bucket up to the burst size
+    clock.nanos += TimeUnit.SECONDS.toNanos(10);
+    rateLimiter.acquire(1000, Priority.NORMAL);
+    assertEquals(750, clock.getSleptMillis());
+    rateLimiter.acquire(1, Priority.NORMAL);
+    assertEquals(751, clock.getSleptMillis());
+  }
+
+  public void testAcquire_largerThanBurst() throws Exception {
+    FakeClock clock = new FakeClock();
+    UploadRateLimiter rateLimiter = newRateLimiter(1000, 100, clock);
+    rateLimiter.acquire(1000, Priority.NORMAL);
+    assertEquals(0, clock.getSleptMillis());
+    // the next write waits until the large write is paid off
+    rateLimiter.acquire(100, Priority.NORMAL);
+    assertEquals(1000, clock.getSleptMillis());
+  }
+
+  public void testAcquire_priority() throws Exception {
+    final List<Priority> granted = Collections.synchronizedList(new ArrayList<Priority>());
+    final CountDownLatch highWaiting = new CountDownLatch(1);
+    final CountDownLatch highReleased = new CountDownLatch(1);
+    final Thread[] highThread = new Thread[1];
+    FakeClock clock =
+        new FakeClock() {
+          @Override
+          public void sleep(long millis) throws InterruptedException {
+            if (Thread.currentThread() == highThread[0]) {
+              // keep the high priority write waiting until the low priority write waits too
+              highWaiting.countDown();
+              highReleased.await();
+              super.sleep(millis);
+            } else {
+              super.sleep(millis);
+              if (highReleased.getCount() > 0) {
+                highReleased.countDown();
+                highThread[0].join();
+              }
+            }
+          }
+        };
+    final UploadRateLimiter rateLimiter = newRateLimiter(1000, 1000, clock);
+    rateLimiter.acquire(1000, Priority.LOW);
+    highThread[0] =
+        new Thread() {
+          @Override
+          public void run() {
+            try {
+              rateLimiter.acquire(1000, Priority.HIGH);
+              granted.add(Priority.HIGH);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+    highThread[0].start();
+    highWaiting.await();
+
+    // the low priority write waits for the tokens of the waiting high priority write
+    rateLimiter.acquire(500, Priority.LOW);
+    granted.add(Priority.LOW);
+    assertEquals(Arrays.asList(Priority.HIGH, Priority.LOW), granted);
+    assertTrue(clock.getSleptMillis() >= 2500);
+  }
+}